@@ -11,11 +11,35 @@ import java.util.List;
  * @author hridesh
  * 
  */
-public interface AST {
-	public static abstract class ASTNode implements AST {
+public sealed interface AST {
+	public static abstract sealed class ASTNode implements AST {
+		final Kind _kind = Kind.of(getClass());
+
 		public abstract <T> T accept(Visitor<T> visitor, Env env);
+
+		/** The class of this node, as a constant that an evaluator can switch over. */
+		public final Kind kind() { return _kind; }
+	}
+
+	/** The concrete classes of the sealed hierarchy of nodes. See SwitchEvaluator. */
+	public enum Kind {
+		PROGRAM(Program.class), VAR(VarExp.class), UNIT(UnitExp.class), NUM(NumExp.class), STR(StrExp.class), BOOL(BoolExp.class),
+		ADD(AddExp.class), SUB(SubExp.class), MULT(MultExp.class), DIV(DivExp.class), LET(LetExp.class), DEFINE(DefineDecl.class),
+		LAMBDA(LambdaExp.class), CALL(CallExp.class), IF(IfExp.class), LESS(LessExp.class), EQUAL(EqualExp.class), GREATER(GreaterExp.class),
+		CAR(CarExp.class), CDR(CdrExp.class), CONS(ConsExp.class), LIST(ListExp.class), NULL(NullExp.class), EVAL(EvalExp.class), READ(ReadExp.class);
+
+		private static final Kind[] KINDS = values();
+		private final Class<? extends ASTNode> _type;
+
+		Kind(Class<? extends ASTNode> type) { _type = type; }
+
+		static Kind of(Class<?> type) {
+			for (Kind kind : KINDS)
+				if (kind._type == type) return kind;
+			throw new IllegalStateException("No kind for " + type.getName());
+		}
 	}
-	public static class Program extends ASTNode {
+	public static final class Program extends ASTNode {
 		List<DefineDecl> _decls;
 		Exp _e;
 
@@ -36,12 +60,18 @@ public interface AST {
 			return visitor.visit(this, env);
 		}
 	}
-	public static abstract class Exp extends ASTNode {
+	public static abstract sealed class Exp extends ASTNode {
 
 	}
 
-	public static class VarExp extends Exp {
+	public static final class VarExp extends Exp {
+		public static final int UNRESOLVED = -2; // Looked up by name.
+		public static final int GLOBAL = -1; // Not bound by any enclosing let or lambda.
+
 		String _name;
+		int _depth = UNRESOLVED;
+		int _slot = -1;
+		Env.GlobalCache _global = null; // For GLOBAL references.
 
 		public VarExp(String name) {
 			_name = name;
@@ -50,13 +80,29 @@ public interface AST {
 		public String name() {
 			return _name;
 		}
+
+		/**
+		 * Lexical address of this reference: the number of frames to skip
+		 * and the position of the binding within that frame. 
+		 */
+		public int depth() { return _depth; }
+		public int slot() { return _slot; }
+
+		public void resolve(int depth, int slot) {
+			_depth = depth;
+			_slot = slot;
+			_global = depth == GLOBAL ? new Env.GlobalCache(_name) : null;
+		}
+
+		/** The inline cache through which the engines read this reference if it is GLOBAL. */
+		public Env.GlobalCache global() { return _global; }
 		
 		public <T> T accept(Visitor<T> visitor, Env env) {
 			return visitor.visit(this, env);
 		}
 	}
 
-	public static class UnitExp extends Exp {
+	public static final class UnitExp extends Exp {
 		
 		public UnitExp() {}
 
@@ -66,56 +112,89 @@ public interface AST {
 
 	}
 
-	public static class NumExp extends Exp {
+	public static final class NumExp extends Exp {
 		double _val;
+		Value.NumVal _value; // Built once, rather than at every evaluation.
 
 		public NumExp(double v) {
 			_val = v;
+			_value = new Value.NumVal(v);
 		}
 
 		public double v() {
 			return _val;
 		}
+
+		public Value.NumVal value() {
+			return _value;
+		}
 		
 		public <T> T accept(Visitor<T> visitor, Env env) {
 			return visitor.visit(this, env);
 		}
 	}
 
-	public static class StrExp extends Exp {
+	public static final class StrExp extends Exp {
 		String _val;
+		Value.StringVal _value; // Built once, rather than at every evaluation.
 
 		public StrExp(String v) {
 			_val = v;
+			_value = new Value.StringVal(v);
 		}
 
 		public String v() {
 			return _val;
 		}
+
+		public Value.StringVal value() {
+			return _value;
+		}
 		
 		public <T> T accept(Visitor<T> visitor, Env env) {
 			return visitor.visit(this, env);
 		}
 	}
 
-	public static class BoolExp extends Exp {
+	public static final class BoolExp extends Exp {
 		boolean _val;
+		Value.BoolVal _value; // Built once, rather than at every evaluation.
 
 		public BoolExp(boolean v) {
 			_val = v;
+			_value = Value.BoolVal.of(v);
 		}
 
 		public boolean v() {
 			return _val;
 		}
+
+		public Value.BoolVal value() {
+			return _value;
+		}
 		
 		public <T> T accept(Visitor<T> visitor, Env env) {
 			return visitor.visit(this, env);
 		}
 	}
 
-	public static abstract class CompoundArithExp extends Exp {
+	/**
+	 * Versions of an arithmetic or comparison node. A node starts out 
+	 * UNINITIALIZED and rewrites itself, from the operand types it sees, to a 
+	 * version specialised for two numbers, or for a number and a numeric 
+	 * literal. A node whose guess turns out wrong becomes GENERIC for good.
+	 * See Evaluator.visit(AddExp).
+	 */
+	public enum Specialization { UNINITIALIZED, NUMBERS, NUMBER_AND_LITERAL, GENERIC }
+
+	public interface Specializable {
+		public Specialization specialization();
+		public void specialize(Specialization specialization);
+	}
+
+	public static abstract sealed class CompoundArithExp extends Exp implements Specializable {
 		List<Exp> _rest;
+		Specialization _specialization = Specialization.UNINITIALIZED;
 
 		public CompoundArithExp() {
 			_rest = new ArrayList<Exp>();
@@ -159,10 +238,14 @@ public interface AST {
 		public void add(Exp e) {
 			_rest.add(e);
 		}
+
+		public Specialization specialization() { return _specialization; }
+
+		public void specialize(Specialization specialization) { _specialization = specialization; }
 		
 	}
 
-	public static class AddExp extends CompoundArithExp {
+	public static final class AddExp extends CompoundArithExp {
 		public AddExp(Exp fst) {
 			super(fst);
 		}
@@ -184,7 +267,7 @@ public interface AST {
 		}
 	}
 
-	public static class SubExp extends CompoundArithExp {
+	public static final class SubExp extends CompoundArithExp {
 
 		public SubExp(Exp fst) {
 			super(fst);
@@ -207,7 +290,7 @@ public interface AST {
 		}
 	}
 
-	public static class DivExp extends CompoundArithExp {
+	public static final class DivExp extends CompoundArithExp {
 		public DivExp(Exp fst) {
 			super(fst);
 		}
@@ -229,7 +312,7 @@ public interface AST {
 		}
 	}
 
-	public static class MultExp extends CompoundArithExp {
+	public static final class MultExp extends CompoundArithExp {
 		public MultExp(Exp fst) {
 			super(fst);
 		}
@@ -259,7 +342,7 @@ public interface AST {
 	 * @author hridesh
 	 *
 	 */
-	public static class LetExp extends Exp {
+	public static final class LetExp extends Exp {
 		List<String> _names;
 		List<Exp> _value_exps; 
 		Exp _body;
@@ -290,7 +373,7 @@ public interface AST {
 	 * @author hridesh
 	 *
 	 */
-	public static class DefineDecl extends Exp {
+	public static final class DefineDecl extends Exp {
 		String _name;
 		Exp _value_exp; 
 		
@@ -315,9 +398,14 @@ public interface AST {
 	 * @author hridesh
 	 *
 	 */
-	public static class LambdaExp extends Exp {		
+	public static final class LambdaExp extends Exp {		
 		List<String> _formals;
 		Exp _body;
+		List<String> _free = new ArrayList<String>(); // Variables of enclosing lets and lambdas that the body uses.
+		List<VarExp> _captures = new ArrayList<VarExp>(); // The same, addressed where the lambda is evaluated.
+		Value.FunVal _lifted = null; // Shared by all evaluations, if there are no free variables.
+		LambdaExp _source = this; // The lambda as written, before the Optimizer rewrote it.
+		TypeChecker.Entry _typing = null; // Set by the TypeChecker if the lambda is typed.
 		
 		public LambdaExp(List<String> formals, Exp body) {
 			_formals = formals;
@@ -327,6 +415,35 @@ public interface AST {
 		public List<String> formals() { return _formals; }
 		
 		public Exp body() { return _body; }
+
+		/**
+		 * Free variables, computed by the Resolver. A closure of this lambda
+		 * holds their values in one frame, in this order, and its body 
+		 * addresses them in that frame.
+		 */
+		public List<String> free() { return _free; }
+
+		public List<VarExp> captures() { return _captures; }
+
+		/** Adds the free variable that e refers to and returns its slot. */
+		public int capture(VarExp e) {
+			_free.add(e.name());
+			_captures.add(e);
+			return _free.size() - 1;
+		}
+
+		public Value.FunVal lifted() { return _lifted; }
+
+		public void lift(Value.FunVal closure) { _lifted = closure; }
+
+		public LambdaExp source() { return _source; }
+
+		public void setSource(LambdaExp source) { _source = source; }
+
+		/** How the Evaluator may run the body without the checks that typing makes redundant, or null. */
+		public TypeChecker.Entry typing() { return _typing; }
+
+		public void setTyping(TypeChecker.Entry typing) { _typing = typing; }
 		
 		public <T> T accept(Visitor<T> visitor, Env env) {
 			return visitor.visit(this, env);
@@ -339,9 +456,15 @@ public interface AST {
 	 * @author hridesh
 	 *
 	 */
-	public static class CallExp extends Exp {
+	public static final class CallExp extends Exp {
 		Exp _operator; 
 		List<Exp> _operands;
+		Compiler.CallSite _site = null; // Inline cache of the Evaluator.
+		CallExp _source = this; // The call as written, before the Optimizer rewrote it.
+		LambdaExp _callee = null; // Set with _inlined by the Optimizer.
+		Exp _inlined = null;
+		Pipeline _pipeline = null; // Set by the Optimizer.
+		List<String> _linked = null; // Formals of the last function linked to this call, of as many formals as operands.
 		
 		public CallExp(Exp operator, List<Exp> operands) {
 			_operator = operator; 
@@ -351,6 +474,39 @@ public interface AST {
 		public Exp operator() { return _operator; }
 
 		public List<Exp> operands() { return _operands; }
+
+		/** The call as written, which error messages show. */
+		public CallExp source() { return _source; }
+
+		public void setSource(CallExp source) { _source = source; }
+
+		/**
+		 * An inlined call: while the operator is a closure of callee, the 
+		 * call evaluates to inlined, the body of callee with its formals 
+		 * bound to the operands. Other engines ignore it and make the call.
+		 */
+		public void inline(LambdaExp callee, Exp inlined) {
+			_callee = callee;
+			_inlined = inlined;
+		}
+
+		public LambdaExp callee() { return _callee; }
+
+		public Exp inlined() { return _inlined; }
+
+		/** The chain of map and filter calls that this call starts, which the Evaluator fuses, or null. */
+		public Pipeline pipeline() { return _pipeline; }
+
+		public void setPipeline(Pipeline pipeline) { _pipeline = pipeline; }
+
+		public Compiler.CallSite site() { return _site; }
+
+		public void setSite(Compiler.CallSite site) { _site = site; }
+
+		/** The formals of the functions that this call was last linked to: functions with them need no arity check. */
+		public List<String> linked() { return _linked; }
+
+		public void link(List<String> formals) { _linked = formals; }
 		
 		public <T> T accept(Visitor<T> visitor, Env env) {
 			return visitor.visit(this, env);
@@ -365,10 +521,11 @@ public interface AST {
 	 * @author hridesh
 	 *
 	 */
-	public static class IfExp extends Exp {
+	public static final class IfExp extends Exp {
 		Exp _conditional; 
 		Exp _then_exp; 
 		Exp _else_exp; 
+		IfExp _source = this; // The expression as written, before the Optimizer rewrote it.
 		
 		public IfExp(Exp conditional, Exp then_exp, Exp else_exp) {
 			_conditional = conditional;
@@ -379,6 +536,8 @@ public interface AST {
 		public Exp conditional() { return _conditional; }
 		public Exp then_exp() { return _then_exp; }
 		public Exp else_exp() { return _else_exp; }
+		public IfExp source() { return _source; }
+		public void setSource(IfExp source) { _source = source; }
 		
 		public <T> T accept(Visitor<T> visitor, Env env) {
 			return visitor.visit(this, env);
@@ -393,7 +552,7 @@ public interface AST {
 	 * @author hridesh
 	 *
 	 */
-	public static class LessExp extends BinaryComparator {
+	public static final class LessExp extends BinaryComparator {
 		public LessExp(Exp first_exp, Exp second_exp) {
 			super(first_exp, second_exp);
 		}
@@ -403,15 +562,18 @@ public interface AST {
 		}
 	}
 	
-	public static abstract class BinaryComparator extends Exp {
+	public static abstract sealed class BinaryComparator extends Exp implements Specializable {
 		private Exp _first_exp; 
 		private Exp _second_exp; 
+		Specialization _specialization = Specialization.UNINITIALIZED;
 		BinaryComparator(Exp first_exp, Exp second_exp) {
 			_first_exp = first_exp;
 			_second_exp = second_exp; 
 		}
 		public Exp first_exp() { return _first_exp; }
 		public Exp second_exp() { return _second_exp; }
+		public Specialization specialization() { return _specialization; }
+		public void specialize(Specialization specialization) { _specialization = specialization; }
 	}
 
 	/**
@@ -422,7 +584,7 @@ public interface AST {
 	 * @author hridesh
 	 *
 	 */
-	public static class EqualExp extends BinaryComparator {
+	public static final class EqualExp extends BinaryComparator {
 		public EqualExp(Exp first_exp, Exp second_exp) {
 			super(first_exp, second_exp);
 		}
@@ -440,7 +602,7 @@ public interface AST {
 	 * @author hridesh
 	 *
 	 */
-	public static class GreaterExp extends BinaryComparator {
+	public static final class GreaterExp extends BinaryComparator {
 		public GreaterExp(Exp first_exp, Exp second_exp) {
 			super(first_exp, second_exp);
 		}
@@ -458,7 +620,7 @@ public interface AST {
 	 * @author hridesh
 	 *
 	 */
-	public static class CarExp extends Exp {
+	public static final class CarExp extends Exp {
 		private Exp _arg; 
 		public CarExp(Exp arg){
 			_arg = arg;
@@ -477,7 +639,7 @@ public interface AST {
 	 * @author hridesh
 	 *
 	 */
-	public static class CdrExp extends Exp {
+	public static final class CdrExp extends Exp {
 		private Exp _arg; 
 		public CdrExp(Exp arg){
 			_arg = arg;
@@ -496,7 +658,7 @@ public interface AST {
 	 * @author hridesh
 	 *
 	 */
-	public static class ConsExp extends Exp {
+	public static final class ConsExp extends Exp {
 		private Exp _fst; 
 		private Exp _snd; 
 		public ConsExp(Exp fst, Exp snd){
@@ -518,7 +680,7 @@ public interface AST {
 	 * @author hridesh
 	 *
 	 */
-	public static class ListExp extends Exp {
+	public static final class ListExp extends Exp {
 		private List<Exp> _elems; 
 		public ListExp(List<Exp> elems){
 			_elems = elems;
@@ -537,7 +699,7 @@ public interface AST {
 	 * @author hridesh
 	 *
 	 */
-	public static class NullExp extends Exp {
+	public static final class NullExp extends Exp {
 		private Exp _arg; 
 		public NullExp(Exp arg){
 			_arg = arg;
@@ -553,7 +715,7 @@ public interface AST {
 	 * @author hridesh
 	 *
 	 */
-	public static class EvalExp extends Exp {
+	public static final class EvalExp extends Exp {
 		private Exp _code; 
 		public EvalExp(Exp code){
 			_code = code;
@@ -569,7 +731,7 @@ public interface AST {
 	 * @author hridesh
 	 *
 	 */
-	public static class ReadExp extends Exp {
+	public static final class ReadExp extends Exp {
 		private Exp _file; 
 		public ReadExp(Exp file){
 			_file = file;
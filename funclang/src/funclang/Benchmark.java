@@ -0,0 +1,483 @@
+package funclang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import funclang.AST.Program;
+
+/**
+ * Times funclang programs on each engine configuration. Every program is
+ * a set of definitions followed by an expression; the definitions are run
+ * once per configuration and the expression is timed over several runs
+ * after a warm-up. Then the examples are timed on the Evaluator and the
+ * SwitchEvaluator, which differ only in how they dispatch on nodes, and 
+ * the built-in list and matrix procedures against their definitions in
+ * lib/list.scm and lib/matrix.scm.
+ * Run it with "ant benchmark".
+ *
+ * With --check ("ant check") it instead runs the library, the examples and
+ * the benchmark programs on every configuration, including ones in which
+ * one engine calls procedures defined by another, and fails if any result
+ * differs from the interpreter's, or if a built-in list or matrix procedure
+ * gives another result than its definition in lib/list.scm or lib/matrix.scm.
+ *
+ */
+public class Benchmark {
+
+	static final String[][] PROGRAMS = {
+		{ "fib 27",
+		  "(define fib (lambda (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))))",
+		  "(fib 27)" },
+		{ "ackermann 2 300",
+		  "(define ack (lambda (m n) (if (= m 0) (+ n 1) (if (= n 0) (ack (- m 1) 1) (ack (- m 1) (ack m (- n 1)))))))",
+		  "(ack 2 300)" },
+		{ "memo fib 27", // Memoised afresh in each run.
+		  "(define n 27)",
+		  "(define mfib (memo (lambda (n) (if (< n 2) n (+ (mfib (- n 1)) (mfib (- n 2))))))) (mfib n)" },
+		{ "list_ref sum 5000",
+		  "(define l (range 0 5000)) (define lsum (lambda (i acc) (if (= i 5000) acc (lsum (+ i 1) (+ acc (list_ref l i))))))",
+		  "(lsum 0 0)" },
+		{ "vector_ref sum 5000",
+		  "(define v (list_to_vector (range 0 5000))) (define vsum (lambda (i acc) (if (= i 5000) acc (vsum (+ i 1) (+ acc (vector_ref v i))))))",
+		  "(vsum 0 0)" },
+		{ "alist lookup 2000",
+		  "(define alist (map (lambda (k) (list k (* k k))) (range 0 2000))) (define assoc (lambda (k l) (if (= k (car (car l))) (cadr (car l)) (assoc k (cdr l))))) (define asum (lambda (i acc) (if (= i 2000) acc (asum (+ i 1) (+ acc (assoc i alist))))))",
+		  "(asum 0 0)" },
+		{ "hash_map lookup 2000",
+		  "(define hmap (list_to_map (map (lambda (k) (list k (* k k))) (range 0 2000)))) (define hsum (lambda (i acc) (if (= i 2000) acc (hsum (+ i 1) (+ acc (map_get hmap i 0))))))",
+		  "(hsum 0 0)" },
+		{ "list fields 5000",
+		  "(define lpts (map (lambda (i) (list i (* 2 i) (* 3 i))) (range 0 5000))) (define lsum3 (lambda (l acc) (if (null? l) acc (lsum3 (cdr l) (+ acc (caddr (car l)))))))",
+		  "(lsum3 lpts 0)" },
+		{ "record fields 5000",
+		  "(defrecord p3 (x y z)) (define rpts (map (lambda (i) (make_p3 i (* 2 i) (* 3 i))) (range 0 5000))) (define rsum3 (lambda (l acc) (if (null? l) acc (rsum3 (cdr l) (+ acc (p3_z (car l)))))))",
+		  "(rsum3 rpts 0)" },
+		{ "vector_push 5000",
+		  "(define vpush (lambda (i v) (if (= i 5000) (vector_length v) (vpush (+ i 1) (vector_push v i)))))",
+		  "(vpush 0 (list_to_vector (list)))" },
+	};
+
+	/** The interpreted definitions of the built-in list procedures. */
+	static final String LIST_LIBRARY = "src/funclang/lib/list.scm";
+
+	/** The definitions of the built-in matrix procedures on lists of rows. */
+	static final String MATRIX_LIBRARY = "src/funclang/lib/matrix.scm";
+
+	/**
+	 * Checked on every configuration: a file of definitions, or null, and 
+	 * programs that use them, run in order. examples/data.fl redefines the list
+	 * keywords, which the parser rejects, so it is not checked, and 
+	 * examples/lazy.fl only terminates under lazy evaluation, see LAZY_CHECKS.
+	 */
+	static final String[][] CHECKS = {
+		{ "src/funclang/lib/std.scm", "(map (lambda (x) (+ x 1)) (list 1 2 3))" },
+		{ "src/funclang/lib/std.scm", "(append (map (lambda (x) (* x x)) (list 1 2)) (list (length (list 1 2 3)) (cadr (list 1 2)) (caddr (list 1 2 3))))" },
+		{ "src/funclang/lib/std.scm", "(map (lambda (f) (f 1)) (list (lambda (x) (+ x i)) (lambda (x) (map (lambda (y) (* y x)) (list ii iii)))))" },
+		{ "src/funclang/lib/std.scm", "(let ((n 10)) (map (lambda (x) (+ x n)) (map (lambda (x) (* x n)) (list 1 2 3))))" },
+		{ "src/funclang/lib/std.scm", "(map (lambda (x) (+ x 1)) (list 1 #t 3))" },
+		{ "src/funclang/lib/std.scm", "(let ((n 2)) (map (lambda (x) (* x n)) (filter (lambda (x) (< x 4)) (map (lambda (x) (+ x 1)) (list 1 2 3 4)))))",
+		  "(map (lambda (x) (car x)) (map (lambda (x) (+ x 1)) (list 1 \"a\" 3)))", "(filter (lambda (x) x) (map (lambda (x) (= x 2)) (list 1 2 5)))",
+		  "(map (lambda (x) (+ x 1)) (filter (lambda (x) (if x 1 2)) (list #t 3 #f)))", "(map (lambda (x) x) (map (lambda (x) x) 5))",
+		  "(define filter (lambda (p l) l)) (map (lambda (x) (+ x 1)) (filter (lambda (x) #f) (list 1 2)))" }, // Fused pipelines, their errors, and a redefinition.
+		{ LIST_LIBRARY, "(list (map (lambda (x) (+ x 1)) (list 1 2 3)) (filter (lambda (x) (< x 2)) (list 1 2 3)) (reverse (range 0 3)) (foldl (lambda (x acc) (+ x acc)) 0 (list 1 2)) (list_ref (list 1 2) 1))",
+		  "(let ((n 2)) (map (lambda (x) (* x n)) (filter (lambda (x) (< x 4)) (map (lambda (x) (+ x 1)) (list 1 2 3 4)))))", "(map 5 (list 1 2))" }, // The interpreted definitions.
+		{ "src/funclang/examples/loop.fl", "(list (count 5000 0) (iterlength (list 1 2 3) 0) (even 1001) (odd 7))" },
+		{ "src/funclang/examples/math.fl", "(list (even 10) (odd 10) (even 7))" },
+		{ "src/funclang/examples/identity.fl", "((identity identity) (identity 42))" },
+		{ "src/funclang/examples/test1.fl", "(+ 1 1)" },
+		{ "src/funclang/examples/records.fl", "(define t (foldl (lambda (k t) (insert t k)) (list) (list 5 3 8 1 4 3))) (list (inorder t) (member t 4) (member t 7) (node_key (node_left t)))",
+		  "(list (node_key (list)) (node_left 5))" },
+		{ null, "((lambda (av bv cv) (let ((a av) (b bv) (c cv) (d 279) (e 277)) (+ (* a b) (/ c (- d e))))) 3 100 84)" },
+		{ null, "(+ 1 (if 7 2 3))" },
+		{ null, "((lambda (av bv cv) (let ((a av) (b bv) (c cv) (d 279) (e 277)) (+ (* a b) (/ c (- d e))))) 3 100 84)", "(if (< 1 2) (car 5) 0)", "(1 (+ 1 2))", "(if (+ 1 2) 1 2)" },
+		{ null, "(define sq (lambda (x) (* x x))) (define f (lambda (y) (+ (sq y) (sq 2)))) (f 3)", "(define sq (lambda (x) (+ x x))) (f 3)",
+		  "(define g (lambda (k) (let ((sq 1)) (f sq)))) (g 2)", "(sq 1 2)" }, // Inlined calls of a redefined global.
+		{ null, "(list (< (+ 1 2) (* 2 2)) (- 10 (/ 9 (- 5 2)) (* 2 -0.5)))", "(+ 1 (* 2 (- 3 \"x\")))" },
+		{ null, "((lambda (x) x))" },
+		{ null, "(1 2)" },
+		{ null, "(car 5)" },
+		{ null, "(+ #t (car 5))", "(< #t (car 5))", "(if (> \"a\" (car 5)) 1 2)", "(* 2 #f (car 5))", "(- (car 5) #t)", "(+ (lambda (x) x) 1)",
+		  "(= 1 (lambda (x) x))", "(+ length 1)", "(define f (lambda (x y) (list (+ x (car y)) (if (< x (car y)) 1 2)))) (list (f 1 (list 2)) (f #t 5))" }, // Type errors: the first operand that fails, and the class of a closure.
+		{ null, "(let ((f (lambda (g) (g 10)))) (list (f (lambda (x) (* x 2))) (f f)))" },
+		{ null, "(define b 100) (let ((a 1) (b 2)) (let ((f (lambda (x) (lambda (y) (let ((a 10)) (list a b x y (lambda (z) (+ z a b x)))))))) (let ((l ((f 3) 4))) (list l ((car (cdr (cdr (cdr (cdr l))))) 5)))))" }, // Nested captures.
+		{ null, "(define f (lambda (x) (+ x 1))) (define g (lambda (n acc) (if (= n 0) acc (g (- n 1) (f acc))))) (g 3000 0)",
+		  "(define f (lambda (x) (* x 2))) (g 20 1)", "(define f 5) (g 20 1)" }, // Redefinitions deoptimize g.
+		{ null, "(define h (lambda (x y) (list (+ x y) (- x 1) (* x y) (/ x 2) (< x y) (= x 1) (> y x)))) (h 1 2)",
+		  "(h 3 \"s\")", "(h \"s\" 3)", "(h 4 2)" }, // Failed guards despecialise the nodes of h.
+		{ null, "(define app (lambda (f x) (f x))) (define twice (lambda (f x) (app f (app f x)))) (twice (lambda (x) (+ x 1)) 1)",
+		  "(list (twice (lambda (x) (* x 3)) 1) (twice (lambda (x) (- x 1)) 1) (twice (lambda (x) (/ x 2)) 1) (twice (lambda (x) (car x)) (list (list 5))) (twice (lambda (x) x) 7))",
+		  "(define app (lambda (f x) (f (f x)))) (twice (lambda (x) (+ x 1)) 1)" }, // A megamorphic site, then a redefinition.
+		{ null, "(define sq (lambda (x) (* x x))) (define f (lambda (y) (+ (sq y) 1))) (define mk (lambda (n) (lambda (x) (+ x n)))) (list (f 3) ((mk 1) 2))",
+		  "(list (f \"a\") ((mk #t) 2) ((mk 1) \"b\"))", "(define sq (lambda (x) #f)) (f 3)", "(define sq (lambda (x) (- 0 x))) (list (f 3) (map f (list 1 2)))" }, // Typed code called by untyped code, and a global that changes type.
+		{ null, "(define call (lambda (f) (f 1 2 3 4 5))) (list (call (lambda (a b c d e) (list e d c b a))) (call (lambda (a b c d e) (+ a e))))",
+		  "(call (lambda (a b c d) a))", "(call (lambda (a b c d e f) a))", "(define call4 (lambda (f) (f (+ 1 2) (* 2 3) 7 8))) (list (call4 (lambda (a b c d) (- d a))) (call4 (lambda (a) a)) ((lambda () 0)))" }, // Sites linked to one arity, then called with another.
+		{ null, "(define fib (memo (lambda (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))))) (list (fib 60) (memo_stats fib))",
+		  "(define len (memo (lambda (l) (length l)))) (list (len (list 1 (list 2 \"a\") #t)) (len (list 1 (list 2 \"a\") #t)) (len (list 1 (list 2 \"b\") #t)) (len (list)) (memo_stats len))",
+		  "(list ((memo (lambda (x y) (+ x y))) 1 2) ((memo length) (list 1 2)))", "(memo 5)", "(memo_stats fib 1)", "(memo_stats length)", "(memo_stats len2)" }, // Memoised functions and their errors.
+		{ null, "(define inv (memo (lambda (x) (/ 1 x)))) (list (inv 0) (inv (* -1 0)) (memo_stats inv) (= 0 (* -1 0)) (equal 0 (* -1 0)))",
+		  "(define nan (- (/ 1 0) (/ 1 0))) (define one (memo (lambda (x) 1))) (list (one nan) (one nan) (memo_stats one) (set_size (set_add (set_add (hash_set) nan) nan)) (map_get (map_assoc (hash_map) nan 2) nan 0))" }, // Keys of -0 and NaN.
+		{ null, "(define v (list_to_vector (range 0 10))) (list v (vector_ref v 3) (vector_length v) (vector_slice v 2 5) (vector_to_list (vector_slice v 8 10)) (vector_slice v 4 4))",
+		  "(define w (list_to_vector (list 1 \"a\" (list 2) #t))) (list w (vector_ref w 1) (vector_slice w 1 3) (vector_to_list w) (make_vector 3 0.5) (make_vector 2 \"x\") (list_to_vector (list)))",
+		  "(list (vector_ref v 10) (vector_ref v -1) (vector_ref v 1.5) (vector_slice v 5 3) (vector_slice v 0 11) (make_vector -1 0))",
+		  "(let ((m (memo (lambda (v) (vector_length v))))) (list (m v) (m (list_to_vector (range 0 10))) (memo_stats m)))",
+		  "(vector_ref (list 1 2) 0)", "(vector_ref v #t)", "(vector_length 5)" }, // Vectors of numbers and of other values, and their errors.
+		{ null, "(define a (make_array 10)) (define fill (lambda (arr i) (if (= i 10) (array_length arr) (fill (array_set arr i (* i i)) (+ i 1))))) (list (fill a 0) (array_ref a 3) (array_sum a) (array_sum (array_slice a 8 10)))",
+		  "(let ((s (array_set (array_slice a 2 5) 0 -1))) (list (array_length s) (array_fold (lambda (x acc) (cons x acc)) (list) s) (array_ref a 2)))",
+		  "(array_sum (array_set (file_array \"build/check.array\" 3) 1 2.5))", "(array_ref (file_array \"build/check.array\" 2) 1)",
+		  "(list (array_ref a 10) (array_set a -1 0) (array_slice a 3 2) (make_array 1.5) (array_ref a 1.5) (array_sum (make_array 0)) (file_array \"build\" 1))",
+		  "(array_fold (lambda (x) x) 0 a)", "(array_set a 0 #t)", "(array_ref (list_to_vector (list 1)) 0)" }, // Arrays off the heap, their slices, a file, and their errors.
+		{ null, "(define a (list_to_matrix (list (list 2 1) (list 1 3)))) (list a (matrix_mul a a) (matrix_transpose (list_to_matrix (list (list 1 2 3)))) (matrix_solve a (list_to_matrix (list (list 3) (list 5)))) (matrix_ref a 0 1))",
+		  "(list (matrix_solve (list_to_matrix (list (list 0 1) (list 1 0))) (list_to_matrix (list (list 2 3) (list 4 5)))) (matrix_emul a a) (matrix_scale -1 a) (dot (list_to_vector (list 1 2)) (list_to_vector (list 3 4))) (list_to_matrix (list)))",
+		  "(list (matrix_mul a (make_matrix 3 1 1)) (matrix_add a (make_matrix 2 3 0)) (matrix_solve (make_matrix 2 2 1) (make_matrix 2 1 1)) (matrix_solve (make_matrix 2 3 1) a))",
+		  "(list (matrix_ref a 2 0) (matrix_ref a 0 -1) (list_to_matrix (list (list 1 2) (list 3))) (make_matrix 1.5 2 0) (dot (list_to_vector (list 1)) (list_to_vector (list 1 2))))",
+		  "(matrix_ref (list 1) 0 0)", "(list_to_matrix (list (list 1 #t)))", "(dot (list_to_vector (list \"a\")) (list_to_vector (list 1)))", "(matrix_scale a 2)" }, // Matrices, solving, and their errors.
+		{ null, "(define m (list_to_map (list (list 1 \"one\") (list (list 1 2) 3) (list \"a\" #t)))) (list (map_get m (list 1 2) 0) (map_get m 2 0) (map_has m \"a\") (map_size (map_dissoc m 1)) (map_to_list (map_assoc (hash_map) 1 2)) (map_size (map_assoc m 1 \"uno\")))",
+		  "(define big (foldl (lambda (k acc) (map_assoc acc k (* k k))) (hash_map) (range 0 3000))) (list (map_size big) (map_get big 2999 0) (map_size (foldl (lambda (k acc) (map_dissoc acc k)) big (range 0 2990))) (length (map_keys big)))",
+		  "(define s (list_to_set (list 3 1 2 3 (list 1)))) (list (set_size s) (set_has s (list 1)) (set_has s 4) (set_size (set_remove (set_add s 4) 3)) (set_to_list (set_add (hash_set) 5)) (equal s (list_to_set (list (list 1) 2 1 3))))",
+		  "(define tv (foldl (lambda (x acc) (vector_push acc x)) (list_to_vector (list)) (range 0 3000))) (define tw (vector_concat (vector_set tv 1500 \"x\") (vector_concat (list_to_vector (list 1 2)) tv))) (list (vector_length tw) (vector_ref tw 1500) (vector_ref tw 3001) (vector_ref tv 1500) (equal (vector_to_list tw) (append (vector_to_list (vector_set tv 1500 \"x\")) (cons 1 (cons 2 (range 0 3000))))))",
+		  "(list (vector_set tv 3000 0) (vector_set tv -1 0) (equal (vector_push (list_to_vector (list 1)) 2) (list_to_vector (list 1 2))) (equal big (map_assoc big 0 0)) (equal 1 \"1\"))",
+		  "(map_get (list 1) 1 0)", "(set_add m 1)", "(list_to_map (list 1 2))", "(vector_push (list 1) 2)" }, // Persistent maps, sets and vectors, and their errors.
+		{ null, "(defrecord point (x y)) (defrecord empty ()) (define p (make_point 1 \"a\")) (list p (point_x p) (point_y p) (is_point p) (is_point (list 1 \"a\")) (is_empty p) (make_empty) point)",
+		  "(list (equal p (make_point 1 \"a\")) (equal p (make_point 1 2)) (map_get (map_assoc (hash_map) p 1) (make_point 1 \"a\") 0) (point_y (make_point (list 1) (+ 1 2))))",
+		  "(defrecord other (x y)) (list (point_x (make_other 1 2)) (is_other p) (make_point 1) (record_accessor point 2) (record_accessor point 0.5))",
+		  "(defrecord point (x y)) (list (is_point p) (point_x p))", "(point_x 5)", "(record_constructor 1)", "(make_point)" }, // Records, a redefinition of their type, and their errors.
+	};
+
+	/** Checked on the interpreter to give the same result with the built-in list procedures as with LIST_LIBRARY. */
+	static final String[] LIBRARY_CHECKS = {
+		"(list (cadr (list 1 2 3)) (caddr (list 1 2 3)) (length (list 1 2 3)) (append (list 1 2) (list 3)) (reverse (list 1 2 3)))",
+		"(list (map (lambda (x) (* x x)) (list 1 2 3)) (filter (lambda (x) (> x 1)) (list 3 1 2)) (foldl (lambda (x acc) (cons x acc)) (list) (list 1 2 3)))",
+		"(list (list_ref (list 1 2 3) 2) (range 0 5) (range 0.5 3) (range 3 1) (length (range 0 100000)))",
+		"(list (append (list) 5) (append (list 1) 5) (append 5 (list)) (map 5 (list)) (filter 5 (list)) (foldl 5 0 (list)))",
+		"(list (map 5 (list 1 2)) (map (lambda (x y) x) (list 1)) (filter (lambda (x) (if (< x 3) #t 7)) (list 1 2 3 4)) (filter (lambda () #t) (list 1)))",
+		"(list (foldl 5 0 (list 1 2)) (foldl (lambda (x) x) 0 (list 1)))",
+		"(map (lambda (x) (+ x 1)) (list 1 #t))", "(length 5)", "(length (cons 1 2))", "(append (cons 1 2) (list 3))", "(cadr (list 1))",
+		"(reverse (cons 1 2))", "(list_ref (list 1 2) 5)", "(list_ref (list 1 2) #t)", "(list_ref (list 1 2) -1)", "(range 1 #f)", "(range \"a\" 2)",
+		"(map 5 7)", "(filter (lambda (x) 5) 7)", "(length)", "(map (lambda (x) x))",
+	};
+
+	/** Checked on the interpreter to give the same result with the built-in matrix procedures as with MATRIX_LIBRARY. */
+	static final String[] MATRIX_CHECKS = {
+		"(let ((a (list_to_matrix (list (list 1 2 3) (list 4 5 6)))) (b (list_to_matrix (list (list 1 0) (list 0 1) (list 2 -1))))) (matrix_to_list (matrix_mul a b)))",
+		"(let ((a (list_to_matrix (list (list 1 2 3) (list 4 5 6))))) (matrix_to_list (matrix_sub (matrix_add a (matrix_scale 2 a)) (matrix_emul a a))))",
+		"(let ((a (list_to_matrix (list (list 1 2 3) (list 4 5 6))))) (list (matrix_to_list (matrix_transpose a)) (matrix_rows a) (matrix_cols a) (matrix_ref a 1 2)))",
+		"(list (matrix_to_list (make_matrix 2 3 0.5)) (matrix_to_list (matrix_transpose (list_to_matrix (list)))) (dot (list_to_vector (list 1 2 3)) (list_to_vector (list 4 5 6))))",
+		"(let ((a (list_to_matrix (map (lambda (i) (map (lambda (j) (- (* i j) (* 3 j))) (range 0 110))) (range 0 110))))) (let ((p (matrix_mul a (matrix_transpose a)))) (list (matrix_ref p 0 0) (matrix_ref p 57 93) (matrix_ref p 109 109))))", // Split across cores.
+	};
+
+	/** Checked on the lazy configurations only: a file of definitions, or null, a program, and its value. */
+	static final String[][] LAZY_CHECKS = {
+		{ "src/funclang/examples/lazy.fl", "(g (f 1) (+ 1 2))", "3" },
+		{ null, "(define from (lambda (n) (cons n (from (+ n 1))))) (define take (lambda (k l) (if (= k 0) (list) (cons (car l) (take (- k 1) (cdr l)))))) (take 5 (from 1))", "(1 2 3 4 5)" },
+		{ null, "(define loop (lambda () (loop))) (let ((x (loop)) (y (car 5)) (z 2)) (list z (car (list 1 (loop)))))", "(2 1)" },
+		{ null, "(define sum (lambda (n acc) (if (= n 0) acc (sum (- n 1) (+ acc n))))) (sum 10000 0)", "50005000" }, // Strict in acc: no chain of thunks.
+		{ null, "(define from (lambda (n) (cons n (from (+ n 1))))) (define take (lambda (k l) (if (= k 0) (list) (cons (car l) (take (- k 1) (cdr l)))))) (take 3 (map (lambda (x) (* x 2)) (from 1)))", "(2 4 6)" },
+		{ null, "(define from (lambda (n) (cons n (from (+ n 1))))) (define take (lambda (k l) (if (= k 0) (list) (cons (car l) (take (- k 1) (cdr l)))))) "
+		  + "(list (take 3 (filter (lambda (x) (> x 5)) (range 0 1000000000))) (take 3 (append (list 0) (from 1))) (cadr (map (lambda (x) (car x)) (list 1 (list 2)))) (length (filter (lambda (x) (< x 3)) (range 0 10))))",
+		  "((6 7 8) (0 1 2) 2 3)" }, // The built-in list procedures on infinite lists, and an element that is never used.
+	};
+
+	/** Timed on the visitor and the switch dispatch: a name, a file of examples/ and an expression. */
+	static final String[][] EXAMPLES = {
+		{ "loop.fl", "src/funclang/examples/loop.fl", "(list (count 20000 0) (iterlength (list 1 2 3 4 5 6 7 8) 0) (even 20001))" },
+		{ "math.fl", "src/funclang/examples/math.fl", "(list (even 2000) (odd 2001))" },
+		{ "identity.fl", "src/funclang/examples/identity.fl", "((identity identity) (identity 42))" },
+		{ "test1.fl", "src/funclang/examples/test1.fl", "(/ (* (- 6 1) 2) (+ 1 1))" },
+	};
+
+	/** Timed with the built-in matrix procedures and with MATRIX_LIBRARY: a name, definitions and an expression. */
+	static final String[][] MATRICES = {
+		{ "mul 30x30", "(define a (list_to_matrix (map (lambda (i) (map (lambda (j) (+ i j)) (range 0 30))) (range 0 30))))", "(matrix_ref (matrix_mul a a) 29 29)" },
+		{ "mul 60x60", "(define a (list_to_matrix (map (lambda (i) (map (lambda (j) (+ i j)) (range 0 60))) (range 0 60))))", "(matrix_ref (matrix_mul a a) 59 59)" },
+		{ "transpose 100x100", "(define a (list_to_matrix (map (lambda (i) (map (lambda (j) (- i j)) (range 0 100))) (range 0 100))))", "(matrix_ref (matrix_transpose a) 99 0)" },
+		{ "add 100x100", "(define a (list_to_matrix (map (lambda (i) (map (lambda (j) (- i j)) (range 0 100))) (range 0 100))))", "(matrix_ref (matrix_add a a) 50 49)" },
+		{ "scale 100x100", "(define a (list_to_matrix (map (lambda (i) (map (lambda (j) (- i j)) (range 0 100))) (range 0 100))))", "(matrix_ref (matrix_scale 3 a) 50 49)" },
+		{ "dot 10000", "(define u (list_to_vector (range 0 10000)))", "(dot u u)" },
+	};
+
+	/** Timed with the built-in list procedures and with LIST_LIBRARY: a name, definitions and an expression. */
+	static final String[][] LIBRARY = {
+		{ "length 100000", "(define l (range 0 100000))", "(length l)" },
+		{ "map 10000", "(define l (range 0 10000))", "(cadr (map (lambda (x) (* x x)) l))" },
+		{ "filter 10000", "(define l (range 0 10000))", "(caddr (filter (lambda (x) (> x 5000)) l))" },
+		{ "append 10000", "(define l (range 0 10000))", "(car (append l l))" },
+		{ "reverse 10000", "(define l (range 0 10000))", "(car (reverse l))" },
+		{ "foldl 10000", "(define l (range 0 10000))", "(foldl (lambda (x acc) (+ x acc)) 0 l)" },
+		{ "list_ref 10000", "(define l (range 0 10000))", "(list_ref l 9999)" },
+		{ "range 10000", "(define n 10000)", "(car (range 0 n))" },
+	};
+
+	static final int WARMUP = 15;
+	static final int RUNS = 10;
+
+	/** A configuration creates a fresh engine: a function from programs to values. */
+	static class Configuration {
+		String _name;
+		Supplier<Function<Program, Value>> _engine;
+		boolean _lazy; // Only checked to fail where the interpreter fails, as it may demand another erroneous value first.
+		Configuration(String name, Supplier<Function<Program, Value>> engine) {
+			this(name, engine, false);
+		}
+		Configuration(String name, Supplier<Function<Program, Value>> engine, boolean lazy) {
+			_name = name;
+			_engine = engine;
+			_lazy = lazy;
+		}
+	}
+
+	static List<Configuration> configurations() {
+		List<Configuration> result = new ArrayList<Configuration>();
+		result.add(new Configuration("interpreter", () -> {
+			Evaluator eval = new Evaluator(new Reader());
+			return p -> eval.valueOf(p);
+		}));
+		result.add(new Configuration("compiled", () -> {
+			Evaluator eval = new Evaluator(new Reader());
+			eval.setCompiler(true);
+			return p -> eval.valueOf(p);
+		}));
+		result.add(new Configuration("switch", () -> {
+			Evaluator eval = new SwitchEvaluator(new Reader());
+			return p -> eval.valueOf(p);
+		}));
+		result.add(new Configuration("typed", () -> {
+			Evaluator eval = new Evaluator(new Reader());
+			eval.setTypes(true, false);
+			return p -> eval.valueOf(p);
+		}));
+		result.add(new Configuration("lazy", () -> {
+			Evaluator eval = new Evaluator(new Reader());
+			eval.setLazy(true);
+			return p -> eval.valueOf(p);
+		}, true));
+		result.add(new Configuration("vm", () -> {
+			VM vm = new VM(new Evaluator(new Reader()));
+			return p -> vm.valueOf(p);
+		}));
+		return result;
+	}
+
+	/** The interpreter, with the procedures of library, such as LIST_LIBRARY, rather than the built-in ones. */
+	static Configuration interpretedLibrary(String library) {
+		return new Configuration(library.substring(library.indexOf("lib/")), () -> {
+			Evaluator eval = new Evaluator(new Reader());
+			try {
+				eval.valueOf(new Reader().parse(Reader.readFile(library)));
+			} catch (java.io.IOException e) {
+				throw new java.io.UncheckedIOException(e);
+			}
+			return p -> eval.valueOf(p);
+		});
+	}
+
+	/** The configurations above, other engines, and engines calling procedures defined by another engine. */
+	static List<Configuration> checkConfigurations() {
+		List<Configuration> result = configurations();
+		result.add(new Configuration("tail calls", () -> {
+			Evaluator eval = new Evaluator(new Reader());
+			eval.setTailCalls(true);
+			return p -> eval.valueOf(p);
+		}));
+		result.add(new Configuration("cek", () -> {
+			CEKMachine machine = new CEKMachine(new Evaluator(new Reader()));
+			return p -> machine.valueOf(p);
+		}));
+		result.add(new Configuration("vm over interpreter", () -> { // Definitions by the Evaluator, expressions by the VM.
+			Evaluator eval = new Evaluator(new Reader());
+			VM vm = new VM(eval);
+			return p -> p.decls().isEmpty() ? vm.valueOf(p) : eval.valueOf(p);
+		}));
+		result.add(new Configuration("interpreter over vm", () -> {
+			Evaluator eval = new Evaluator(new Reader());
+			VM vm = new VM(eval);
+			return p -> p.decls().isEmpty() ? eval.valueOf(p) : vm.valueOf(p);
+		}));
+		result.add(new Configuration("cek over vm", () -> {
+			Evaluator eval = new Evaluator(new Reader());
+			CEKMachine machine = new CEKMachine(eval);
+			VM vm = new VM(eval);
+			return p -> p.decls().isEmpty() ? machine.valueOf(p) : vm.valueOf(p);
+		}));
+		result.add(new Configuration("optimised", () -> { // As in the REPL: optimised, typed and tiered.
+			Evaluator eval = new Evaluator(new Reader());
+			eval.setCompiler(true);
+			eval.setTypes(true, false);
+			Optimizer optimizer = new Optimizer((Env.GlobalEnv) eval.initEnv);
+			return p -> eval.valueOf(optimizer.optimize(p));
+		}));
+		result.add(new Configuration("partially evaluated", () -> { // Specialised on the globals defined so far.
+			Evaluator eval = new Evaluator(new Reader());
+			return p -> eval.valueOf(new PartialEvaluator(((Env.GlobalEnv) eval.initEnv).bindings()).specialize(p));
+		}));
+		result.add(new Configuration("typed tail calls", () -> {
+			Evaluator eval = new Evaluator(new Reader());
+			eval.setTypes(true, false);
+			eval.setTailCalls(true);
+			return p -> eval.valueOf(p);
+		}));
+		result.add(new Configuration("lazy tail calls", () -> {
+			Evaluator eval = new Evaluator(new Reader());
+			eval.setLazy(true);
+			eval.setTailCalls(true);
+			return p -> eval.valueOf(p);
+		}, true));
+		result.add(new Configuration("optimised tail calls", () -> {
+			Evaluator eval = new Evaluator(new Reader());
+			eval.setTailCalls(true);
+			Optimizer optimizer = new Optimizer((Env.GlobalEnv) eval.initEnv);
+			return p -> eval.valueOf(optimizer.optimize(p));
+		}));
+		result.add(new Configuration("cached", () -> { // Each value that is stored is then given again by the cache.
+			Evaluator eval = new Evaluator(new Reader());
+			ResultCache cache;
+			try {
+				java.io.File file = java.io.File.createTempFile("funclang", ".cache");
+				file.deleteOnExit();
+				new java.io.File(file.getPath() + ResultCache.LOCK).deleteOnExit();
+				cache = new ResultCache(file, "", eval);
+			} catch (java.io.IOException e) {
+				throw new java.io.UncheckedIOException(e);
+			}
+			return p -> {
+				Value value = cache.valueOf(p, eval::valueOf);
+				return cache.contains(p) ? cache.valueOf(p, eval::valueOf) : value;
+			};
+		}));
+		return result;
+	}
+
+	/** Runs CHECKS and PROGRAMS on every configuration. Returns whether all agree. */
+	static boolean check() throws java.io.IOException {
+		Reader reader = new Reader();
+		List<String[]> checks = new ArrayList<String[]>();
+		for (String[] check : CHECKS) {
+			String[] programs = check.clone();
+			programs[0] = check[0] == null ? null : Reader.readFile(check[0]);
+			checks.add(programs);
+		}
+		for (String[] program : PROGRAMS)
+			checks.add(new String[] { program[1], program[2] });
+		boolean agree = true;
+		for (String[] check : checks) {
+			String expected = null, expected_outcome = null;
+			boolean same = true;
+			for (Configuration c : checkConfigurations()) {
+				Function<Program, Value> engine = c._engine.get();
+				String result = "", outcome = ""; // The outcome has "error" for every error.
+				try {
+					for (String program : check)
+						if (program != null) {
+							Value value = engine.apply(reader.parse(program));
+							result += value.tostring() + " ";
+							outcome += (value instanceof Value.DynamicError ? "error" : value.tostring()) + " ";
+						}
+				} catch (RuntimeException | StackOverflowError e) {
+					result += e.toString();
+					outcome += "error";
+				}
+				if (expected == null) {
+					expected = result;
+					expected_outcome = outcome;
+				} else if (c._lazy ? !expected_outcome.equals(outcome) : !expected.equals(result)) {
+					System.out.println("MISMATCH " + check[check.length - 1] + "\n  interpreter: " + expected + "\n  " + c._name + ": " + result);
+					same = agree = false;
+				}
+			}
+			if (same) System.out.println("ok   " + check[check.length - 1] + " => " + expected);
+		}
+		agree &= checkLibrary(LIST_LIBRARY, LIBRARY_CHECKS);
+		agree &= checkLibrary(MATRIX_LIBRARY, MATRIX_CHECKS);
+		for (String[] check : LAZY_CHECKS)
+			for (Configuration c : checkConfigurations()) {
+				if (!c._lazy) continue;
+				Function<Program, Value> engine = c._engine.get();
+				String result;
+				try {
+					if (check[0] != null) engine.apply(reader.parse(Reader.readFile(check[0])));
+					result = engine.apply(reader.parse(check[1])).tostring();
+				} catch (RuntimeException | StackOverflowError e) {
+					result = e.toString();
+				}
+				if (!result.equals(check[2])) {
+					System.out.println("MISMATCH " + check[1] + "\n  expected: " + check[2] + "\n  " + c._name + ": " + result);
+					agree = false;
+				} else System.out.println("ok   " + check[1] + " => " + result + " (" + c._name + ")");
+			}
+		return agree;
+	}
+
+	/** Runs checks on the interpreter with the built-in procedures and with those of library. Returns whether they agree. */
+	static boolean checkLibrary(String library, String[] checks) {
+		Reader reader = new Reader();
+		boolean agree = true;
+		List<Configuration> configurations = Arrays.asList(configurations().get(0), interpretedLibrary(library));
+		for (String check : checks) {
+			String[] results = new String[configurations.size()];
+			for (int i = 0; i < results.length; i++) {
+				try {
+					results[i] = configurations.get(i)._engine.get().apply(reader.parse(check)).tostring();
+				} catch (RuntimeException | StackOverflowError e) {
+					results[i] = e.toString();
+				}
+			}
+			if (!results[0].equals(results[1])) {
+				System.out.println("MISMATCH " + check + "\n  built in: " + results[0] + "\n  interpreted: " + results[1]);
+				agree = false;
+			} else System.out.println("ok   " + check + " => " + results[0] + " (built in)");
+		}
+		return agree;
+	}
+
+	public static void main(String[] args) throws java.io.IOException {
+		if (args.length > 0 && args[0].equals("--check"))
+			System.exit(check() ? 0 : 1);
+		time("program", configurations(), Arrays.asList(PROGRAMS));
+		List<String[]> examples = new ArrayList<String[]>();
+		for (String[] example : EXAMPLES)
+			examples.add(new String[] { example[0], Reader.readFile(example[1]), example[2] });
+		List<Configuration> dispatch = new ArrayList<Configuration>(); // The visitor and the switch.
+		for (Configuration c : configurations())
+			if (c._name.equals("interpreter") || c._name.equals("switch")) dispatch.add(c);
+		System.out.println();
+		time("example", dispatch, examples);
+		System.out.println();
+		Configuration builtIn = new Configuration("built in", configurations().get(0)._engine); // The interpreter.
+		time("list procedure", Arrays.asList(builtIn, interpretedLibrary(LIST_LIBRARY)), Arrays.asList(LIBRARY));
+		System.out.println();
+		time("matrix procedure", Arrays.asList(builtIn, interpretedLibrary(MATRIX_LIBRARY)), Arrays.asList(MATRICES));
+	}
+
+	/** Prints the times of programs, each a name, definitions and an expression, on configurations. */
+	static void time(String title, List<Configuration> configurations, List<String[]> programs) {
+		Reader reader = new Reader();
+		System.out.printf("%-24s", title);
+		for (Configuration c : configurations)
+			System.out.printf("%16s", c._name);
+		System.out.println("   (best of " + RUNS + " runs, ms)");
+		for (String[] program : programs) {
+			System.out.printf("%-24s", program[0]);
+			String expected = null;
+			for (Configuration c : configurations) {
+				Function<Program, Value> engine = c._engine.get();
+				engine.apply(reader.parse(program[1]));
+				Program timed = reader.parse(program[2]);
+				long best = Long.MAX_VALUE;
+				String result = null;
+				for (int run = 0; run < WARMUP + RUNS; run++) {
+					long start = System.nanoTime();
+					result = engine.apply(timed).tostring();
+					long time = System.nanoTime() - start;
+					if (run >= WARMUP && time < best) best = time;
+				}
+				if (expected == null) expected = result;
+				if (!expected.equals(result))
+					System.out.printf("%16s", "wrong: " + result);
+				else System.out.printf("%16.1f", best / 1e6);
+			}
+			System.out.println();
+		}
+	}
+}
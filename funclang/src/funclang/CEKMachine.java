@@ -0,0 +1,476 @@
+package funclang;
+import static funclang.AST.*;
+import static funclang.Value.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import funclang.Env.*;
+
+/**
+ * A second engine for funclang, organized as a CEK machine. The state of a
+ * computation is a Control (the expression being evaluated, or the value
+ * being returned), an Environment, and a Kontinuation. The continuation is
+ * a linked list of frames on the heap instead of Java frames, so the depth
+ * of recursion a program can reach is limited by the heap rather than by
+ * the Java stack.
+ *
+ * Every transition of the machine is one step. The machine can be run for
+ * a bounded number of steps and resumed later, see load, run and result.
+ *
+ * The machine runs the same AST.Program as the Evaluator and shares its
+ * global environment, so the two engines see the same definitions.
+ *
+ */
+public class CEKMachine implements Visitor<Void> {
+
+	private GlobalEnv _global_env;
+	private Reader _reader;
+	private Evaluator _evaluator; // Calls the functions passed to primitives.
+
+	// Registers of the machine.
+	private Exp _exp; // Expression to evaluate, or null when returning _val.
+	private Value _val; // Value being returned to the continuation _k.
+	private Env _env;
+	private Cont _k; // null is the empty continuation.
+	private long _steps;
+
+	public CEKMachine(Evaluator evaluator) {
+		_global_env = (GlobalEnv) evaluator.initEnv;
+		_reader = evaluator._reader;
+		_evaluator = evaluator;
+	}
+
+	Value valueOf(Program p) {
+		load(p);
+		while (!run(Long.MAX_VALUE));
+		return result();
+	}
+
+	/** Makes p the program that the following calls to run will execute. */
+	public void load(Program p) {
+		_exp = null;
+		_val = null;
+		_env = _global_env;
+		_k = null;
+		_steps = 0;
+		enter(p);
+	}
+
+	/**
+	 * Runs at most max_steps transitions. Returns true once the program
+	 * has finished, and false if it was suspended; calling run again
+	 * resumes it where it stopped.
+	 */
+	public boolean run(long max_steps) {
+		for (; max_steps > 0; max_steps--) {
+			if (halted()) return true;
+			_steps++;
+			try {
+				if (_exp != null) {
+					Exp exp = _exp;
+					_exp = null;
+					exp.accept(this, _env);
+				} else {
+					Cont k = _k;
+					_k = k._next;
+					k.apply(this, _val);
+				}
+			} catch (ClassCastException e) { // Dynamic type error, as in Evaluator.visit(Program).
+				abort(new DynamicError(e.getMessage()));
+			}
+		}
+		return halted();
+	}
+
+	public boolean halted() { return _exp == null && _k == null; }
+
+	public Value result() { return halted() ? _val : null; }
+
+	public long steps() { return _steps; }
+
+	// Transitions used by the visitor and by the continuation frames.
+
+	private void eval(Exp exp, Env env) {
+		_exp = exp;
+		_env = env;
+	}
+
+	private void ret(Value val) {
+		_val = val;
+	}
+
+	private void push(Cont k) {
+		k._next = _k;
+		_k = k;
+	}
+
+	private void enter(Program p) {
+		push(new ProgramK(p));
+		ret(UnitVal.v); // Starts the program frame on its first declaration.
+	}
+
+	/** Unwinds to the innermost running program, which then returns error. */
+	private void abort(DynamicError error) {
+		while (_k != null && !(_k instanceof ProgramK))
+			_k = _k._next;
+		if (_k != null) _k = _k._next;
+		_exp = null;
+		ret(error);
+	}
+
+	private void call(CallExp e, FunVal operator, Value[] actuals) {
+		Value error = Evaluator.checkCall(operator, e);
+		if (error != null) {
+			ret(error);
+			return;
+		}
+		if (operator instanceof Primitive) { // Implemented in Java: the functions it calls run on the Evaluator.
+			ret(((Primitive) operator).apply(actuals, _evaluator));
+			return;
+		}
+		if (operator instanceof VM.Closure) { // Created by the VM, which runs its body.
+			ret(((VM.Closure) operator).apply(actuals));
+			return;
+		}
+		// No frame is pushed for the body: calls in tail position do not grow the continuation.
+		eval(operator.body(), operator.frame(actuals));
+	}
+
+	// Control is an expression: the visitor performs one step for it.
+
+	public Void visit(AddExp e, Env env) { return arith(e, env); }
+	public Void visit(SubExp e, Env env) { return arith(e, env); }
+	public Void visit(MultExp e, Env env) { return arith(e, env); }
+	public Void visit(DivExp e, Env env) { return arith(e, env); }
+
+	private Void arith(CompoundArithExp e, Env env) {
+		push(new ArithK(e, env));
+		eval(e.all().get(0), env);
+		return null;
+	}
+
+	public Void visit(UnitExp e, Env env) { ret(new UnitVal()); return null; }
+	public Void visit(NumExp e, Env env) { ret(e.value()); return null; }
+	public Void visit(StrExp e, Env env) { ret(e.value()); return null; }
+	public Void visit(BoolExp e, Env env) { ret(e.value()); return null; }
+
+	public Void visit(Program p, Env env) {
+		enter(p);
+		return null;
+	}
+
+	public Void visit(VarExp e, Env env) {
+		if (e.depth() >= 0)
+			ret(env.get(e.depth(), e.slot()));
+		else if (e.depth() == VarExp.GLOBAL)
+			ret(e.global().get(_global_env));
+		else
+			ret(env.get(e.name()));
+		return null;
+	}
+
+	public Void visit(LetExp e, Env env) {
+		push(new LetK(e, env));
+		eval(e.value_exps().get(0), env);
+		return null;
+	}
+
+	public Void visit(DefineDecl d, Env env) {
+		push(new DefineK(d));
+		eval(d.value_exp(), env);
+		return null;
+	}
+
+	public Void visit(ReadExp e, Env env) {
+		push(new ReadK());
+		eval(e.file(), env);
+		return null;
+	}
+
+	public Void visit(EvalExp e, Env env) {
+		push(new EvalK());
+		eval(e.code(), env);
+		return null;
+	}
+
+	public Void visit(LambdaExp e, Env env) {
+		ret(Evaluator.closure(e, env, _global_env));
+		return null;
+	}
+
+	public Void visit(CallExp e, Env env) {
+		push(new OperatorK(e, env));
+		eval(e.operator(), env);
+		return null;
+	}
+
+	public Void visit(IfExp e, Env env) {
+		push(new IfK(e, env));
+		eval(e.conditional(), env);
+		return null;
+	}
+
+	public Void visit(LessExp e, Env env) { return compare(e, env); }
+	public Void visit(EqualExp e, Env env) { return compare(e, env); }
+	public Void visit(GreaterExp e, Env env) { return compare(e, env); }
+
+	private Void compare(BinaryComparator e, Env env) {
+		push(new CompareK(e, env));
+		eval(e.first_exp(), env);
+		return null;
+	}
+
+	public Void visit(CarExp e, Env env) {
+		push(new CarK());
+		eval(e.arg(), env);
+		return null;
+	}
+
+	public Void visit(CdrExp e, Env env) {
+		push(new CdrK());
+		eval(e.arg(), env);
+		return null;
+	}
+
+	public Void visit(ConsExp e, Env env) {
+		push(new ConsK(e, env));
+		eval(e.fst(), env);
+		return null;
+	}
+
+	public Void visit(ListExp e, Env env) {
+		if (e.elems().isEmpty()) {
+			ret(new Null());
+			return null;
+		}
+		//Order of evaluation: left to right, as in Evaluator.visit(ListExp).
+		push(new ListK(e, env));
+		eval(e.elems().get(0), env);
+		return null;
+	}
+
+	public Void visit(NullExp e, Env env) {
+		push(new NullK());
+		eval(e.arg(), env);
+		return null;
+	}
+
+	// Control is a value: the innermost frame of the continuation consumes it.
+
+	static abstract class Cont {
+		Cont _next;
+		abstract void apply(CEKMachine m, Value val);
+	}
+
+	/** Runs the declarations of a program, then its expression. */
+	static class ProgramK extends Cont {
+		private Program _p;
+		private int _index = 0;
+		ProgramK(Program p) { _p = p; }
+		void apply(CEKMachine m, Value val) {
+			List<DefineDecl> decls = _p.decls();
+			if (_index < decls.size()) {
+				m.push(this);
+				m.eval(decls.get(_index++), m._global_env);
+			} else if (_index == decls.size()) {
+				_index++;
+				m.push(this);
+				m.eval(_p.e(), m._global_env);
+			} else m.ret(val);
+		}
+	}
+
+	static class DefineK extends Cont {
+		private DefineDecl _d;
+		DefineK(DefineDecl d) { _d = d; }
+		void apply(CEKMachine m, Value val) {
+			m._global_env.extend(_d.name(), val);
+			m.ret(new UnitVal());
+		}
+	}
+
+	/** Accumulates the operands of +, -, * and / from left to right. */
+	static class ArithK extends Cont {
+		private CompoundArithExp _e;
+		private Env _env;
+		private int _index = 0;
+		private double _result;
+		ArithK(CompoundArithExp e, Env env) {
+			_e = e; _env = env;
+			_result = (e instanceof MultExp) ? 1 : 0;
+		}
+		void apply(CEKMachine m, Value val) {
+			double v = Evaluator.num(val).v(); // Dynamic type-checking
+			if (_index == 0 && (_e instanceof SubExp || _e instanceof DivExp))
+				_result = v;
+			else if (_e instanceof AddExp) _result += v;
+			else if (_e instanceof SubExp) _result -= v;
+			else if (_e instanceof MultExp) _result *= v;
+			else _result /= v;
+			List<Exp> operands = _e.all();
+			if (++_index < operands.size()) {
+				m.push(this);
+				m.eval(operands.get(_index), _env);
+			} else m.ret(new NumVal(_result));
+		}
+	}
+
+	static class LetK extends Cont {
+		private LetExp _e;
+		private Env _env;
+		private Value[] _values;
+		private int _index = 0;
+		LetK(LetExp e, Env env) { _e = e; _env = env; _values = new Value[e.value_exps().size()]; }
+		void apply(CEKMachine m, Value val) {
+			_values[_index++] = val;
+			if (_index < _values.length) {
+				m.push(this);
+				m.eval(_e.value_exps().get(_index), _env);
+			} else m.eval(_e.body(), new FrameEnv(_env, _e.names(), _values));
+		}
+	}
+
+	static class OperatorK extends Cont {
+		private CallExp _e;
+		private Env _env;
+		OperatorK(CallExp e, Env env) { _e = e; _env = env; }
+		void apply(CEKMachine m, Value val) {
+			if (!(val instanceof FunVal)) {
+				m.ret(Evaluator.operatorError(_e));
+				return;
+			}
+			FunVal operator = (FunVal) val;
+			List<Exp> operands = _e.operands();
+			if (operands.isEmpty()) {
+				m._env = _env;
+				m.call(_e, operator, new Value[0]);
+				return;
+			}
+			m.push(new OperandK(_e, _env, operator));
+			m.eval(operands.get(0), _env);
+		}
+	}
+
+	/** Call-by-value: the operands are evaluated from left to right. */
+	static class OperandK extends Cont {
+		private CallExp _e;
+		private Env _env;
+		private FunVal _operator;
+		private Value[] _actuals;
+		private int _index = 0;
+		OperandK(CallExp e, Env env, FunVal operator) {
+			_e = e; _env = env; _operator = operator;
+			_actuals = new Value[e.operands().size()];
+		}
+		void apply(CEKMachine m, Value val) {
+			_actuals[_index++] = val;
+			if (_index < _actuals.length) {
+				m.push(this);
+				m.eval(_e.operands().get(_index), _env);
+			} else {
+				m._env = _env;
+				m.call(_e, _operator, _actuals);
+			}
+		}
+	}
+
+	static class IfK extends Cont {
+		private IfExp _e;
+		private Env _env;
+		IfK(IfExp e, Env env) { _e = e; _env = env; }
+		void apply(CEKMachine m, Value val) {
+			if (!(val instanceof BoolVal)) {
+				m.ret(Evaluator.conditionError(_e));
+				return;
+			}
+			// The branch replaces this frame, so it is in tail position.
+			m.eval(((BoolVal) val).v() ? _e.then_exp() : _e.else_exp(), _env);
+		}
+	}
+
+	static class CompareK extends Cont {
+		private BinaryComparator _e;
+		private Env _env;
+		private NumVal _first = null;
+		CompareK(BinaryComparator e, Env env) { _e = e; _env = env; }
+		void apply(CEKMachine m, Value val) {
+			if (_first == null) {
+				_first = Evaluator.num(val);
+				m.push(this);
+				m.eval(_e.second_exp(), _env);
+				return;
+			}
+			double first = _first.v(), second = Evaluator.num(val).v();
+			if (_e instanceof LessExp) m.ret(new BoolVal(first < second));
+			else if (_e instanceof EqualExp) m.ret(new BoolVal(first == second));
+			else m.ret(new BoolVal(first > second));
+		}
+	}
+
+	static class CarK extends Cont {
+		void apply(CEKMachine m, Value val) { m.ret(Evaluator.pair(val).fst()); }
+	}
+
+	static class CdrK extends Cont {
+		void apply(CEKMachine m, Value val) { m.ret(Evaluator.pair(val).snd()); }
+	}
+
+	static class NullK extends Cont {
+		void apply(CEKMachine m, Value val) { m.ret(new BoolVal(val instanceof Null)); }
+	}
+
+	static class ConsK extends Cont {
+		private ConsExp _e;
+		private Env _env;
+		private Value _first = null;
+		ConsK(ConsExp e, Env env) { _e = e; _env = env; }
+		void apply(CEKMachine m, Value val) {
+			if (_first == null) {
+				_first = val;
+				m.push(this);
+				m.eval(_e.snd(), _env);
+			} else m.ret(new PairVal(_first, val));
+		}
+	}
+
+	static class ListK extends Cont {
+		private ListExp _e;
+		private Env _env;
+		private Value[] _elems;
+		private int _index = 0;
+		ListK(ListExp e, Env env) { _e = e; _env = env; _elems = new Value[e.elems().size()]; }
+		void apply(CEKMachine m, Value val) {
+			_elems[_index++] = val;
+			if (_index < _elems.length) {
+				m.push(this);
+				m.eval(_e.elems().get(_index), _env);
+				return;
+			}
+			Value result = new Null();
+			for (int i = _elems.length - 1; i >= 0; i--)
+				result = new PairVal(_elems[i], result);
+			m.ret(result);
+		}
+	}
+
+	static class EvalK extends Cont {
+		void apply(CEKMachine m, Value val) {
+			Program p = m._reader.parse(Evaluator.string(val).v());
+			m.enter(p);
+		}
+	}
+
+	static class ReadK extends Cont {
+		void apply(CEKMachine m, Value val) {
+			StringVal fileName = Evaluator.string(val);
+			try {
+				String text = m._reader.load("" + System.getProperty("user.dir") + File.separator + fileName.v());
+				m.ret(new StringVal(text));
+			} catch (IOException ex) {
+				m.ret(new DynamicError(ex.getMessage()));
+			}
+		}
+	}
+}
@@ -0,0 +1,654 @@
+package funclang;
+import static funclang.AST.*;
+import static funclang.Value.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import funclang.Env.*;
+
+/**
+ * Compiles the body of a hot LambdaExp to JVM bytecode. The generated
+ * class is defined as a hidden class, so the JIT of the JVM can inline
+ * and optimize the arithmetic, comparisons and calls inside the body
+ * instead of dispatching through the AST.Visitor at every node.
+ *
+ * Compiled code produces the same values and the same DynamicErrors as
+ * the Evaluator: operands are cast exactly where the Evaluator casts them,
+ * so dynamic type errors still surface as a ClassCastException that
+ * Evaluator.visit(Program) turns into a DynamicError, and errors that the
+ * Evaluator returns as values are built by the same messages below.
+ *
+ * Bodies that create closures (LambdaExp), or that use eval and read, are
+ * not compiled; calls to them stay in the Evaluator.
+ *
+ * Call counts and compiled code are kept per Compiler, and so per
+ * Evaluator, because compiled code refers to the global environment of
+ * the Evaluator it was compiled for.
+ *
+ * Compiled code is the second tier of the Evaluator. A lambda is promoted
+ * once it has been called THRESHOLD times, or sooner if it calls itself
+ * BACKEDGE_THRESHOLD times, as a loop written as recursion does. Compiled
+ * code speculates that the globals it reads keep the values they had when
+ * it was compiled and uses them as constants. Redefining one of them
+ * deoptimizes it: running activations fall back to looking the global up,
+ * and the lambda is interpreted again until it is hot enough to be
+ * compiled with the new values.
+ *
+ */
+public class Compiler {
+
+	/** Number of calls after which a lambda is compiled. */
+	public static final int THRESHOLD = 1000;
+
+	/** Number of calls of a lambda from its own body after which it is compiled. */
+	public static final int BACKEDGE_THRESHOLD = 100;
+
+	/** Number of deoptimizations after which a lambda is compiled without speculating on globals. */
+	public static final int MAX_DEOPTS = 3;
+
+	/** Entry point of a compiled lambda body. */
+	public interface Code {
+		Value call(Value[] actuals, Env env);
+	}
+
+	@SuppressWarnings("serial")
+	static class NotCompilable extends RuntimeException {
+		NotCompilable(String message) {
+			super(message);
+		}
+	}
+
+	/** Call counts of a lambda, and its compiled body once it is hot. */
+	static class Profile {
+		int _calls = 0;
+		int _backedges = 0; // Calls from its own body.
+		int _deopts = 0;
+		boolean _failed = false; // The body cannot be compiled.
+		Code _code = null;
+		Assumption _assumption = null; // Of _code, or null if _code does not speculate.
+	}
+
+	/** The globals that a compiled body read as constants still have those values. */
+	static class Assumption {
+		boolean _valid = true; // Read by the generated code before it uses a constant.
+		Profile _profile;
+		Assumption(Profile profile) {
+			_profile = profile;
+		}
+	}
+
+	private Evaluator _evaluator;
+	private MethodHandles.Lookup _lookup = MethodHandles.lookup();
+	private Map<LambdaExp, Profile> _profiles = new WeakHashMap<LambdaExp, Profile>(); // AST nodes compare by identity.
+	private Map<String, List<Assumption>> _dependents = new HashMap<String, List<Assumption>>(); // By the globals they read.
+
+	public Compiler(Evaluator evaluator) {
+		_evaluator = evaluator;
+		((GlobalEnv) evaluator.initEnv).watch(this::redefined);
+	}
+
+	/**
+	 * Polymorphic inline cache of a call site: the lambdas called there most
+	 * recently, with their profiles, so that a call does not look its profile
+	 * up in _profiles. A site that has called more than SIZE different
+	 * lambdas is megamorphic and looks them all up.
+	 */
+	static class CallSite {
+		static final int SIZE = 4;
+		Compiler _compiler;
+		LambdaExp[] _lambdas = new LambdaExp[SIZE];
+		Profile[] _profiles = new Profile[SIZE];
+		int _size = 0;
+		CallSite(Compiler compiler) {
+			_compiler = compiler;
+		}
+	}
+
+	/** The profile of e. */
+	Profile profile(LambdaExp e) {
+		Profile profile = _profiles.get(e);
+		if (profile == null)
+			_profiles.put(e, profile = new Profile());
+		return profile;
+	}
+
+	/** The profile of e, called at site: from the inline cache of site if it holds e. */
+	Profile profile(LambdaExp e, CallExp site) {
+		CallSite cache = site.site();
+		if (cache == null || cache._compiler != this) // Sites are shared by the Evaluators of a program.
+			site.setSite(cache = new CallSite(this));
+		for (int i = 0; i < cache._size; i++)
+			if (cache._lambdas[i] == e)
+				return cache._profiles[i];
+		Profile profile = profile(e);
+		if (cache._size < CallSite.SIZE) {
+			cache._lambdas[cache._size] = e;
+			cache._profiles[cache._size++] = profile;
+		}
+		return profile;
+	}
+
+	/**
+	 * Counts a call of e, whose profile is profile, and returns its compiled 
+	 * code, compiling it when the calls cross THRESHOLD, or the calls from its 
+	 * own body, self_call, cross BACKEDGE_THRESHOLD. Returns null while e is 
+	 * interpreted.
+	 */
+	Code codeFor(Profile profile, LambdaExp e, boolean self_call) {
+		if (profile._code != null || profile._failed) return profile._code;
+		profile._calls++;
+		if (self_call) profile._backedges++;
+		if (profile._calls > THRESHOLD || profile._backedges > BACKEDGE_THRESHOLD) {
+			profile._code = compile(e, profile);
+			profile._failed = profile._code == null;
+		}
+		return profile._code;
+	}
+
+	/**
+	 * Deoptimization: code that read the old value of name as a constant is
+	 * dropped, and its lambda starts counting calls again.
+	 */
+	void redefined(String name) {
+		List<Assumption> dependents = _dependents.remove(name);
+		if (dependents == null) return;
+		for (Assumption assumption : dependents) {
+			assumption._valid = false;
+			Profile profile = assumption._profile;
+			if (profile._assumption != assumption) continue; // Already deoptimized.
+			profile._code = null;
+			profile._assumption = null;
+			profile._calls = profile._backedges = 0;
+			profile._deopts++;
+		}
+	}
+
+	/** Returns the compiled code for the body of e, or null if e cannot be compiled. */
+	public Code compile(LambdaExp e) {
+		return compile(e, new Profile());
+	}
+
+	private Code compile(LambdaExp e, Profile profile) {
+		try {
+			Assumption assumption = profile._deopts < MAX_DEOPTS ? new Assumption(profile) : null;
+			Generator generator = new Generator(e, assumption);
+			byte[] bytes = generator.generate();
+			MethodHandles.Lookup lookup = _lookup.defineHiddenClass(bytes, true);
+			Code code = (Code) lookup.findConstructor(lookup.lookupClass(),
+					MethodType.methodType(void.class, Object[].class)).invoke(_constants);
+			if (assumption != null && !generator._speculated.isEmpty()) {
+				profile._assumption = assumption;
+				for (String name : generator._speculated)
+					_dependents.computeIfAbsent(name, k -> new ArrayList<Assumption>()).add(assumption);
+			}
+			return code;
+		} catch (NotCompilable ex) {
+			return null;
+		} catch (Throwable ex) { // A bug in the generated class: e stays interpreted, which gives the same results.
+			return null;
+		}
+	}
+
+	// Run-time support called from the generated code.
+
+	public static Value num(double v) { return new NumVal(v); }
+	public static Value less(double first, double second) { return new BoolVal(first < second); }
+	public static Value equal(double first, double second) { return new BoolVal(first == second); }
+	public static Value greater(double first, double second) { return new BoolVal(first > second); }
+	public static Value cons(Value fst, Value snd) { return new PairVal(fst, snd); }
+	public static Value isNull(Value val) { return new BoolVal(val instanceof Null); }
+	public static Value unit() { return new UnitVal(); }
+
+	public static Value list(Value[] elems) {
+		Value result = new Null();
+		for (int i = elems.length - 1; i >= 0; i--)
+			result = new PairVal(elems[i], result);
+		return result;
+	}
+
+	public static Value conditionError(IfExp e) {
+		return Evaluator.conditionError(e);
+	}
+
+	public static Value call(Value operator, Value[] actuals, CallExp e, Evaluator evaluator) {
+		if (!(operator instanceof FunVal))
+			return Evaluator.operatorError(e);
+		FunVal fun = (FunVal) operator;
+		Value error = Evaluator.checkCall(fun, e);
+		if (error != null)
+			return error;
+		return evaluator.invoke(fun, actuals, e);
+	}
+
+	// Code generation.
+
+	private static final String VALUE = "funclang/Value";
+	private static final String VALUE_DESC = "L" + VALUE + ";";
+	private static final String NUMVAL = "funclang/Value$NumVal";
+	private static final String SELF = "funclang/Compiler";
+
+	private Object[] _constants;
+
+	/**
+	 * Generates a class with the method Value call(Value[] actuals, Env env).
+	 * Local 1 holds the arguments, local 2 the environment of the closure and
+	 * the bindings of let expressions inside the body live in JVM locals.
+	 * The generated class uses class file version 49, which the JVM verifies
+	 * by type inference, so no stack map frames are needed.
+	 */
+	private class Generator implements Visitor<Void> {
+		private LambdaExp _lambda;
+		private Assumption _assumption; // null if globals are always looked up.
+		private java.util.Set<String> _speculated = new java.util.HashSet<String>(); // Globals read as constants.
+		private ConstantPool _pool = new ConstantPool();
+		private ByteArrayOutputStream _code = new ByteArrayOutputStream();
+		private List<Object> _consts = new ArrayList<Object>();
+		private ArrayList<Integer> _frames = new ArrayList<Integer>(); // First local of each frame, -1 for the arguments.
+		private int _next_local = 3;
+		private int _max_locals = 3;
+		private int _stack = 0;
+		private int _max_stack = 0;
+
+		Generator(LambdaExp lambda, Assumption assumption) {
+			_lambda = lambda;
+			_assumption = assumption;
+		}
+
+		byte[] generate() throws IOException {
+			_frames.add(-1);
+			_lambda.body().accept(this, null);
+			op(0xb0, -1); // areturn
+			if (_code.size() > 32767 || _max_locals > 255)
+				throw new NotCompilable("Body too large");
+			_constants = _consts.toArray();
+			return classFile();
+		}
+
+		// Emitting instructions. Each one records its effect on the stack depth.
+
+		private void op(int opcode, int delta) {
+			_code.write(opcode);
+			_stack += delta;
+			if (_stack > _max_stack) _max_stack = _stack;
+		}
+
+		private void u1(int b) { _code.write(b); }
+
+		private void u2(int s) {
+			_code.write((s >> 8) & 0xff);
+			_code.write(s & 0xff);
+		}
+
+		private void aload(int local) {
+			if (local <= 3) op(0x2a + local, 1);
+			else { op(0x19, 1); u1(local); }
+		}
+
+		private void astore(int local) {
+			op(0x3a, -1);
+			u1(local);
+		}
+
+		private void iconst(int value) {
+			if (value <= 5) op(0x03 + value, 1);
+			else if (value <= 127) { op(0x10, 1); u1(value); }
+			else { op(0x11, 1); u2(value); }
+		}
+
+		private void constant(Object value, String type) {
+			int index = _consts.size();
+			_consts.add(value);
+			aload(0);
+			op(0xb4, 0); u2(_pool.field("funclang/Compiled", "k", "[Ljava/lang/Object;")); // getfield
+			iconst(index);
+			op(0x32, -1); // aaload
+			op(0xc0, 0); u2(_pool.clazz(type)); // checkcast
+		}
+
+		private void invokestatic(String owner, String name, String desc, int delta) {
+			op(0xb8, delta);
+			u2(_pool.method(owner, name, desc));
+		}
+
+		private void invokevirtual(String owner, String name, String desc, int delta) {
+			op(0xb6, delta);
+			u2(_pool.method(owner, name, desc));
+		}
+
+		private int branch(int opcode, int delta) {
+			int at = _code.size();
+			op(opcode, delta);
+			u2(0);
+			return at;
+		}
+
+		private void patch(byte[] code, int at, int target) {
+			int offset = target - at;
+			code[at + 1] = (byte) (offset >> 8);
+			code[at + 2] = (byte) offset;
+		}
+
+		private List<int[]> _patches = new ArrayList<int[]>();
+
+		private void jumpTo(int at, int target) {
+			_patches.add(new int[] { at, target });
+		}
+
+		private int newLocal() {
+			int local = _next_local++;
+			if (_next_local > _max_locals) _max_locals = _next_local;
+			return local;
+		}
+
+		private void unboxed(Exp e) {
+			if (e instanceof NumExp) { // A literal operand is used without boxing it.
+				op(0x14, 2); u2(_pool.dbl(((NumExp) e).v())); // ldc2_w
+				return;
+			}
+			e.accept(this, null);
+			invokestatic("funclang/Evaluator", "num", "(" + VALUE_DESC + ")L" + NUMVAL + ";", 0); // Dynamic type-checking
+			invokevirtual(NUMVAL, "v", "()D", 1);
+		}
+
+		private void exps(List<Exp> exps) {
+			iconst(exps.size());
+			op(0xbd, 0); u2(_pool.clazz(VALUE)); // anewarray
+			for (int i = 0; i < exps.size(); i++) {
+				op(0x59, 1); // dup
+				iconst(i);
+				exps.get(i).accept(this, null);
+				op(0x53, -3); // aastore
+			}
+		}
+
+		private Void arith(CompoundArithExp e, int opcode, boolean from_first, int identity) {
+			List<Exp> operands = e.all();
+			int start = 0;
+			if (from_first) unboxed(operands.get(start++));
+			else op(identity, 2);
+			for (int i = start; i < operands.size(); i++) {
+				unboxed(operands.get(i));
+				op(opcode, -2);
+			}
+			invokestatic(SELF, "num", "(D)" + VALUE_DESC, -1);
+			return null;
+		}
+
+		public Void visit(AddExp e, Env env) { return arith(e, 0x63, false, 0x0e); } // dadd, starting from dconst_0
+		public Void visit(SubExp e, Env env) { return arith(e, 0x67, true, 0); } // dsub
+		public Void visit(MultExp e, Env env) { return arith(e, 0x6b, false, 0x0f); } // dmul, starting from dconst_1
+		public Void visit(DivExp e, Env env) { return arith(e, 0x6f, true, 0); } // ddiv
+
+		public Void visit(UnitExp e, Env env) { invokestatic(SELF, "unit", "()" + VALUE_DESC, 1); return null; }
+		public Void visit(NumExp e, Env env) { constant(e.value(), VALUE); return null; }
+		public Void visit(StrExp e, Env env) { constant(e.value(), VALUE); return null; }
+		public Void visit(BoolExp e, Env env) { constant(e.value(), VALUE); return null; }
+
+		public Void visit(VarExp e, Env env) {
+			int depth = e.depth();
+			if (depth >= 0 && depth < _frames.size()) {
+				int first = _frames.get(_frames.size() - 1 - depth);
+				if (first < 0) {
+					aload(1);
+					iconst(e.slot());
+					op(0x32, -1); // aaload
+				} else aload(first + e.slot());
+			} else if (depth >= 0) { // A free variable, in the frame of the closure.
+				aload(2);
+				iconst(depth - _frames.size());
+				iconst(e.slot());
+				op(0xb9, -2); u2(_pool.interfaceMethod("funclang/Env", "get", "(II)" + VALUE_DESC)); u1(3); u1(0);
+			} else if (depth == VarExp.GLOBAL) {
+				Value value = speculate(e.name());
+				if (value == null) {
+					lookup(e.name());
+					return null;
+				}
+				constant(_assumption, "funclang/Compiler$Assumption");
+				op(0xb4, 0); u2(_pool.field("funclang/Compiler$Assumption", "_valid", "Z")); // getfield
+				int invalid = branch(0x99, -1); // ifeq
+				constant(value, VALUE);
+				int end = branch(0xa7, 0); // goto
+				_stack--;
+				jumpTo(invalid, _code.size());
+				lookup(e.name()); // Deoptimized: the global has been redefined.
+				jumpTo(end, _code.size());
+			} else throw new NotCompilable("Unresolved variable " + e.name());
+			return null;
+		}
+
+		/** The current value of a global, which the code may use as a constant, or null. */
+		private Value speculate(String name) {
+			if (_assumption == null) return null;
+			try {
+				Value value = _evaluator.initEnv.get(name);
+				_speculated.add(name);
+				return value;
+			} catch (Env.LookupException ex) {
+				return null; // Not defined yet, so the lookup reports the error at run time.
+			}
+		}
+
+		private void lookup(String name) {
+			constant(new GlobalCache(name), "funclang/Env$GlobalCache");
+			constant(_evaluator.initEnv, "funclang/Env$GlobalEnv");
+			invokevirtual("funclang/Env$GlobalCache", "get", "(Lfunclang/Env$GlobalEnv;)" + VALUE_DESC, -1);
+		}
+
+		public Void visit(LetExp e, Env env) {
+			List<Exp> value_exps = e.value_exps();
+			int first = _next_local;
+			for (int i = 0; i < value_exps.size(); i++)
+				newLocal();
+			for (int i = 0; i < value_exps.size(); i++) { // Evaluated in the enclosing frame.
+				value_exps.get(i).accept(this, null);
+				astore(first + i);
+			}
+			_frames.add(first);
+			e.body().accept(this, null);
+			_frames.remove(_frames.size() - 1);
+			return null;
+		}
+
+		public Void visit(CallExp e, Env env) {
+			e.operator().accept(this, null);
+			exps(e.operands());
+			constant(e, "funclang/AST$CallExp");
+			constant(_evaluator, "funclang/Evaluator");
+			invokestatic(SELF, "call", "(" + VALUE_DESC + "[" + VALUE_DESC + "Lfunclang/AST$CallExp;Lfunclang/Evaluator;)" + VALUE_DESC, -3);
+			return null;
+		}
+
+		public Void visit(IfExp e, Env env) {
+			e.conditional().accept(this, null);
+			op(0x59, 1); // dup
+			op(0xc1, 0); u2(_pool.clazz("funclang/Value$BoolVal")); // instanceof
+			int not_bool = branch(0x99, -1); // ifeq
+			op(0xc0, 0); u2(_pool.clazz("funclang/Value$BoolVal"));
+			invokevirtual("funclang/Value$BoolVal", "v", "()Z", 0);
+			int to_else = branch(0x99, -1);
+			e.then_exp().accept(this, null);
+			int then_end = branch(0xa7, 0); // goto
+			_stack--;
+			jumpTo(to_else, _code.size());
+			e.else_exp().accept(this, null);
+			int else_end = branch(0xa7, 0);
+			_stack--;
+			jumpTo(not_bool, _code.size());
+			_stack++; // The condition is still on the stack.
+			op(0x57, -1); // pop
+			constant(e, "funclang/AST$IfExp");
+			invokestatic(SELF, "conditionError", "(Lfunclang/AST$IfExp;)" + VALUE_DESC, 0);
+			jumpTo(then_end, _code.size());
+			jumpTo(else_end, _code.size());
+			return null;
+		}
+
+		private Void compare(BinaryComparator e, String helper) {
+			unboxed(e.first_exp());
+			unboxed(e.second_exp());
+			invokestatic(SELF, helper, "(DD)" + VALUE_DESC, -3);
+			return null;
+		}
+
+		public Void visit(LessExp e, Env env) { return compare(e, "less"); }
+		public Void visit(EqualExp e, Env env) { return compare(e, "equal"); }
+		public Void visit(GreaterExp e, Env env) { return compare(e, "greater"); }
+
+		private Void pair(Exp arg, String accessor) {
+			arg.accept(this, null);
+			invokestatic("funclang/Evaluator", "pair", "(" + VALUE_DESC + ")Lfunclang/Value$PairVal;", 0);
+			invokevirtual("funclang/Value$PairVal", accessor, "()" + VALUE_DESC, 0);
+			return null;
+		}
+
+		public Void visit(CarExp e, Env env) { return pair(e.arg(), "fst"); }
+		public Void visit(CdrExp e, Env env) { return pair(e.arg(), "snd"); }
+
+		public Void visit(ConsExp e, Env env) {
+			e.fst().accept(this, null);
+			e.snd().accept(this, null);
+			invokestatic(SELF, "cons", "(" + VALUE_DESC + VALUE_DESC + ")" + VALUE_DESC, -1);
+			return null;
+		}
+
+		public Void visit(ListExp e, Env env) {
+			exps(e.elems());
+			invokestatic(SELF, "list", "([" + VALUE_DESC + ")" + VALUE_DESC, 0);
+			return null;
+		}
+
+		public Void visit(NullExp e, Env env) {
+			e.arg().accept(this, null);
+			invokestatic(SELF, "isNull", "(" + VALUE_DESC + ")" + VALUE_DESC, 0);
+			return null;
+		}
+
+		public Void visit(LambdaExp e, Env env) { throw new NotCompilable("Closure creation"); }
+		public Void visit(EvalExp e, Env env) { throw new NotCompilable("eval"); }
+		public Void visit(ReadExp e, Env env) { throw new NotCompilable("read"); }
+		public Void visit(DefineDecl d, Env env) { throw new NotCompilable("define"); }
+		public Void visit(Program p, Env env) { throw new NotCompilable("program"); }
+
+		private byte[] classFile() throws IOException {
+			byte[] code = _code.toByteArray();
+			for (int[] patch : _patches)
+				patch(code, patch[0], patch[1]);
+
+			int this_class = _pool.clazz("funclang/Compiled");
+			int super_class = _pool.clazz("java/lang/Object");
+			int code_interface = _pool.clazz("funclang/Compiler$Code");
+			int field_name = _pool.utf8("k"), field_desc = _pool.utf8("[Ljava/lang/Object;");
+			int init_name = _pool.utf8("<init>"), init_desc = _pool.utf8("([Ljava/lang/Object;)V");
+			int object_init = _pool.method("java/lang/Object", "<init>", "()V");
+			int k_field = _pool.field("funclang/Compiled", "k", "[Ljava/lang/Object;");
+			int call_name = _pool.utf8("call"), call_desc = _pool.utf8("([" + VALUE_DESC + "Lfunclang/Env;)" + VALUE_DESC);
+			int code_attribute = _pool.utf8("Code");
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(49);
+			_pool.write(out);
+			out.writeShort(0x31); // public final super
+			out.writeShort(this_class);
+			out.writeShort(super_class);
+			out.writeShort(1);
+			out.writeShort(code_interface);
+
+			out.writeShort(1); // final Object[] k;
+			out.writeShort(0x10);
+			out.writeShort(field_name);
+			out.writeShort(field_desc);
+			out.writeShort(0);
+
+			out.writeShort(2);
+			byte[] init = { 0x2a, (byte) 0xb7, (byte) (object_init >> 8), (byte) object_init, // super()
+					0x2a, 0x2b, (byte) 0xb5, (byte) (k_field >> 8), (byte) k_field, // this.k = k
+					(byte) 0xb1 };
+			method(out, 0x1, init_name, init_desc, code_attribute, 2, 2, init);
+			method(out, 0x1, call_name, call_desc, code_attribute, _max_stack, _max_locals, code);
+			out.writeShort(0);
+			return bytes.toByteArray();
+		}
+
+		private void method(DataOutputStream out, int access, int name, int desc, int code_attribute,
+				int max_stack, int max_locals, byte[] code) throws IOException {
+			out.writeShort(access);
+			out.writeShort(name);
+			out.writeShort(desc);
+			out.writeShort(1);
+			out.writeShort(code_attribute);
+			out.writeInt(12 + code.length);
+			out.writeShort(max_stack);
+			out.writeShort(max_locals);
+			out.writeInt(code.length);
+			out.write(code);
+			out.writeShort(0); // No exception handlers.
+			out.writeShort(0); // No attributes.
+		}
+	}
+
+	/** Constant pool of a class file, sharing identical entries. */
+	static class ConstantPool {
+		private ByteArrayOutputStream _bytes = new ByteArrayOutputStream();
+		private DataOutputStream _out = new DataOutputStream(_bytes);
+		private HashMap<String, Integer> _entries = new HashMap<String, Integer>();
+		private int _count = 1;
+
+		private int entry(String key, int tag, int first, int second, String utf8) {
+			Integer index = _entries.get(key);
+			if (index != null) return index;
+			try {
+				_out.writeByte(tag);
+				if (utf8 != null) _out.writeUTF(utf8);
+				else {
+					_out.writeShort(first);
+					if (second >= 0) _out.writeShort(second);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			_entries.put(key, _count);
+			return _count++;
+		}
+
+		int utf8(String s) { return entry("U" + s, 1, 0, 0, s); }
+
+		int dbl(double d) {
+			String key = "D" + Double.doubleToRawLongBits(d);
+			Integer index = _entries.get(key);
+			if (index != null) return index;
+			try {
+				_out.writeByte(6);
+				_out.writeDouble(d);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			_entries.put(key, _count);
+			_count += 2; // A double takes two entries.
+			return _count - 2;
+		}
+		int clazz(String name) { return entry("C" + name, 7, utf8(name), -1, null); }
+		int string(String s) { return entry("S" + s, 8, utf8(s), -1, null); }
+		int nameAndType(String name, String desc) { return entry("N" + name + " " + desc, 12, utf8(name), utf8(desc), null); }
+		int field(String owner, String name, String desc) { return entry("F" + owner + "." + name + desc, 9, clazz(owner), nameAndType(name, desc), null); }
+		int method(String owner, String name, String desc) { return entry("M" + owner + "." + name + desc, 10, clazz(owner), nameAndType(name, desc), null); }
+		int interfaceMethod(String owner, String name, String desc) { return entry("I" + owner + "." + name + desc, 11, clazz(owner), nameAndType(name, desc), null); }
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeShort(_count);
+			out.write(_bytes.toByteArray());
+		}
+	}
+}
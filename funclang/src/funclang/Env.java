@@ -8,6 +8,7 @@ package funclang;
  */
 public interface Env {
 	Value get (String search_var);
+	Value get (int depth, int slot); // Lexical address computed by the Resolver
 	boolean isEmpty();
 
 	@SuppressWarnings("serial")
@@ -21,6 +22,9 @@ public interface Env {
 		public Value get (String search_var) {
 			throw new LookupException("No binding found for name: " + search_var);
 		}
+		public Value get (int depth, int slot) {
+			throw new LookupException("No binding found at address (" + depth + ", " + slot + ")");
+		}
 		public boolean isEmpty() { return true; }
 	}
 	
@@ -38,14 +42,56 @@ public interface Env {
 				return _val;
 			return _saved_env.get(search_var);
 		}
+		public Value get (int depth, int slot) { // The Resolver only computes addresses of FrameEnv slots.
+			throw new LookupException("No binding found at address (" + depth + ", " + slot + ")");
+		}
 		public boolean isEmpty() { return false; }
 		public Env saved_env() { return _saved_env; }
 		public String var() { return _var; }
 		public Value val() { return _val; }
 	}
 
+	/**
+	 * A frame binds all names introduced by one let expression or one call
+	 * in a single array, so that a resolved variable is found by skipping
+	 * depth frames and indexing the slot, without comparing any names.
+	 */
+	static public class FrameEnv implements Env {
+		private Env _saved_env;
+		private java.util.List<String> _vars;
+		private Value[] _vals;
+		public FrameEnv(Env saved_env, java.util.List<String> vars, Value[] vals){
+			_saved_env = saved_env;
+			_vars = vars;
+			_vals = vals;
+		}
+		public Value get (String search_var) {
+			for (int slot = _vals.length - 1; slot >= 0; slot--) // Later bindings shadow earlier ones.
+				if (search_var.equals(_vars.get(slot)))
+					return _vals[slot];
+			return _saved_env.get(search_var);
+		}
+		public Value get (int depth, int slot) {
+			Env env = this;
+			for (; depth > 0; depth--) {
+				if (!(env instanceof FrameEnv))
+					return env.get(depth, slot);
+				env = ((FrameEnv) env)._saved_env;
+			}
+			if (!(env instanceof FrameEnv))
+				return env.get(0, slot);
+			return ((FrameEnv) env)._vals[slot];
+		}
+		public boolean isEmpty() { return false; }
+		public Env saved_env() { return _saved_env; }
+		public java.util.List<String> vars() { return _vars; }
+		public Value[] vals() { return _vals; }
+	}
+
 	static public class GlobalEnv implements Env {
 		private java.util.Hashtable<String, Value> map;
+		private java.util.List<java.util.function.Consumer<String>> watchers = new java.util.ArrayList<>();
+		private int _version = 0; // Stamp of the current bindings, incremented by every redefinition.
 		public GlobalEnv(){
 			map = new java.util.Hashtable<String, Value>();
 		}
@@ -54,10 +100,55 @@ public interface Env {
 				return map.get(search_var);
 			throw new LookupException("No binding found for name: " + search_var);
 		}
+		public Value get (int depth, int slot) {
+			throw new LookupException("No binding found at address (" + depth + ", " + slot + ")");
+		}
 		public synchronized void extend (String var, Value val) {
+			boolean redefined = map.containsKey(var);
 			map.put(var, val);
+			if (redefined) {
+				_version++;
+				for (java.util.function.Consumer<String> watcher : watchers)
+					watcher.accept(var);
+			}
+		}
+		public int version() { return _version; }
+		/** The number of globals. With the version, it changes whenever a global is defined. */
+		public synchronized int size() { return map.size(); }
+		/** A copy of the current bindings. */
+		public synchronized java.util.Map<String, Value> bindings() { return new java.util.HashMap<String, Value>(map); }
+		/** Calls watcher with the name of every global that is redefined. */
+		public synchronized void watch (java.util.function.Consumer<String> watcher) {
+			watchers.add(watcher);
 		}
 		public boolean isEmpty() { return map.isEmpty(); }
 	}
 
+	/**
+	 * Inline cache of a reference to a global: the value that the name had 
+	 * in a GlobalEnv, valid for as long as the version stamp of that GlobalEnv
+	 * is unchanged. A hit costs two comparisons instead of a lookup in the
+	 * synchronized table; a redefinition of any global invalidates it.
+	 */
+	static public class GlobalCache {
+		private String _name;
+		private GlobalEnv _env = null;
+		private int _version;
+		private Value _val;
+		public GlobalCache(String name) {
+			_name = name;
+		}
+		public Value get (GlobalEnv env) {
+			if (env != _env || env._version != _version) {
+				int version = env._version;
+				_val = env.get(_name);
+				_env = env;
+				_version = version;
+			}
+			return _val;
+		}
+		public String name() { return _name; }
+		public String toString() { return _name; }
+	}
+
 }
@@ -15,114 +15,189 @@ public class Evaluator implements Visitor<Value> {
 
 	Env initEnv = initialEnv(); //New for definelang
 	
+	boolean _tail_calls = false; // Proper tail calls, see evalTail.
+	
+	public void setTailCalls(boolean tail_calls) {
+		_tail_calls = tail_calls;
+	}
+	
+	Compiler _compiler = null; // Compiles hot lambdas to bytecode when enabled.
+	LambdaExp _running = null; // Lambda whose body is being interpreted, to count its calls of itself.
+	
+	public void setCompiler(boolean enabled) {
+		_compiler = enabled ? new Compiler(this) : null;
+	}
+	
+	Strictness _strictness = null; // Lazy evaluation when set, see delay.
+	
+	public void setLazy(boolean lazy) {
+		_strictness = lazy ? new Strictness((GlobalEnv) initEnv) : null;
+		if (lazy) _types = null; // Typed code does not force thunks.
+	}
+
+	/** Whether operands and the fields of pairs are delayed, so that lists may be infinite. */
+	boolean lazy() { return _strictness != null; }
+	
+	TypeChecker _types = null; // Types programs before they run when set, see trusted.
+	Object _trust = null; // The stamp of the typed code that is running, or null.
+	
+	/** Types programs, whose typed code then runs without redundant checks. Strict mode does not run programs with type errors. */
+	public void setTypes(boolean enabled, boolean strict) {
+		_types = enabled && _strictness == null ? new TypeChecker((GlobalEnv) initEnv) : null;
+		if (_types != null) _types.setStrict(strict);
+	}
+	
+	int _memo_size = Primitives.MEMO_SIZE; // Capacity of the caches of the functions that memo returns.
+	
+	public void setMemoSize(int size) {
+		_memo_size = size;
+	}
+	
+	long _effects = 0; // Calls of procedures that use mutable state, such as the array procedures, see ResultCache.
+	
+	/** Whether the code that is running is typed, and its typing is still current. */
+	private boolean trusted() {
+		return _trust != null && _trust == _types.stamp();
+	}
+	
 	Value valueOf(Program p) {
 			return (Value) p.accept(this, initEnv);
 	}
+
+	/** The value of e in env. Subexpressions are evaluated through this method, which SwitchEvaluator overrides. */
+	Value eval(Exp e, Env env) {
+		return e.accept(this, env);
+	}
 	
 	@Override
 	public Value visit(AddExp e, Env env) {
-		List<Exp> operands = e.all();
-		double result = 0;
-		for(Exp exp: operands) {
-			NumVal intermediate = (NumVal) exp.accept(this, env); // Dynamic type-checking
-			result += intermediate.v(); //Semantics of AddExp in terms of the target language.
-		}
-		return new NumVal(result);
+		return new NumVal(add(e, env)); // Boxed only here, where the result leaves the numeric channel.
 	}
 	
 	@Override
 	public Value visit(UnitExp e, Env env) {
-		return new UnitVal();
+		return UnitVal.v;
 	}
 
 	@Override
 	public Value visit(NumExp e, Env env) {
-		return new NumVal(e.v());
+		return e.value();
 	}
 
 	@Override
 	public Value visit(StrExp e, Env env) {
-		return new StringVal(e.v());
+		return e.value();
 	}
 
 	@Override
 	public Value visit(BoolExp e, Env env) {
-		return new BoolVal(e.v());
+		return e.value();
 	}
 
 	@Override
 	public Value visit(DivExp e, Env env) {
-		List<Exp> operands = e.all();
-		NumVal lVal = (NumVal) operands.get(0).accept(this, env);
-		double result = lVal.v(); 
-		for(int i=1; i<operands.size(); i++) {
-			NumVal rVal = (NumVal) operands.get(i).accept(this, env);
-			result = result / rVal.v();
-		}
-		return new NumVal(result);
+		return new NumVal(div(e, env));
 	}
 
 	@Override
 	public Value visit(MultExp e, Env env) {
-		List<Exp> operands = e.all();
-		double result = 1;
-		for(Exp exp: operands) {
-			NumVal intermediate = (NumVal) exp.accept(this, env); // Dynamic type-checking
-			result *= intermediate.v(); //Semantics of MultExp.
-		}
-		return new NumVal(result);
+		return new NumVal(mult(e, env));
 	}
 
 	@Override
 	public Value visit(Program p, Env env) {
+		Object trust = _trust;
+		boolean begun = false, committed = false;
 		try {
+			boolean typed = false;
+			if (_types != null) {
+				typed = _types.begin(p);
+				begun = true;
+			}
+			_trust = null; // Definitions may run before the globals they use have their new types.
 			for(DefineDecl d: p.decls())
-				d.accept(this, initEnv);
-			return (Value) p.e().accept(this, initEnv);
-		} catch (ClassCastException e) {
+				eval(d, initEnv);
+			if (begun) _types.commit(p);
+			committed = true;
+			_trust = typed ? _types.stamp() : null;
+			Value result = eval(p.e(), initEnv);
+			return _strictness == null ? result : forceAll(result);
+		} catch (ClassCastException | TypeChecker.TypeError e) {
 			return new DynamicError(e.getMessage());
+		} finally {
+			if (begun && !committed) _types.abort(p);
+			_trust = trust;
 		}
 	}
 
 	@Override
 	public Value visit(SubExp e, Env env) {
-		List<Exp> operands = e.all();
-		NumVal lVal = (NumVal) operands.get(0).accept(this, env);
-		double result = lVal.v();
-		for(int i=1; i<operands.size(); i++) {
-			NumVal rVal = (NumVal) operands.get(i).accept(this, env);
-			result = result - rVal.v();
-		}
-		return new NumVal(result);
+		return new NumVal(sub(e, env));
 	}
 
 	@Override
 	public Value visit(VarExp e, Env env) {
 		// Previously, all variables had value 42. New semantics.
+		if (e.depth() >= 0)
+			return env.get(e.depth(), e.slot()); // Lexical address computed by the Resolver.
+		if (e.depth() == VarExp.GLOBAL)
+			return e.global().get((GlobalEnv) initEnv);
 		return env.get(e.name());
 	}	
 
 	@Override
 	public Value visit(LetExp e, Env env) { // New for varlang.
+		if (_tail_calls) return evalTail(e, env);
 		List<String> names = e.names();
-		List<Exp> value_exps = e.value_exps();
-		List<Value> values = new ArrayList<Value>(value_exps.size());
+		Value[] values = bindings(e, env);
 		
-		for(Exp exp : value_exps) 
-			values.add((Value)exp.accept(this, env));
-		
-		Env new_env = env;
-		for (int index = 0; index < names.size(); index++)
-			new_env = new ExtendEnv(new_env, names.get(index), values.get(index));
+		Env new_env = new FrameEnv(env, names, values); // One frame for all bindings.
 
-		return (Value) e.body().accept(this, new_env);		
+		return eval(e.body(), new_env);		
 	}	
+
+	/** The values of the bindings of e, evaluated from left to right, or in lazy mode delayed unless its body certainly uses them. */
+	private Value[] bindings(LetExp e, Env env) {
+		List<Exp> value_exps = e.value_exps();
+		Value[] values = new Value[value_exps.size()];
+		boolean[] strict = _strictness == null ? null : _strictness.names(e);
+		for (int index = 0; index < values.length; index++) 
+			values[index] = strict == null || strict[index] ? eval(value_exps.get(index), env) : delay(value_exps.get(index), env);
+		return values;
+	}
+
+	// Lazy evaluation. Operands, bindings and the fields of pairs are delayed as thunks, unless the 
+	// Strictness analysis finds that their value is certainly needed, and forced where their value 
+	// is used: by arithmetic and comparisons, conditions, operators, list accessors, eval and read.
+
+	/** The value of e in env, delayed unless it is cheap and cannot fail. */
+	private Value delay(Exp e, Env env) {
+		if (e instanceof NumExp || e instanceof StrExp || e instanceof BoolExp || e instanceof LambdaExp || e instanceof VarExp && ((VarExp) e).depth() >= 0)
+			return eval(e, env);
+		return new Thunk(e, env, this);
+	}
+
+	/** v with the thunks in it forced, so that the errors of delayed expressions are errors of the program. */
+	private static Value forceAll(Value v) {
+		v = Thunk.force(v);
+		for (Value next = v; next instanceof PairVal; next = ((PairVal) next)._snd) { // Iterative along lists.
+			PairVal pair = (PairVal) next;
+			pair._fst = forceAll(pair._fst);
+			pair._snd = Thunk.force(pair._snd);
+		}
+		return v;
+	}
+
+	/** The value of e in env, delayed in lazy mode. */
+	private Value field(Exp e, Env env) {
+		return _strictness == null ? eval(e, env) : delay(e, env);
+	}
 	
 	@Override
 	public Value visit(DefineDecl e, Env env) { // New for definelang.
 		String name = e.name();
 		Exp value_exp = e.value_exp();
-		Value value = (Value) value_exp.accept(this, env);
+		Value value = Thunk.force(eval(value_exp, env));
 		((GlobalEnv) initEnv).extend(name, value);
 		return new Value.UnitVal();		
 	}	
@@ -133,82 +208,520 @@ public class Evaluator implements Visitor<Value> {
 		//  1. formal parameters of the function - e.formals()
 		//  2. actual body of the function - e.body()
 		//  3. mapping from the free variables in the function body to their values.
-		return new Value.FunVal(env, e.formals(), e.body());
+		Value.FunVal closure = closure(e, env, (GlobalEnv) initEnv);
+		if (!e.captures().isEmpty() && trusted()) closure.setTrust(_trust); // Its captured values have their types.
+		return closure;
+	}
+
+	/**
+	 * A flat closure of e, evaluated in env: its environment is one frame with
+	 * the values of the free variables of e, so it keeps nothing else of env
+	 * alive. A lambda without free variables is lifted: all its evaluations 
+	 * share one closure over the global environment.
+	 */
+	static Value.FunVal closure(LambdaExp e, Env env, GlobalEnv globals) {
+		List<VarExp> captures = e.captures();
+		if (captures.isEmpty()) {
+			Value.FunVal lifted = e.lifted();
+			if (lifted == null || lifted.env() != globals) // Programs can be shared by engines.
+				e.lift(lifted = new Value.FunVal(globals, e));
+			return lifted;
+		}
+		Value[] values = new Value[captures.size()];
+		for (int slot = 0; slot < values.length; slot++)
+			values[slot] = env.get(captures.get(slot).depth(), captures.get(slot).slot());
+		return new Value.FunVal(new FrameEnv(globals, e.free(), values), e);
 	}
 	
 	@Override
 	public Value visit(CallExp e, Env env) { // New for funclang.
-		Object result = e.operator().accept(this, env);
+		if (_tail_calls) return evalTail(e, env);
+		Object result = Thunk.force(eval(e.operator(), env));
+		if (e.inlined() != null && inlines(e, result))
+			return eval(e.inlined(), env);
+		if (e.pipeline() != null && _strictness == null) {
+			Value fused = fuse(e, result, env);
+			if (fused != null) return fused;
+		}
+		if (trusted()) // Typed: a function of as many formals as operands.
+			return invoke((Value.FunVal) result, operands(e, env), e);
 		if(!(result instanceof Value.FunVal))
-			return new Value.DynamicError("Operator not a function in call " +  ts.visit(e, env));
+			return operatorError(e);
 		Value.FunVal operator =  (Value.FunVal) result; //Dynamic checking
+		if (_types == null && _compiler == null && _strictness == null && operator.env() != null) // Not run by the VM or in Java.
+			return call(operator, e, env);
+		Value[] actuals = operands(e, operator, env);
+		Value error = checkCall(operator, e);
+		if (error != null)
+			return error;
+		return invoke(operator, actuals, e);
+	}
+
+	/** Runs the body of operator, called at e, with the operands passed to the entry point of their arity. */
+	private Value call(Value.FunVal operator, CallExp e, Env env) {
 		List<Exp> operands = e.operands();
+		Env frame;
+		switch (operands.size()) { // Operands are evaluated from left to right.
+		case 0: frame = operator.frame(); break;
+		case 1: frame = operator.frame(eval(operands.get(0), env)); break;
+		case 2: frame = operator.frame(eval(operands.get(0), env), eval(operands.get(1), env)); break;
+		case 3: frame = operator.frame(eval(operands.get(0), env), eval(operands.get(1), env), eval(operands.get(2), env)); break;
+		case 4: frame = operator.frame(eval(operands.get(0), env), eval(operands.get(1), env), eval(operands.get(2), env), eval(operands.get(3), env)); break;
+		default: frame = operator.frame(operands(e, env));
+		}
+		Value error = checkCall(operator, e);
+		if (error != null)
+			return error;
+		return eval(operator.body(), frame);
+	}
 
-		// Call-by-value semantics
-		List<Value> actuals = new ArrayList<Value>(operands.size());
-		for(Exp exp : operands) 
-			actuals.add((Value)exp.accept(this, env));
-		
-		List<String> formals = operator.formals();
- 		if (formals.size()!=actuals.size())
-			return new Value.DynamicError("Argument mismatch in call " + ts.visit(e, env));
+	// Call and if semantics. The other engines use these too, so that all of them give the same errors.
 
-		Env fun_env = operator.env();
-		for (int index = 0; index < formals.size(); index++)
-			fun_env = new ExtendEnv(fun_env, formals.get(index), actuals.get(index));
-		
-		return (Value) operator.body().accept(this, fun_env);
+	/** Whether e, inlined by the Optimizer, runs its inlined body for the operator operator. */
+	static boolean inlines(CallExp e, Object operator) {
+		return operator instanceof Value.FunVal && ((Value.FunVal) operator).lambda() == e.callee();
+	}
+
+	/**
+	 * The value of e, whose operator evaluated to operator, computed by 
+	 * running its pipeline in one pass; or null, before anything but its 
+	 * operators and stage functions is evaluated, if an operator is not the 
+	 * standard map or filter. See Pipeline.
+	 */
+	private Value fuse(CallExp e, Object operator, Env env) {
+		Pipeline pipeline = e.pipeline();
+		List<CallExp> stages = pipeline.stages();
+		int length = stages.size();
+		Value.FunVal[] operators = new Value.FunVal[length];
+		Value.FunVal[] functions = new Value.FunVal[length];
+		for (int i = 0; i < length; i++) { // In the order of the calls: operator, function, then the inner call.
+			if (i > 0) operator = eval(stages.get(i).operator(), env);
+			if (!pipeline.isStandard(i, operator)) return null; // Only globals and lambdas evaluated so far, which e evaluates again.
+			operators[i] = (Value.FunVal) operator;
+			functions[i] = (Value.FunVal) eval(stages.get(i).operands().get(0), env);
+		}
+		Value list = eval(pipeline.list(), env);
+		Object trust = _trust;
+		try {
+			Value fused = fuse(pipeline, functions, list);
+			if (fused != null) return fused;
+		} catch (RuntimeException ex) {
+			_trust = trust;
+			// The stage functions have no effects: calling the stages below gives the same error as without fusion.
+		}
+		Value result = list;
+		for (int i = length - 1; i >= 0; i--)
+			result = invoke(operators[i], new Value[] { functions[i], result }, stages.get(i));
+		return result;
+	}
+
+	/** The value of pipeline on list, or null if a filter function returns a value that is not a boolean. */
+	private Value fuse(Pipeline pipeline, Value.FunVal[] functions, Value list) {
+		List<Value> elems = new ArrayList<Value>();
+		ELEMENTS: for (Value next = list; !(next instanceof Value.Null); next = pair(next).snd()) {
+			Value elem = pair(next).fst();
+			for (int i = functions.length - 1; i >= 0; i--) { // The innermost stage first.
+				Value result = invoke(functions[i], new Value[] { elem });
+				if (!pipeline.filters(i))
+					elem = result;
+				else if (!(result instanceof Value.BoolVal))
+					return null;
+				else if (!((Value.BoolVal) result).v())
+					continue ELEMENTS;
+			}
+			elems.add(elem);
+		}
+		Value result = new Value.Null();
+		for (int i = elems.size() - 1; i >= 0; i--)
+			result = new PairVal(elems.get(i), result);
+		return result;
+	}
+
+	/** Call-by-value: the operands of e, evaluated from left to right. */
+	Value[] operands(CallExp e, Env env) {
+		List<Exp> operands = e.operands();
+		Value[] actuals = new Value[operands.size()];
+		for (int index = 0; index < actuals.length; index++) 
+			actuals[index] = eval(operands.get(index), env);
+		return actuals;
+	}
+
+	/** The operands of e, a call of operator: in lazy mode, delayed unless operator is strict in them. */
+	private Value[] operands(CallExp e, Value.FunVal operator, Env env) {
+		if (_strictness == null) return operands(e, env);
+		List<Exp> operands = e.operands();
+		boolean[] strict = operator.lambda() == null ? new boolean[0] : _strictness.formals(operator.lambda());
+		Value[] actuals = new Value[operands.size()];
+		for (int index = 0; index < actuals.length; index++) 
+			actuals[index] = index < strict.length && strict[index] ? eval(operands.get(index), env) : delay(operands.get(index), env);
+		return actuals;
+	}
+
+	/** The value of the condition of e: a BoolVal, or the error that e evaluates to. */
+	Value condition(IfExp e, Env env) {
+		if (trusted()) return eval(e.conditional(), env); // Typed: a BoolVal.
+		Object result = Thunk.force(eval(e.conditional(), env));
+		if(!(result instanceof Value.BoolVal))
+			return conditionError(e);
+		return (Value) result;
+	}
+
+	/**
+	 * The error of a call e of operator, whose actuals do not match its 
+	 * formals, or null. The arity is checked when e is linked to the formals
+	 * of operator: while e calls functions with those formals, such as the 
+	 * closures of one lambda, a call only compares them with the link.
+	 */
+	static Value checkCall(Value.FunVal operator, CallExp e) {
+		if (operator.formals() == e.linked())
+			return null;
+		if (operator.arity() != e.operands().size())
+			return argumentError(e);
+		e.link(operator.formals());
+		return null;
+	}
+
+	static DynamicError operatorError(CallExp e) {
+		return new DynamicError("Operator not a function in call " + new Printer.Formatter().visit(e.source(), null));
+	}
+
+	static DynamicError argumentError(CallExp e) {
+		return new DynamicError("Argument mismatch in call " + new Printer.Formatter().visit(e.source(), null));
+	}
+
+	static DynamicError conditionError(IfExp e) {
+		return new DynamicError("Condition not a boolean in expression " + new Printer.Formatter().visit(e.source(), null));
+	}
+
+	// Dynamic type-checking. A failed check throws a ClassCastException built here rather than by a 
+	// cast, so its message is the same everywhere, even at hot sites where HotSpot would otherwise 
+	// throw a preallocated exception without one.
+
+	static NumVal num(Value v) {
+		if (v instanceof NumVal) return (NumVal) v;
+		if (v instanceof Thunk) return num(Thunk.force(v));
+		throw castError(v, NumVal.class);
+	}
+
+	static PairVal pair(Value v) {
+		if (v instanceof PairVal) return (PairVal) v;
+		if (v instanceof Thunk) return pair(Thunk.force(v));
+		throw castError(v, PairVal.class);
+	}
+
+	static StringVal string(Value v) {
+		if (v instanceof StringVal) return (StringVal) v;
+		if (v instanceof Thunk) return string(Thunk.force(v));
+		throw castError(v, StringVal.class);
+	}
+
+	/** The exception of a failed cast, with the message the JVM gives it. */
+	static ClassCastException castError(Value v, Class<?> type) {
+		Class<?> actual = v instanceof VM.Closure ? FunVal.class : v.getClass(); // The VM's closures are lambdas too.
+		String from = actual.getName(), to = type.getName();
+		String from_module = module(actual), to_module = module(type);
+		if (from_module.equals(to_module))
+			return new ClassCastException("class " + from + " cannot be cast to class " + to + " (" + from + " and " + to + " are in " + from_module + ")");
+		return new ClassCastException("class " + from + " cannot be cast to class " + to + " (" + from + " is in " + from_module + "; " + to + " is in " + to_module + ")");
+	}
+
+	private static String module(Class<?> c) {
+		Module module = c.getModule();
+		ClassLoader loader = c.getClassLoader();
+		String name = module.isNamed() ? "module " + module.getName() : "unnamed module";
+		return name + " of loader " + (loader == null ? "'bootstrap'" : "'" + loader.getName() + "'");
+	}
+	
+	/**
+	 * Runs the body of operator on actuals, which match its formals. Hot 
+	 * lambdas run as compiled code when the compiler is enabled. Compiled 
+	 * code uses the Java stack for its calls, so it is not used when 
+	 * proper tail calls are requested.
+	 */
+	Value invoke(Value.FunVal operator, Value[] actuals) {
+		return invoke(operator, actuals, null);
+	}
+
+	/** Runs operator as above, called at site, whose inline cache holds the profiles of the lambdas it calls. */
+	Value invoke(Value.FunVal operator, Value[] actuals, CallExp site) {
+		Object trust = _trust;
+		if (operator instanceof Value.Primitive) { // Implemented in Java, which may call back functions here.
+			Value result = ((Value.Primitive) operator).apply(actuals, this);
+			_trust = trust;
+			return result;
+		}
+		if (operator instanceof VM.Closure) { // Created by the VM, which runs its body.
+			Value result = ((VM.Closure) operator).apply(actuals);
+			_trust = trust; // The VM may have caught an error of code that it called here.
+			return result;
+		}
+		if (_types == null)
+			return run(operator, actuals, site);
+		_trust = _types.entry(operator, actuals, site != null && trusted());
+		Value result = run(operator, actuals, site);
+		_trust = trust; // Not restored by an exception, which visit(Program) and fuse handle.
+		return result;
+	}
+
+	private Value run(Value.FunVal operator, Value[] actuals, CallExp site) {
+		if (_compiler != null && !_tail_calls && _strictness == null && operator.lambda() != null)
+			return invokeTiered(operator, actuals, site);
+		return eval(operator.body(), operator.frame(actuals));
+	}
+
+	private Value invokeTiered(Value.FunVal operator, Value[] actuals, CallExp site) {
+		LambdaExp lambda = operator.lambda();
+		Compiler.Profile profile = site == null ? _compiler.profile(lambda) : _compiler.profile(lambda, site);
+		Compiler.Code code = _compiler.codeFor(profile, lambda, lambda == _running);
+		if (code != null)
+			return code.call(actuals, operator.env());
+		LambdaExp caller = _running;
+		_running = lambda;
+		try {
+			return eval(operator.body(), operator.frame(actuals));
+		} finally {
+			_running = caller;
+		}
 	}
 		
 	@Override
 	public Value visit(IfExp e, Env env) { // New for funclang.
-		Object result = e.conditional().accept(this, env);
+		if (_tail_calls) return evalTail(e, env);
+		Value result = condition(e, env);
 		if(!(result instanceof Value.BoolVal))
-			return new Value.DynamicError("Condition not a boolean in expression " +  ts.visit(e, env));
+			return result;
 		Value.BoolVal condition =  (Value.BoolVal) result; //Dynamic checking
 		
 		if(condition.v())
-			return (Value) e.then_exp().accept(this, env);
-		else return (Value) e.else_exp().accept(this, env);
+			return eval(e.then_exp(), env);
+		else return eval(e.else_exp(), env);
+	}
+
+	/**
+	 * Trampoline used when proper tail calls are enabled. The expressions in
+	 * tail position, i.e. the branches of an if, the body of a let and the
+	 * body of a called function, are not evaluated by a nested accept but by 
+	 * the next iteration of this loop. A chain of tail calls therefore runs
+	 * in constant Java stack; only subexpressions in non-tail position, such
+	 * as operands and conditions, use a Java frame.
+	 */
+	private Value evalTail(Exp e, Env env) {
+		if (_types == null) return trampoline(e, env);
+		Object trust = _trust;
+		try {
+			return trampoline(e, env);
+		} finally {
+			_trust = trust;
+		}
+	}
+
+	private Value trampoline(Exp e, Env env) {
+		while (true) {
+			if (e instanceof IfExp) {
+				IfExp if_exp = (IfExp) e;
+				Value result = condition(if_exp, env);
+				if(!(result instanceof Value.BoolVal))
+					return result;
+				e = ((Value.BoolVal) result).v() ? if_exp.then_exp() : if_exp.else_exp();
+			} else if (e instanceof LetExp) {
+				LetExp let_exp = (LetExp) e;
+				env = new FrameEnv(env, let_exp.names(), bindings(let_exp, env));
+				e = let_exp.body();
+			} else if (e instanceof CallExp) {
+				CallExp call_exp = (CallExp) e;
+				Object result = Thunk.force(eval(call_exp.operator(), env));
+				if (call_exp.inlined() != null && inlines(call_exp, result)) {
+					e = call_exp.inlined();
+					continue;
+				}
+				if (call_exp.pipeline() != null && _strictness == null) {
+					Value fused = fuse(call_exp, result, env);
+					if (fused != null) return fused;
+				}
+				Value.FunVal operator;
+				Value[] actuals;
+				boolean trusted = trusted();
+				if (trusted) { // Typed: a function of as many formals as operands.
+					operator = (Value.FunVal) result;
+					actuals = operands(call_exp, env);
+				} else {
+					if(!(result instanceof Value.FunVal))
+						return operatorError(call_exp);
+					operator =  (Value.FunVal) result;
+					actuals = operands(call_exp, operator, env);
+					Value error = checkCall(operator, call_exp);
+					if (error != null)
+						return error;
+				}
+				if (operator.env() == null) // Run by the VM or in Java.
+					return invoke(operator, actuals);
+				if (_types != null) _trust = _types.entry(operator, actuals, trusted);
+				env = operator.frame(actuals);
+				e = operator.body();
+			} else 
+				return eval(e, env);
+		}
 	}
 
 	@Override
 	public Value visit(LessExp e, Env env) { // New for funclang.
-		Value.NumVal first = (Value.NumVal) e.first_exp().accept(this, env);
-		Value.NumVal second = (Value.NumVal) e.second_exp().accept(this, env);
-		return new Value.BoolVal(first.v() < second.v());
+		double first = number(e, e.first_exp(), env);
+		double second = second(e, env);
+		return Value.BoolVal.of(first < second);
 	}
 	
 	@Override
 	public Value visit(EqualExp e, Env env) { // New for funclang.
-		Value.NumVal first = (Value.NumVal) e.first_exp().accept(this, env);
-		Value.NumVal second = (Value.NumVal) e.second_exp().accept(this, env);
-		return new Value.BoolVal(first.v() == second.v());
+		double first = number(e, e.first_exp(), env);
+		double second = second(e, env);
+		return Value.BoolVal.of(first == second);
 	}
 
 	@Override
 	public Value visit(GreaterExp e, Env env) { // New for funclang.
-		Value.NumVal first = (Value.NumVal) e.first_exp().accept(this, env);
-		Value.NumVal second = (Value.NumVal) e.second_exp().accept(this, env);
-		return new Value.BoolVal(first.v() > second.v());
+		double first = number(e, e.first_exp(), env);
+		double second = second(e, env);
+		return Value.BoolVal.of(first > second);
+	}
+
+	/** The second operand of e, read from the tree when e is specialised for a literal. */
+	private double second(BinaryComparator e, Env env) {
+		if (e.specialization() == Specialization.NUMBER_AND_LITERAL)
+			return ((NumExp) e.second_exp()).v();
+		double second = number(e, e.second_exp(), env);
+		if (e.specialization() == Specialization.UNINITIALIZED)
+			specialize(e, e.second_exp());
+		return second;
+	}
+
+	// The numeric channel. Arithmetic is evaluated to a primitive double, and so are the arithmetic 
+	// and literal operands of arithmetic and comparisons: a NumVal is only allocated where a result 
+	// leaves the channel, so (+ (* a b) (/ c (- d e))) allocates one NumVal rather than four.
+
+	/** The value of operand of e, which must be a number. */
+	private double number(Specializable e, Exp operand, Env env) {
+		if (operand instanceof NumExp) return ((NumExp) operand).v();
+		if (operand instanceof CompoundArithExp) return arith((CompoundArithExp) operand, env);
+		Value v = eval(operand, env);
+		if (trusted()) return ((NumVal) v).v(); // Typed: a number.
+		return guard(e, v);
+	}
+
+	private double arith(CompoundArithExp e, Env env) {
+		if (e instanceof AddExp) return add((AddExp) e, env);
+		if (e instanceof SubExp) return sub((SubExp) e, env);
+		if (e instanceof MultExp) return mult((MultExp) e, env);
+		return div((DivExp) e, env);
+	}
+
+	private double add(AddExp e, Env env) {
+		Specialization specialization = e.specialization();
+		if (specialization == Specialization.NUMBERS || specialization == Specialization.NUMBER_AND_LITERAL) {
+			double first = number(e, e.fst(), env);
+			double second = specialization == Specialization.NUMBERS ? number(e, e.snd(), env) : ((NumExp) e.snd()).v();
+			return 0 + first + second; // Starts from 0 as below, so that -0 + -0 is 0 too.
+		}
+		List<Exp> operands = e.all();
+		double result = 0;
+		for(Exp exp: operands) {
+			result += number(e, exp, env); //Semantics of AddExp in terms of the target language.
+		}
+		specialize(e, operands);
+		return result;
+	}
+
+	private double sub(SubExp e, Env env) {
+		Specialization specialization = e.specialization();
+		if (specialization == Specialization.NUMBERS || specialization == Specialization.NUMBER_AND_LITERAL) {
+			double first = number(e, e.fst(), env);
+			double second = specialization == Specialization.NUMBERS ? number(e, e.snd(), env) : ((NumExp) e.snd()).v();
+			return first - second;
+		}
+		List<Exp> operands = e.all();
+		double result = number(e, operands.get(0), env);
+		for(int i=1; i<operands.size(); i++) {
+			result = result - number(e, operands.get(i), env);
+		}
+		specialize(e, operands);
+		return result;
+	}
+
+	private double mult(MultExp e, Env env) {
+		Specialization specialization = e.specialization();
+		if (specialization == Specialization.NUMBERS || specialization == Specialization.NUMBER_AND_LITERAL) {
+			double first = number(e, e.fst(), env);
+			double second = specialization == Specialization.NUMBERS ? number(e, e.snd(), env) : ((NumExp) e.snd()).v();
+			return first * second;
+		}
+		List<Exp> operands = e.all();
+		double result = 1;
+		for(Exp exp: operands) {
+			result *= number(e, exp, env); //Semantics of MultExp.
+		}
+		specialize(e, operands);
+		return result;
+	}
+
+	private double div(DivExp e, Env env) {
+		Specialization specialization = e.specialization();
+		if (specialization == Specialization.NUMBERS || specialization == Specialization.NUMBER_AND_LITERAL) {
+			double first = number(e, e.fst(), env);
+			double second = specialization == Specialization.NUMBERS ? number(e, e.snd(), env) : ((NumExp) e.snd()).v();
+			return first / second;
+		}
+		List<Exp> operands = e.all();
+		double result = number(e, operands.get(0), env); 
+		for(int i=1; i<operands.size(); i++) {
+			result = result / number(e, operands.get(i), env);
+		}
+		specialize(e, operands);
+		return result;
+	}
+
+	// Self-specialising arithmetic and comparisons. A node runs its generic version until it has 
+	// evaluated once. If it had two operands, which were numbers as they must be, it then rewrites 
+	// itself to a version for two numbers, or for a number and a numeric literal, whose value it 
+	// reads from the tree instead of evaluating it. An operand of another type fails the guard of 
+	// a specialised node and rewrites it back to the generic version for good.
+
+	/** The number that operand v of e is. Any other value is a type error, and e stops specialising. */
+	private static double guard(Specializable e, Value v) {
+		if (v instanceof NumVal) return ((NumVal) v).v();
+		if (v instanceof Thunk) return guard(e, Thunk.force(v));
+		e.specialize(Specialization.GENERIC);
+		throw castError(v, NumVal.class);
+	}
+
+	/** Rewrites e, which has just evaluated its operands with the generic version. */
+	private static void specialize(CompoundArithExp e, List<Exp> operands) {
+		if (e.specialization() != Specialization.UNINITIALIZED)
+			return;
+		if (operands.size() == 2)
+			specialize(e, operands.get(1));
+		else
+			e.specialize(Specialization.GENERIC);
+	}
+
+	private static void specialize(Specializable e, Exp second) {
+		e.specialize(second instanceof NumExp ? Specialization.NUMBER_AND_LITERAL : Specialization.NUMBERS);
 	}
 	
 	@Override
 	public Value visit(CarExp e, Env env) { 
-		Value.PairVal pair = (Value.PairVal) e.arg().accept(this, env);
+		Value.PairVal pair = pair(eval(e.arg(), env));
 		return pair.fst();
 	}
 	
 	@Override
 	public Value visit(CdrExp e, Env env) { 
-		Value.PairVal pair = (Value.PairVal) e.arg().accept(this, env);
+		Value.PairVal pair = pair(eval(e.arg(), env));
 		return pair.snd();
 	}
 	
 	@Override
 	public Value visit(ConsExp e, Env env) { 
-		Value first = (Value) e.fst().accept(this, env);
-		Value second = (Value) e.snd().accept(this, env);
+		Value first = field(e.fst(), env);
+		Value second = field(e.snd(), env);
 		return new Value.PairVal(first, second);
 	}
 
@@ -222,7 +735,7 @@ public class Evaluator implements Visitor<Value> {
 		//Order of evaluation: left to right e.g. (list (+ 3 4) (+ 5 4)) 
 		Value[] elems = new Value[length];
 		for(int i=0; i<length; i++)
-			elems[i] = (Value) elemExps.get(i).accept(this, env);
+			elems[i] = field(elemExps.get(i), env);
 		
 		Value result = new Value.Null();
 		for(int i=length-1; i>=0; i--) 
@@ -232,20 +745,20 @@ public class Evaluator implements Visitor<Value> {
 	
 	@Override
 	public Value visit(NullExp e, Env env) {
-		Value val = (Value) e.arg().accept(this, env);
+		Value val = Thunk.force(eval(e.arg(), env));
 		return new BoolVal(val instanceof Value.Null);
 	}
 
 	public Value visit(EvalExp e, Env env) {
-		StringVal programText = (StringVal) e.code().accept(this, env);
+		StringVal programText = string(eval(e.code(), env));
 		Program p = _reader.parse(programText.v());
 		return (Value) p.accept(this, env);
 	}
 
 	public Value visit(ReadExp e, Env env) {
-		StringVal fileName = (StringVal) e.file().accept(this, env);
+		StringVal fileName = string(eval(e.file(), env));
 		try {
-			String text = Reader.readFile("" + System.getProperty("user.dir") + File.separator + fileName.v());
+			String text = _reader.load("" + System.getProperty("user.dir") + File.separator + fileName.v());
 			return new StringVal(text);
 		} catch (IOException ex) {
 			return new DynamicError(ex.getMessage());
@@ -269,6 +782,10 @@ public class Evaluator implements Visitor<Value> {
 		Value.FunVal requireFun = new Value.FunVal(initEnv, formals, body);
 		initEnv.extend("require", requireFun);
 		
+		/* Procedures on lists, such as (map <function> <list>), and (memo <function>), implemented in Java. lib/list.scm defines the former in funclang. */
+		for (Value.Primitive primitive : Primitives.all())
+			initEnv.extend(primitive.name(), primitive);
+
 		/* Add new built-in procedures here */ 
 		
 		return initEnv;
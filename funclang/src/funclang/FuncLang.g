@@ -3,7 +3,7 @@ grammar FuncLang;
  program returns [Program ast]        
  		locals [ArrayList<DefineDecl> defs, Exp expr]
  		@init { $defs = new ArrayList<DefineDecl>(); $expr = new UnitExp(); } :
-		(def=definedecl { $defs.add($def.ast); } )* (e=exp { $expr = $e.ast; } )? 
+		(def=definedecl { $defs.add($def.ast); } | rec=recorddecl { $defs.addAll($rec.ast); } )* (e=exp { $expr = $e.ast; } )? 
 		{ $ast = new Program($defs, $expr); }
 		;
 
@@ -14,6 +14,15 @@ grammar FuncLang;
  		')' { $ast = new DefineDecl($id.text, $e.ast); }
  		;
 
+ recorddecl returns [List<DefineDecl> ast] 
+        locals [ArrayList<String> fields]
+ 		@init { $fields = new ArrayList<String>(); } :
+ 		'(' Defrecord 
+ 			id=Identifier
+ 			'(' (f=Identifier { $fields.add($f.text); } )* ')'
+ 		')' { $ast = funclang.Primitives.defrecord($id.text, $fields); }
+ 		;
+
  exp returns [Exp ast]: 
 		va=varexp { $ast = $va.ast; }
 		| num=numexp { $ast = $num.ast; }
@@ -190,6 +199,7 @@ grammar FuncLang;
  //  - lexical specification rules start with uppercase
  
  Define : 'define' ;
+ Defrecord : 'defrecord' ;
  Let : 'let' ;
  Dot : '.' ;
  Lambda : 'lambda' ;
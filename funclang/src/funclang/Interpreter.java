@@ -1,5 +1,8 @@
 package funclang;
+import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.Function;
 
 import funclang.Env;
 import funclang.Value;
@@ -18,14 +21,61 @@ public class Interpreter {
 							" e.g. ((lambda (av bv cv) (let ((a av) (b bv) (c cv) (d 279) (e 277)) (+ (* a b) (/ c (- d e))))) 3 100 84) \n" + 
 							"Press Ctrl + C to exit.");
 		Reader reader = new Reader();
-		Evaluator eval = new Evaluator(reader);
+		Evaluator eval = Arrays.asList(args).contains("--engine=switch") ? new SwitchEvaluator(reader) : new Evaluator(reader);
+		CEKMachine machine = null;
+		VM vm = null;
+		boolean disasm = false;
+		boolean print_opt = false;
+		String cache_file = null;
+		eval.setCompiler(true); // Tiered: hot lambdas are compiled.
+		eval.setTypes(true, false); // Typed code runs without redundant checks.
+		reader.setOptimizer(new Optimizer((Env.GlobalEnv) eval.initEnv));
 		Printer printer = new Printer();
+		for (String arg : args) {
+			if (arg.equals("--tail-calls")) eval.setTailCalls(true);
+			else if (arg.equals("--jit")) eval.setCompiler(true);
+			else if (arg.equals("--no-jit")) eval.setCompiler(false);
+			else if (arg.equals("--lazy")) eval.setLazy(true);
+			else if (arg.equals("--no-types")) eval.setTypes(false, false);
+			else if (arg.equals("--typecheck")) eval.setTypes(true, true);
+			else if (arg.equals("--engine=ast")) { machine = null; vm = null; }
+			else if (arg.equals("--engine=switch")) { machine = null; vm = null; } // The Evaluator created above.
+			else if (arg.equals("--engine=cek")) { machine = new CEKMachine(eval); vm = null; }
+			else if (arg.equals("--engine=vm")) { machine = null; vm = new VM(eval); }
+			else if (arg.equals("--disasm")) disasm = true;
+			else if (arg.equals("--no-opt")) reader.setOptimizer(null);
+			else if (arg.equals("--print-opt")) print_opt = true;
+			else if (arg.startsWith("--memo-size=")) eval.setMemoSize(Integer.parseInt(arg.substring("--memo-size=".length())));
+			else if (arg.startsWith("--cache=")) cache_file = arg.substring("--cache=".length());
+			else {
+				System.out.println("Unknown option: " + arg);
+				System.out.println("Options: --tail-calls --jit --no-jit --lazy --no-types --typecheck --engine=ast|switch|cek|vm --disasm --no-opt --print-opt --memo-size=<entries> --cache=<file>");
+				return;
+			}
+		}
+		Function<Program, Value> engine = (vm != null) ? vm::valueOf : (machine != null) ? machine::valueOf : eval::valueOf;
+		ResultCache cache = null;
+		if (cache_file != null) {
+			try { // Values are only reused by the same engine with the same options.
+				cache = new ResultCache(new File(cache_file), String.join(" ", Arrays.stream(args).filter(arg -> !arg.startsWith("--cache=")).toArray(String[]::new)), eval);
+			} catch (IOException e) {
+				System.out.println("Error opening cache:" + e.getMessage());
+				return;
+			}
+		}
 		REPL: while (true) { // Read-Eval-Print-Loop (also known as REPL)
 			Program p = null;
 			try {
 				p = reader.read();
 				if(p._e == null) continue REPL;
-				Value val = eval.valueOf(p);
+				if (print_opt) {
+					Printer.Formatter formatter = new Printer.Formatter();
+					for (DefineDecl d : p.decls())
+						System.out.println(formatter.visit(d, null));
+					System.out.println(formatter.visit(p, null));
+				}
+				if (disasm) System.out.print(new VM(eval).disassemble(p));
+				Value val = (cache != null) ? cache.valueOf(p, engine) : engine.apply(p);
 				printer.print(val);
 			} catch (Env.LookupException e) {
 				printer.print(e);
@@ -0,0 +1,134 @@
+package funclang;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The kernels of the matrix procedures of Primitives, on matrices stored
+ * row by row in double[]s. They check nothing: the procedures check the
+ * dimensions first.
+ *
+ * multiply works on blocks of BLOCK rows and columns, so that the blocks
+ * of its operands stay in the cache while they are used, and it splits
+ * the rows of large products across the cores with fork-join.
+ *
+ */
+class LinearAlgebra {
+
+	static final int BLOCK = 64; // Rows and columns of a block: three blocks of doubles fit in a 256 KB cache.
+	static final long PARALLEL = 1 << 20; // Multiplications in a product that is worth splitting across cores.
+
+	/** The product of a, rows by inner, and b, inner by cols. */
+	static double[] multiply(double[] a, double[] b, int rows, int inner, int cols) {
+		double[] c = new double[rows * cols];
+		boolean parallel = (long) rows * inner * cols >= PARALLEL; // Smaller products gain nothing from other threads.
+		Product product = new Product(a, b, c, inner, cols, 0, (rows + BLOCK - 1) / BLOCK, rows, parallel);
+		if (parallel)
+			ForkJoinPool.commonPool().invoke(product);
+		else product.compute();
+		return c;
+	}
+
+	/** The rows of c from block first up to but excluding block last, split in halves until one remains. */
+	@SuppressWarnings("serial")
+	private static class Product extends RecursiveAction {
+		private double[] _a, _b, _c;
+		private int _inner, _cols, _first, _last, _rows;
+		private boolean _parallel;
+		Product(double[] a, double[] b, double[] c, int inner, int cols, int first, int last, int rows, boolean parallel) {
+			_a = a;
+			_b = b;
+			_c = c;
+			_inner = inner;
+			_cols = cols;
+			_first = first;
+			_last = last;
+			_rows = rows;
+			_parallel = parallel;
+		}
+		protected void compute() {
+			if (_parallel && _last - _first > 1) {
+				int middle = (_first + _last) / 2;
+				invokeAll(new Product(_a, _b, _c, _inner, _cols, _first, middle, _rows, true), new Product(_a, _b, _c, _inner, _cols, middle, _last, _rows, true));
+				return;
+			}
+			for (int block = _first; block < _last; block++) {
+				int i0 = block * BLOCK, i1 = Math.min(i0 + BLOCK, _rows);
+				for (int k0 = 0; k0 < _inner; k0 += BLOCK) {
+					int k1 = Math.min(k0 + BLOCK, _inner);
+					for (int j0 = 0; j0 < _cols; j0 += BLOCK) {
+						int j1 = Math.min(j0 + BLOCK, _cols);
+						for (int i = i0; i < i1; i++)
+							for (int k = k0; k < k1; k++) { // The innermost loop runs along rows of b and c.
+								double aik = _a[i * _inner + k];
+								int b_row = k * _cols, c_row = i * _cols;
+								for (int j = j0; j < j1; j++)
+									_c[c_row + j] += aik * _b[b_row + j];
+							}
+					}
+				}
+			}
+		}
+	}
+
+	/** The transpose of m, rows by cols. */
+	static double[] transpose(double[] m, int rows, int cols) {
+		double[] result = new double[rows * cols];
+		for (int i0 = 0; i0 < rows; i0 += BLOCK)
+			for (int j0 = 0; j0 < cols; j0 += BLOCK)
+				for (int i = i0; i < Math.min(i0 + BLOCK, rows); i++)
+					for (int j = j0; j < Math.min(j0 + BLOCK, cols); j++)
+						result[j * rows + i] = m[i * cols + j];
+		return result;
+	}
+
+	static double dot(double[] u, double[] v) {
+		double result = 0;
+		for (int i = 0; i < u.length; i++)
+			result += u[i] * v[i];
+		return result;
+	}
+
+	/**
+	 * The solution x of a x = b, where a is n by n and b is n by cols, by
+	 * Gaussian elimination with partial pivoting, or null if a is singular.
+	 */
+	static double[] solve(double[] a, double[] b, int n, int cols) {
+		a = a.clone();
+		double[] x = b.clone();
+		for (int k = 0; k < n; k++) {
+			int pivot = k;
+			for (int i = k + 1; i < n; i++)
+				if (Math.abs(a[i * n + k]) > Math.abs(a[pivot * n + k])) pivot = i;
+			if (a[pivot * n + k] == 0) return null;
+			if (pivot != k) {
+				swap(a, k * n, pivot * n, n);
+				swap(x, k * cols, pivot * cols, cols);
+			}
+			for (int i = k + 1; i < n; i++) {
+				double factor = a[i * n + k] / a[k * n + k];
+				if (factor == 0) continue;
+				for (int j = k; j < n; j++)
+					a[i * n + j] -= factor * a[k * n + j];
+				for (int j = 0; j < cols; j++)
+					x[i * cols + j] -= factor * x[k * cols + j];
+			}
+		}
+		for (int k = n - 1; k >= 0; k--) // Back substitution.
+			for (int j = 0; j < cols; j++) {
+				double sum = x[k * cols + j];
+				for (int i = k + 1; i < n; i++)
+					sum -= a[k * n + i] * x[i * cols + j];
+				x[k * cols + j] = sum / a[k * n + k];
+			}
+		return x;
+	}
+
+	private static void swap(double[] m, int row1, int row2, int length) {
+		for (int j = 0; j < length; j++) {
+			double t = m[row1 + j];
+			m[row1 + j] = m[row2 + j];
+			m[row2 + j] = t;
+		}
+	}
+}
@@ -0,0 +1,322 @@
+package funclang;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import funclang.AST.*;
+import funclang.Env.GlobalEnv;
+
+/**
+ * Optimisation pass that the Reader runs on each parsed program, before
+ * the Resolver. It rebuilds the program with
+ *
+ *  - constant folding: arithmetic and comparisons whose operands are all
+ *    numeric literals become literals,
+ *  - beta-reduction: ((lambda (x) body) arg) becomes (let ((x arg)) body),
+ *  - constant propagation: let bindings of literals are substituted into
+ *    the body and dropped,
+ *  - branch elimination: an if whose condition is #t or #f becomes the
+ *    branch that is taken,
+ *  - inlining of calls to small, non-recursive global lambdas that have no
+ *    free variables, defined earlier in the program or in the global
+ *    environment. Globals can be redefined, so an inlined call keeps its
+ *    operator and operands: the Evaluator runs the inlined body only while
+ *    the operator is still a closure of the inlined lambda, see
+ *    CallExp.inline. Inlined bodies are not inlined into further.
+ *  - fusion of chains of map and filter calls, see Pipeline.
+ *
+ * None of these changes the order in which operands are evaluated or the
+ * errors they raise. Calls and ifs remember the expression as written,
+ * which error messages show.
+ *
+ */
+public class Optimizer implements Visitor<Exp> {
+
+	/** Largest body, in AST nodes, of a global lambda that is inlined. */
+	public static final int INLINE_SIZE = 24;
+
+	private GlobalEnv _globals;
+	private Resolver _resolver = new Resolver();
+	private Map<String, LambdaExp> _defined = new HashMap<String, LambdaExp>(); // By the declarations so far; null if not a lambda.
+	private Map<String, Exp> _literals = new HashMap<String, Exp>(); // Let-bound names whose value is a literal.
+	private List<String> _bound = new ArrayList<String>(); // Names bound by enclosing lets and lambdas.
+	private boolean _inlining = false; // Inside an inlined body.
+
+	/** An optimiser that inlines the lambdas bound in globals as well as those of the program. */
+	public Optimizer(GlobalEnv globals) {
+		_globals = globals;
+	}
+
+	/** The optimised, resolved version of p. */
+	public Program optimize(Program p) {
+		_defined.clear();
+		List<DefineDecl> decls = new ArrayList<DefineDecl>();
+		for (DefineDecl d : p.decls()) {
+			Exp value = d.value_exp().accept(this, null);
+			decls.add(new DefineDecl(d.name(), value));
+			_defined.put(d.name(), value instanceof LambdaExp ? (LambdaExp) value : null);
+		}
+		Program result = new Program(decls, p.e() == null ? null : p.e().accept(this, null));
+		_defined.clear();
+		_resolver.resolve(result);
+		return result;
+	}
+
+	private List<Exp> optimizeAll(List<Exp> exps) {
+		List<Exp> result = new ArrayList<Exp>();
+		for (Exp exp : exps)
+			result.add(exp.accept(this, null));
+		return result;
+	}
+
+	private static boolean isLiteral(Exp e) {
+		return e instanceof NumExp || e instanceof BoolExp || e instanceof StrExp;
+	}
+
+	private static boolean allNumbers(List<Exp> exps) {
+		for (Exp exp : exps)
+			if (!(exp instanceof NumExp)) return false;
+		return true;
+	}
+
+	private static double v(Exp e) { return ((NumExp) e).v(); }
+
+	// Constant folding, with the arithmetic of the Evaluator.
+
+	public Exp visit(AddExp e, Env env) {
+		List<Exp> operands = optimizeAll(e.all());
+		if (!allNumbers(operands)) return new AddExp(operands);
+		double result = 0;
+		for (Exp exp : operands)
+			result += v(exp);
+		return new NumExp(result);
+	}
+
+	public Exp visit(SubExp e, Env env) {
+		List<Exp> operands = optimizeAll(e.all());
+		if (!allNumbers(operands)) return new SubExp(operands);
+		double result = v(operands.get(0));
+		for (int i = 1; i < operands.size(); i++)
+			result = result - v(operands.get(i));
+		return new NumExp(result);
+	}
+
+	public Exp visit(MultExp e, Env env) {
+		List<Exp> operands = optimizeAll(e.all());
+		if (!allNumbers(operands)) return new MultExp(operands);
+		double result = 1;
+		for (Exp exp : operands)
+			result *= v(exp);
+		return new NumExp(result);
+	}
+
+	public Exp visit(DivExp e, Env env) {
+		List<Exp> operands = optimizeAll(e.all());
+		if (!allNumbers(operands)) return new DivExp(operands);
+		double result = v(operands.get(0));
+		for (int i = 1; i < operands.size(); i++)
+			result = result / v(operands.get(i));
+		return new NumExp(result);
+	}
+
+	public Exp visit(LessExp e, Env env) {
+		Exp first = e.first_exp().accept(this, null), second = e.second_exp().accept(this, null);
+		if (first instanceof NumExp && second instanceof NumExp) return new BoolExp(v(first) < v(second));
+		return new LessExp(first, second);
+	}
+
+	public Exp visit(EqualExp e, Env env) {
+		Exp first = e.first_exp().accept(this, null), second = e.second_exp().accept(this, null);
+		if (first instanceof NumExp && second instanceof NumExp) return new BoolExp(v(first) == v(second));
+		return new EqualExp(first, second);
+	}
+
+	public Exp visit(GreaterExp e, Env env) {
+		Exp first = e.first_exp().accept(this, null), second = e.second_exp().accept(this, null);
+		if (first instanceof NumExp && second instanceof NumExp) return new BoolExp(v(first) > v(second));
+		return new GreaterExp(first, second);
+	}
+
+	public Exp visit(UnitExp e, Env env) { return e; }
+	public Exp visit(NumExp e, Env env) { return e; }
+	public Exp visit(StrExp e, Env env) { return e; }
+	public Exp visit(BoolExp e, Env env) { return e; }
+
+	public Exp visit(Program p, Env env) {
+		throw new UnsupportedOperationException("Use optimize(Program)");
+	}
+
+	// Scopes and constant propagation.
+
+	public Exp visit(VarExp e, Env env) {
+		Exp literal = _literals.get(e.name());
+		if (literal != null) return literal;
+		return new VarExp(e.name());
+	}
+
+	/** Binds names for an inner scope; returns the state to restore with leave. */
+	private Map<String, Exp> enter(List<String> names) {
+		Map<String, Exp> saved = _literals;
+		_literals = new HashMap<String, Exp>(_literals);
+		for (String name : names)
+			_literals.remove(name);
+		_bound.addAll(names);
+		return saved;
+	}
+
+	private void leave(List<String> names, Map<String, Exp> saved) {
+		_literals = saved;
+		for (int i = 0; i < names.size(); i++)
+			_bound.remove(_bound.size() - 1);
+	}
+
+	public Exp visit(LetExp e, Env env) {
+		List<String> names = e.names();
+		List<Exp> value_exps = optimizeAll(e.value_exps()); // In the enclosing scope.
+		Map<String, Exp> saved = enter(names);
+		List<String> kept_names = new ArrayList<String>();
+		List<Exp> kept_exps = new ArrayList<Exp>();
+		for (int i = 0; i < names.size(); i++) {
+			String name = names.get(i);
+			if (isLiteral(value_exps.get(i)) && names.indexOf(name) == names.lastIndexOf(name))
+				_literals.put(name, value_exps.get(i));
+			else {
+				kept_names.add(name);
+				kept_exps.add(value_exps.get(i));
+			}
+		}
+		Exp body = e.body().accept(this, null);
+		leave(names, saved);
+		if (kept_names.isEmpty()) return body;
+		return new LetExp(kept_names, kept_exps, body);
+	}
+
+	public Exp visit(LambdaExp e, Env env) {
+		Map<String, Exp> saved = enter(e.formals());
+		Exp body = e.body().accept(this, null);
+		leave(e.formals(), saved);
+		LambdaExp result = new LambdaExp(e.formals(), body);
+		result.setSource(e.source());
+		return result;
+	}
+
+	public Exp visit(DefineDecl d, Env env) {
+		return new DefineDecl(d.name(), d.value_exp().accept(this, null));
+	}
+
+	public Exp visit(IfExp e, Env env) {
+		Exp conditional = e.conditional().accept(this, null);
+		if (conditional instanceof BoolExp) // The other branch can never be taken.
+			return (((BoolExp) conditional).v() ? e.then_exp() : e.else_exp()).accept(this, null);
+		IfExp result = new IfExp(conditional, e.then_exp().accept(this, null), e.else_exp().accept(this, null));
+		result.setSource(e.source());
+		return result;
+	}
+
+	// Beta-reduction and inlining.
+
+	public Exp visit(CallExp e, Env env) {
+		Exp operator = e.operator().accept(this, null);
+		List<Exp> operands = optimizeAll(e.operands());
+		if (operator instanceof LambdaExp && ((LambdaExp) operator).formals().size() == operands.size()) {
+			LambdaExp lambda = (LambdaExp) operator; // Creating its closure has no effect.
+			return new LetExp(lambda.formals(), operands, lambda.body()).accept(this, null);
+		}
+		CallExp result = new CallExp(operator, operands);
+		result.setSource(e.source());
+		if (operator instanceof VarExp && !_inlining)
+			inline(result, ((VarExp) operator).name());
+		result.setPipeline(Pipeline.of(result, _bound));
+		return result;
+	}
+
+	private void inline(CallExp call, String name) {
+		if (_bound.contains(name)) return; // Not a global.
+		LambdaExp callee = global(name);
+		if (callee == null || callee.formals().size() != call.operands().size()) return;
+		Census census = new Census();
+		callee.body().accept(census, null);
+		if (census._nodes > INLINE_SIZE || census._names.contains(name)) return; // Too large, or recursive.
+		for (String used : census._names)
+			if (!callee.formals().contains(used) && _bound.contains(used))
+				return; // A global of the body is shadowed here.
+		_inlining = true;
+		Exp inlined = new LetExp(callee.formals(), optimizeAll(call.operands()), callee.body()).accept(this, null);
+		_inlining = false;
+		call.inline(callee, inlined);
+	}
+
+	/** The lambda without free variables that name is bound to, or null. */
+	private LambdaExp global(String name) {
+		if (_defined.containsKey(name)) return _defined.get(name); // Top-level lambdas have no free variables.
+		if (_globals == null) return null;
+		try {
+			Value value = _globals.get(name);
+			if (!(value instanceof Value.FunVal)) return null;
+			LambdaExp lambda = ((Value.FunVal) value).lambda();
+			return lambda != null && lambda.free().isEmpty() ? lambda : null;
+		} catch (Env.LookupException ex) {
+			return null;
+		}
+	}
+
+	public Exp visit(CarExp e, Env env) { return new CarExp(e.arg().accept(this, null)); }
+	public Exp visit(CdrExp e, Env env) { return new CdrExp(e.arg().accept(this, null)); }
+	public Exp visit(NullExp e, Env env) { return new NullExp(e.arg().accept(this, null)); }
+	public Exp visit(EvalExp e, Env env) { return new EvalExp(e.code().accept(this, null)); }
+	public Exp visit(ReadExp e, Env env) { return new ReadExp(e.file().accept(this, null)); }
+	public Exp visit(ConsExp e, Env env) { return new ConsExp(e.fst().accept(this, null), e.snd().accept(this, null)); }
+	public Exp visit(ListExp e, Env env) { return new ListExp(optimizeAll(e.elems())); }
+
+	/** Counts the nodes of an expression and collects the variable names it uses. */
+	static class Census implements Visitor<Void> {
+		int _nodes = 0;
+		Set<String> _names = new HashSet<String>();
+		Set<String> _globals = new HashSet<String>(); // Those resolved as globals, if the expression is resolved.
+
+		private Void all(List<Exp> exps) {
+			_nodes++;
+			for (Exp exp : exps)
+				exp.accept(this, null);
+			return null;
+		}
+
+		private Void all(Exp... exps) {
+			return all(java.util.Arrays.asList(exps));
+		}
+
+		public Void visit(AddExp e, Env env) { return all(e.all()); }
+		public Void visit(SubExp e, Env env) { return all(e.all()); }
+		public Void visit(MultExp e, Env env) { return all(e.all()); }
+		public Void visit(DivExp e, Env env) { return all(e.all()); }
+		public Void visit(UnitExp e, Env env) { return all(); }
+		public Void visit(NumExp e, Env env) { return all(); }
+		public Void visit(StrExp e, Env env) { return all(); }
+		public Void visit(BoolExp e, Env env) { return all(); }
+		public Void visit(Program p, Env env) { return all(p.e()); }
+		public Void visit(VarExp e, Env env) {
+			_names.add(e.name());
+			if (e.depth() == VarExp.GLOBAL) _globals.add(e.name());
+			return all();
+		}
+		public Void visit(LetExp e, Env env) { all(e.value_exps()); return all(e.body()); }
+		public Void visit(DefineDecl d, Env env) { return all(d.value_exp()); }
+		public Void visit(ReadExp e, Env env) { return all(e.file()); }
+		public Void visit(EvalExp e, Env env) { return all(e.code()); }
+		public Void visit(LambdaExp e, Env env) { return all(e.body()); }
+		public Void visit(CallExp e, Env env) { all(e.operator()); return all(e.operands()); }
+		public Void visit(IfExp e, Env env) { return all(e.conditional(), e.then_exp(), e.else_exp()); }
+		public Void visit(LessExp e, Env env) { return all(e.first_exp(), e.second_exp()); }
+		public Void visit(EqualExp e, Env env) { return all(e.first_exp(), e.second_exp()); }
+		public Void visit(GreaterExp e, Env env) { return all(e.first_exp(), e.second_exp()); }
+		public Void visit(CarExp e, Env env) { return all(e.arg()); }
+		public Void visit(CdrExp e, Env env) { return all(e.arg()); }
+		public Void visit(ConsExp e, Env env) { return all(e.fst(), e.snd()); }
+		public Void visit(ListExp e, Env env) { return all(e.elems()); }
+		public Void visit(NullExp e, Env env) { return all(e.arg()); }
+	}
+}
@@ -0,0 +1,644 @@
+package funclang;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.TreeSet;
+
+import funclang.AST.*;
+
+/**
+ * Partial evaluator: specialises a program on the values of some globals
+ * that are known ahead of time, and produces a residual program in which
+ * everything that depends only on known values has been computed.
+ *
+ * Expressions are evaluated to static values where they can be: literals,
+ * lists of static values, and closures, i.e. lambdas together with the
+ * static environment they were evaluated in. Anything else is residual
+ * code. A call of a static closure is unfolded, its arguments bound to
+ * static values or to residual lets, so recursion on a known list or
+ * number unrolls. A recursive call under a residual if, where unfolding
+ * need not stop, is unfolded too if one of its arguments is a known list
+ * shorter than in the enclosing call. Otherwise it becomes a call of a
+ * specialised definition of the callee, memoised on its static arguments;
+ * static arguments that change from one recursive call to the next are
+ * generalised to residual ones, so the number of specialised definitions
+ * stays bounded.
+ *
+ * The residual program gives the same results and errors as the original:
+ * only computations that cannot fail are done statically, arguments are
+ * still evaluated once and from left to right, and the residual program
+ * binds every global that the original binds. A global bound to a lambda
+ * keeps the lambda as written, since its body may run after other globals
+ * have been redefined; the expression of the program and the specialised
+ * definitions, which it alone calls, are what is specialised. Globals that
+ * the program defines more than once are not specialised on. This assumes
+ * that eval and require do not redefine globals while the program runs.
+ *
+ */
+public class PartialEvaluator implements Visitor<Exp> {
+
+	/** Most unfoldings in progress at once; deeper calls are specialised. */
+	public static final int UNFOLD_DEPTH = 64;
+	/** Most unfoldings per program; later calls are specialised. */
+	public static final int UNFOLDS = 10000;
+	/** Most specialised definitions per lambda before all its arguments are generalised. */
+	public static final int VARIANTS = 8;
+
+	/** A lambda evaluated at specialisation time and the static environment it was evaluated in. */
+	static class Closure {
+		final LambdaExp _lambda;
+		final Map<String, Exp> _env;
+		String _global = null; // The global bound to this closure, if any.
+		Closure(LambdaExp lambda, Map<String, Exp> env) {
+			_lambda = lambda;
+			_env = env;
+		}
+	}
+
+	/** An unfolding in progress: the lambda, how many residual ifs enclose it, and its arguments. */
+	static class Activation {
+		final LambdaExp _lambda;
+		final int _dynamic;
+		final List<Exp> _operands;
+		final String[] _keys; // null for residual arguments.
+		Activation(LambdaExp lambda, int dynamic, List<Exp> operands, String[] keys) {
+			_lambda = lambda;
+			_dynamic = dynamic;
+			_operands = operands;
+			_keys = keys;
+		}
+	}
+
+	private Map<String, Value> _known;
+	private Map<String, Exp> _globals = new HashMap<String, Exp>(); // Static values of globals defined once.
+	private Set<String> _redefined = new HashSet<String>(); // Globals that are not specialised on.
+	private Map<LambdaExp, Closure> _closures = new IdentityHashMap<LambdaExp, Closure>(); // Static closures, by the placeholder that stands for them.
+	private Map<LambdaExp, Integer> _ids = new IdentityHashMap<LambdaExp, Integer>();
+	private Map<String, Exp> _env = new HashMap<String, Exp>(); // Static value or residual variable of each name in scope.
+	private Set<String> _used = new HashSet<String>(); // Names that residual binders must not take.
+	private Set<String> _locals = new HashSet<String>(); // Residual binders.
+	private List<Activation> _stack = new ArrayList<Activation>();
+	private int _dynamic = 0; // Residual ifs and lambdas around the expression being specialised.
+	private int _unfolds = 0;
+	private Map<String, String> _specialised = new HashMap<String, String>(); // Name of the definition for each key.
+	private Map<LambdaExp, Integer> _variants = new IdentityHashMap<LambdaExp, Integer>();
+	private List<DefineDecl> _specialisations = new ArrayList<DefineDecl>();
+
+	/** A partial evaluator for the given values of globals; values that have no literal form are ignored. */
+	public PartialEvaluator(Map<String, Value> known) {
+		_known = known;
+	}
+
+	/** The residual, resolved program of p. */
+	public Program specialize(Program p) {
+		reset();
+		new Resolver().resolve(p); // To tell globals from locals.
+		Optimizer.Census census = new Optimizer.Census();
+		Set<String> defined = new HashSet<String>();
+		for (DefineDecl d : p.decls()) {
+			if (!defined.add(d.name()) || _known.containsKey(d.name())) _redefined.add(d.name());
+			d.accept(census, null);
+		}
+		if (p.e() != null) p.e().accept(census, null);
+		_used.addAll(census._globals);
+		_used.addAll(defined);
+		_used.addAll(_known.keySet());
+		for (Map.Entry<String, Value> entry : _known.entrySet()) {
+			Exp value = reify(entry.getValue());
+			if (value == null || _redefined.contains(entry.getKey())) continue;
+			Closure closure = _closures.get(value);
+			if (closure != null) {
+				closure._global = entry.getKey();
+				Optimizer.Census body = new Optimizer.Census();
+				closure._lambda.body().accept(body, null);
+				_used.addAll(body._globals); // Unfolded bodies must see the same globals.
+			}
+			_globals.put(entry.getKey(), value);
+		}
+
+		List<DefineDecl> decls = new ArrayList<DefineDecl>();
+		for (DefineDecl d : p.decls()) {
+			Exp value = d.value_exp().accept(this, null);
+			Closure closure = closure(value);
+			decls.add(new DefineDecl(d.name(), closure != null && closure._global == null ? d.value_exp() : residual(value)));
+			if (_redefined.contains(d.name()) || !closed(value)) continue;
+			if (closure != null && closure._global == null) closure._global = d.name();
+			_globals.put(d.name(), value);
+		}
+		Exp e = p.e() == null ? null : residual(p.e().accept(this, null));
+
+		Map<String, DefineDecl> inputs = new LinkedHashMap<String, DefineDecl>(); // The known globals that residual code uses.
+		for (boolean changed = true; changed; ) {
+			changed = false;
+			Optimizer.Census uses = new Optimizer.Census();
+			for (List<DefineDecl> list : List.of(decls, new ArrayList<DefineDecl>(_specialisations), new ArrayList<DefineDecl>(inputs.values())))
+				for (DefineDecl d : list)
+					d.accept(uses, null);
+			if (e != null) e.accept(uses, null);
+			for (String name : new TreeSet<String>(uses._names))
+				if (_known.containsKey(name) && _globals.containsKey(name) && !inputs.containsKey(name)) {
+					Closure closure = closure(_globals.get(name));
+					inputs.put(name, new DefineDecl(name, closure != null ? closure._lambda : residual(_globals.get(name))));
+					changed = true;
+				}
+		}
+		List<DefineDecl> result = new ArrayList<DefineDecl>(inputs.values());
+		result.addAll(_specialisations);
+		result.addAll(decls);
+		Program residual = new Program(result, e);
+		new Resolver().resolve(residual);
+		return residual;
+	}
+
+	private void reset() {
+		_globals.clear();
+		_redefined.clear();
+		_closures.clear();
+		_ids.clear();
+		_env = new HashMap<String, Exp>();
+		_used.clear();
+		_locals.clear();
+		_stack.clear();
+		_dynamic = 0;
+		_unfolds = 0;
+		_specialised.clear();
+		_variants.clear();
+		_specialisations.clear();
+	}
+
+	// Static values.
+
+	/** The static value of v, or null if it has none that can be printed. */
+	private Exp reify(Value v) {
+		if (v instanceof Value.NumVal) return number(((Value.NumVal) v).v());
+		if (v instanceof Value.BoolVal) return new BoolExp(((Value.BoolVal) v).v());
+		if (v instanceof Value.StringVal) return new StrExp(((Value.StringVal) v).v());
+		if (v instanceof Value.Null || v instanceof Value.PairVal) {
+			List<Exp> elems = new ArrayList<Exp>();
+			for (; v instanceof Value.PairVal; v = ((Value.PairVal) v).snd()) {
+				Exp elem = reify(((Value.PairVal) v).fst());
+				if (elem == null) return null;
+				elems.add(elem);
+			}
+			return v instanceof Value.Null ? new ListExp(elems) : null;
+		}
+		if (v instanceof Value.FunVal) {
+			LambdaExp lambda = ((Value.FunVal) v).lambda();
+			if (lambda != null && lambda.free().isEmpty()) return closure(lambda, new HashMap<String, Exp>());
+		}
+		return null;
+	}
+
+	/** A literal of v, or null if v has none: the Formatter prints it in a form that the Reader parses. */
+	private static NumExp number(double v) {
+		if (Double.isInfinite(v) || Double.isNaN(v) || Double.toString(v).contains("E")) return null;
+		return new NumExp(v);
+	}
+
+	private Exp closure(LambdaExp lambda, Map<String, Exp> env) {
+		LambdaExp placeholder = new LambdaExp(lambda.formals(), lambda.body());
+		_closures.put(placeholder, new Closure(lambda, env));
+		return placeholder;
+	}
+
+	private Closure closure(Exp e) {
+		return e instanceof LambdaExp ? _closures.get(e) : null;
+	}
+
+	private boolean isStatic(Exp e) {
+		if (e instanceof NumExp || e instanceof BoolExp || e instanceof StrExp || e instanceof UnitExp) return true;
+		if (e instanceof ListExp) return allStatic(((ListExp) e).elems());
+		return closure(e) != null;
+	}
+
+	private boolean allStatic(List<Exp> exps) {
+		for (Exp exp : exps)
+			if (!isStatic(exp)) return false;
+		return true;
+	}
+
+	/** Whether e is static and refers to no residual variable, so that it can be moved to another scope. */
+	private boolean closed(Exp e) {
+		if (e instanceof ListExp) {
+			for (Exp elem : ((ListExp) e).elems())
+				if (!closed(elem)) return false;
+			return true;
+		}
+		Closure closure = closure(e);
+		if (closure == null) return isStatic(e);
+		for (String name : free(closure))
+			if (!closed(closure._env.get(name))) return false;
+		return true;
+	}
+
+	/** The names of the environment of closure that its body may use. */
+	private static Set<String> free(Closure closure) {
+		Optimizer.Census census = new Optimizer.Census();
+		closure._lambda.body().accept(census, null);
+		Set<String> result = new TreeSet<String>(census._names);
+		result.retainAll(closure._env.keySet());
+		result.removeAll(closure._lambda.formals());
+		return result;
+	}
+
+	/** Identifies a closed static value: equal keys, equal values. */
+	private String key(Exp e) {
+		if (e instanceof ListExp) {
+			String result = "(list";
+			for (Exp elem : ((ListExp) e).elems())
+				result += " " + key(elem);
+			return result + ")";
+		}
+		Closure closure = closure(e);
+		if (closure == null) return e.accept(new Printer.Formatter(), null);
+		Integer id = _ids.get(closure._lambda);
+		if (id == null) _ids.put(closure._lambda, id = _ids.size());
+		String result = "#" + id + "[";
+		for (String name : free(closure))
+			result += " " + name + "=" + key(closure._env.get(name));
+		return result + "]";
+	}
+
+	// Residual code.
+
+	/** Residual code with the value of e. */
+	private Exp residual(Exp e) {
+		Closure closure = closure(e);
+		if (closure != null) return closure._global != null ? new VarExp(closure._global) : lambda(closure);
+		if (e instanceof ListExp) return new ListExp(residuals(((ListExp) e).elems()));
+		return e;
+	}
+
+	private List<Exp> residuals(List<Exp> exps) {
+		List<Exp> result = new ArrayList<Exp>();
+		for (Exp exp : exps)
+			result.add(residual(exp));
+		return result;
+	}
+
+	/** The lambda expression of closure, with its body specialised on its environment. */
+	private LambdaExp lambda(Closure closure) {
+		Map<String, Exp> saved = _env;
+		_env = new HashMap<String, Exp>(closure._env);
+		List<String> formals = new ArrayList<String>();
+		for (String formal : closure._lambda.formals()) {
+			String name = local(formal);
+			formals.add(name);
+			_env.put(formal, new VarExp(name));
+		}
+		_dynamic++; // The body runs whenever the closure is called.
+		Exp body = residual(closure._lambda.body().accept(this, null));
+		_dynamic--;
+		_env = saved;
+		LambdaExp result = new LambdaExp(formals, body);
+		result.setSource(closure._lambda.source());
+		return result;
+	}
+
+	/** A fresh name for a residual binder of name. */
+	private String local(String name) {
+		String result = name;
+		for (int i = 1; _used.contains(result); i++)
+			result = name + "_" + i;
+		_used.add(result);
+		_locals.add(result);
+		return result;
+	}
+
+	/** Binds name to value in _env: directly if value is static or a residual variable, otherwise with a residual let binding. */
+	private void bind(String name, Exp value, List<String> names, List<Exp> exps) {
+		if (isStatic(value) || value instanceof VarExp && _locals.contains(((VarExp) value).name())) {
+			_env.put(name, value);
+			return;
+		}
+		String local = local(name);
+		names.add(local);
+		exps.add(residual(value));
+		_env.put(name, new VarExp(local));
+	}
+
+	private List<Exp> evaluateAll(List<Exp> exps) {
+		List<Exp> result = new ArrayList<Exp>();
+		for (Exp exp : exps)
+			result.add(exp.accept(this, null));
+		return result;
+	}
+
+	private static boolean allNumbers(List<Exp> exps) {
+		for (Exp exp : exps)
+			if (!(exp instanceof NumExp)) return false;
+		return true;
+	}
+
+	private static double v(Exp e) { return ((NumExp) e).v(); }
+
+	// Arithmetic and comparisons, with the semantics of the Evaluator.
+
+	public Exp visit(AddExp e, Env env) {
+		List<Exp> operands = evaluateAll(e.all());
+		if (allNumbers(operands)) {
+			double result = 0;
+			for (Exp exp : operands)
+				result += v(exp);
+			if (number(result) != null) return number(result);
+		}
+		return new AddExp(residuals(operands));
+	}
+
+	public Exp visit(SubExp e, Env env) {
+		List<Exp> operands = evaluateAll(e.all());
+		if (allNumbers(operands)) {
+			double result = v(operands.get(0));
+			for (int i = 1; i < operands.size(); i++)
+				result = result - v(operands.get(i));
+			if (number(result) != null) return number(result);
+		}
+		return new SubExp(residuals(operands));
+	}
+
+	public Exp visit(MultExp e, Env env) {
+		List<Exp> operands = evaluateAll(e.all());
+		if (allNumbers(operands)) {
+			double result = 1;
+			for (Exp exp : operands)
+				result *= v(exp);
+			if (number(result) != null) return number(result);
+		}
+		return new MultExp(residuals(operands));
+	}
+
+	public Exp visit(DivExp e, Env env) {
+		List<Exp> operands = evaluateAll(e.all());
+		if (allNumbers(operands)) {
+			double result = v(operands.get(0));
+			for (int i = 1; i < operands.size(); i++)
+				result = result / v(operands.get(i));
+			if (number(result) != null) return number(result);
+		}
+		return new DivExp(residuals(operands));
+	}
+
+	public Exp visit(LessExp e, Env env) {
+		Exp first = e.first_exp().accept(this, null), second = e.second_exp().accept(this, null);
+		if (first instanceof NumExp && second instanceof NumExp) return new BoolExp(v(first) < v(second));
+		return new LessExp(residual(first), residual(second));
+	}
+
+	public Exp visit(EqualExp e, Env env) {
+		Exp first = e.first_exp().accept(this, null), second = e.second_exp().accept(this, null);
+		if (first instanceof NumExp && second instanceof NumExp) return new BoolExp(v(first) == v(second));
+		return new EqualExp(residual(first), residual(second));
+	}
+
+	public Exp visit(GreaterExp e, Env env) {
+		Exp first = e.first_exp().accept(this, null), second = e.second_exp().accept(this, null);
+		if (first instanceof NumExp && second instanceof NumExp) return new BoolExp(v(first) > v(second));
+		return new GreaterExp(residual(first), residual(second));
+	}
+
+	public Exp visit(UnitExp e, Env env) { return e; }
+	public Exp visit(NumExp e, Env env) { return e; }
+	public Exp visit(StrExp e, Env env) { return e; }
+	public Exp visit(BoolExp e, Env env) { return e; }
+
+	public Exp visit(Program p, Env env) {
+		throw new UnsupportedOperationException("Use specialize(Program)");
+	}
+
+	public Exp visit(DefineDecl d, Env env) {
+		return new DefineDecl(d.name(), residual(d.value_exp().accept(this, null)));
+	}
+
+	// Scopes.
+
+	public Exp visit(VarExp e, Env env) {
+		Exp value = _env.get(e.name());
+		if (value != null) return value;
+		value = _globals.get(e.name());
+		if (value != null) return value;
+		return new VarExp(e.name());
+	}
+
+	public Exp visit(LetExp e, Env env) {
+		List<Exp> values = evaluateAll(e.value_exps()); // In the enclosing scope.
+		Map<String, Exp> saved = _env;
+		_env = new HashMap<String, Exp>(saved);
+		List<String> names = new ArrayList<String>();
+		List<Exp> exps = new ArrayList<Exp>();
+		for (int i = 0; i < values.size(); i++)
+			bind(e.names().get(i), values.get(i), names, exps);
+		Exp body = e.body().accept(this, null);
+		Exp result = names.isEmpty() ? body : new LetExp(names, exps, residual(body));
+		_env = saved;
+		return result;
+	}
+
+	public Exp visit(LambdaExp e, Env env) {
+		return closure(e, _env);
+	}
+
+	public Exp visit(IfExp e, Env env) {
+		Exp conditional = e.conditional().accept(this, null);
+		if (conditional instanceof BoolExp)
+			return (((BoolExp) conditional).v() ? e.then_exp() : e.else_exp()).accept(this, null);
+		_dynamic++;
+		Exp then_exp = residual(e.then_exp().accept(this, null));
+		Exp else_exp = residual(e.else_exp().accept(this, null));
+		_dynamic--;
+		IfExp result = new IfExp(residual(conditional), then_exp, else_exp);
+		result.setSource(e.source());
+		return result;
+	}
+
+	// Calls: unfolding and specialisation.
+
+	public Exp visit(CallExp e, Env env) {
+		Exp operator = e.operator().accept(this, null);
+		List<Exp> operands = evaluateAll(e.operands());
+		Closure closure = closure(operator);
+		if (closure != null && closure._lambda.formals().size() == operands.size()) {
+			Activation caller = null;
+			for (Activation activation : _stack)
+				if (activation._lambda == closure._lambda) caller = activation;
+			if ((caller == null || caller._dynamic == _dynamic || descends(caller, operands)) && _stack.size() < UNFOLD_DEPTH && _unfolds < UNFOLDS)
+				return unfold(closure, operands);
+			if (closed(operator))
+				return specialize(operator, operands, caller, e);
+		}
+		CallExp result = new CallExp(residual(operator), residuals(operands));
+		result.setSource(e.source());
+		return result;
+	}
+
+	/** Whether one of operands is a known list shorter than the same argument of caller. */
+	private boolean descends(Activation caller, List<Exp> operands) {
+		for (int i = 0; i < operands.size(); i++) {
+			Exp before = caller._operands.get(i), after = operands.get(i);
+			if (before instanceof ListExp && isStatic(before) && after instanceof ListExp && isStatic(after)
+					&& ((ListExp) after).elems().size() < ((ListExp) before).elems().size())
+				return true;
+		}
+		return false;
+	}
+
+	private String[] keys(List<Exp> operands) {
+		String[] keys = new String[operands.size()];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = closed(operands.get(i)) ? key(operands.get(i)) : null;
+		return keys;
+	}
+
+	/** The body of closure, with its formals bound to operands. */
+	private Exp unfold(Closure closure, List<Exp> operands) {
+		_unfolds++;
+		Map<String, Exp> saved = _env;
+		_env = new HashMap<String, Exp>(closure._env);
+		List<String> names = new ArrayList<String>();
+		List<Exp> exps = new ArrayList<Exp>();
+		for (int i = 0; i < operands.size(); i++)
+			bind(closure._lambda.formals().get(i), operands.get(i), names, exps);
+		_stack.add(new Activation(closure._lambda, _dynamic, operands, keys(operands)));
+		Exp body = closure._lambda.body().accept(this, null);
+		_stack.remove(_stack.size() - 1);
+		Exp result = names.isEmpty() ? body : new LetExp(names, exps, residual(body));
+		_env = saved;
+		return result;
+	}
+
+	/** A call of the definition of operator specialised on its static operands. */
+	private Exp specialize(Exp operator, List<Exp> operands, Activation caller, CallExp e) {
+		Closure closure = closure(operator);
+		String[] keys = keys(operands);
+		if (caller != null)
+			for (int i = 0; i < keys.length; i++)
+				if (keys[i] != null && !keys[i].equals(caller._keys[i]))
+					keys[i] = null; // Changes from call to call.
+		String key = key(operator) + java.util.Arrays.toString(keys);
+		if (!_specialised.containsKey(key) && _variants.merge(closure._lambda, 1, Integer::sum) > VARIANTS) {
+			keys = new String[keys.length];
+			key = key(operator) + java.util.Arrays.toString(keys);
+		}
+		String name = _specialised.get(key);
+		if (name == null) name = define(key, closure, operands, keys);
+		List<Exp> residual_operands = new ArrayList<Exp>();
+		for (int i = 0; i < keys.length; i++)
+			if (keys[i] == null) residual_operands.add(residual(operands.get(i)));
+		CallExp result = new CallExp(new VarExp(name), residual_operands);
+		result.setSource(e.source());
+		return result;
+	}
+
+	/** Adds the definition of closure specialised on the operands that have keys, and returns its name. */
+	private String define(String key, Closure closure, List<Exp> operands, String[] keys) {
+		String name = local(closure._global != null ? closure._global : "specialised");
+		_locals.remove(name);
+		_specialised.put(key, name);
+		Map<String, Exp> saved_env = _env;
+		List<Activation> saved_stack = _stack;
+		int saved_dynamic = _dynamic;
+		_env = new HashMap<String, Exp>(closure._env);
+		List<String> formals = new ArrayList<String>();
+		List<Exp> arguments = new ArrayList<Exp>();
+		for (int i = 0; i < keys.length; i++) {
+			String formal = closure._lambda.formals().get(i);
+			if (keys[i] == null) {
+				String local = local(formal);
+				formals.add(local);
+				_env.put(formal, new VarExp(local));
+			} else
+				_env.put(formal, operands.get(i));
+			arguments.add(_env.get(formal));
+		}
+		_stack = new ArrayList<Activation>();
+		_stack.add(new Activation(closure._lambda, 0, arguments, keys));
+		_dynamic = 0;
+		Exp body = residual(closure._lambda.body().accept(this, null));
+		_env = saved_env;
+		_stack = saved_stack;
+		_dynamic = saved_dynamic;
+		LambdaExp lambda = new LambdaExp(formals, body);
+		lambda.setSource(closure._lambda.source());
+		_specialisations.add(new DefineDecl(name, lambda));
+		return name;
+	}
+
+	// Lists.
+
+	public Exp visit(CarExp e, Env env) {
+		Exp arg = e.arg().accept(this, null);
+		if (arg instanceof ListExp && isStatic(arg) && !((ListExp) arg).elems().isEmpty())
+			return ((ListExp) arg).elems().get(0);
+		return new CarExp(residual(arg));
+	}
+
+	public Exp visit(CdrExp e, Env env) {
+		Exp arg = e.arg().accept(this, null);
+		if (arg instanceof ListExp && isStatic(arg) && !((ListExp) arg).elems().isEmpty()) {
+			List<Exp> elems = ((ListExp) arg).elems();
+			return new ListExp(new ArrayList<Exp>(elems.subList(1, elems.size())));
+		}
+		return new CdrExp(residual(arg));
+	}
+
+	public Exp visit(ConsExp e, Env env) {
+		Exp fst = e.fst().accept(this, null), snd = e.snd().accept(this, null);
+		if (isStatic(fst) && snd instanceof ListExp && isStatic(snd)) {
+			List<Exp> elems = new ArrayList<Exp>();
+			elems.add(fst);
+			elems.addAll(((ListExp) snd).elems());
+			return new ListExp(elems);
+		}
+		return new ConsExp(residual(fst), residual(snd));
+	}
+
+	public Exp visit(ListExp e, Env env) {
+		List<Exp> elems = evaluateAll(e.elems());
+		return new ListExp(allStatic(elems) ? elems : residuals(elems));
+	}
+
+	public Exp visit(NullExp e, Env env) {
+		Exp arg = e.arg().accept(this, null);
+		if (isStatic(arg))
+			return new BoolExp(arg instanceof ListExp && ((ListExp) arg).elems().isEmpty());
+		return new NullExp(residual(arg));
+	}
+
+	public Exp visit(EvalExp e, Env env) { return new EvalExp(residual(e.code().accept(this, null))); }
+	public Exp visit(ReadExp e, Env env) { return new ReadExp(residual(e.file().accept(this, null))); }
+
+	/**
+	 * Prints the residual program of a file, specialised on globals given as
+	 * name=expression arguments. Another argument replaces the expression
+	 * of the program, e.g. with (lambda (x) (f 42 x)) to specialise f on 42.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.out.println("Usage: PartialEvaluator <file> [<name>=<expression>]... [<expression>]");
+			return;
+		}
+		Reader reader = new Reader();
+		Evaluator eval = new Evaluator(reader);
+		Program p = reader.parse(Reader.readFile(args[0]));
+		Map<String, Value> known = new LinkedHashMap<String, Value>();
+		for (int i = 1; i < args.length; i++) {
+			int equals = args[i].indexOf('=');
+			if (args[i].matches("[a-zA-Z$_][a-zA-Z0-9$_]*=.*"))
+				known.put(args[i].substring(0, equals), eval.valueOf(reader.parse(args[i].substring(equals + 1))));
+			else
+				p = new Program(p.decls(), reader.parse(args[i]).e());
+		}
+		Program residual = new PartialEvaluator(known).specialize(p);
+		Printer.Formatter formatter = new Printer.Formatter();
+		for (DefineDecl d : residual.decls())
+			System.out.println(formatter.visit(d, null));
+		if (!(residual.e() instanceof UnitExp))
+			System.out.println(formatter.visit(residual, null));
+	}
+}
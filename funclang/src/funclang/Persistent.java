@@ -0,0 +1,363 @@
+package funclang;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+import funclang.Value.*;
+
+/**
+ * The immutable collections behind MapVal, SetVal and TrieVectorVal. An
+ * update copies only the path of nodes from the root to the change and
+ * shares every other node with the collection it updates, so it takes
+ * O(log32 n) time and space, as does a lookup.
+ *
+ * Maps are hash array mapped tries: each level of the trie indexes its
+ * children by the next BITS bits of the hash of the key, and a node only
+ * stores the children it has, located by a bitmap. Keys with the same hash
+ * share a collision node. Keys are compared with equals, so structurally
+ * equal values are the same key.
+ *
+ * Vectors are relaxed radix balanced trees: elements in leaves of up to
+ * WIDTH, under nodes of up to WIDTH children. A node whose children are all
+ * full, but the last, finds the child of an index by its bits, as in a
+ * radix tree; a node built by a concatenation may have children that are
+ * partly filled, and records their sizes to find it. Concatenation merges
+ * the right edge of one tree with the left edge of the other, in O(log32 n)
+ * nodes.
+ *
+ */
+class Persistent {
+
+	static final int BITS = 5;
+	static final int WIDTH = 1 << BITS;
+	static final int MASK = WIDTH - 1;
+
+	// Hash array mapped tries.
+
+	/** The hash of a key, spread so that its lowest bits, which index the root, depend on all of its bits. */
+	static int hash(Value key) {
+		int h = key.hashCode() * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	/** A node of a trie, for the keys whose hashes have the same bits below shift. */
+	static abstract class HamtNode {
+		/** The value of key, or null. */
+		abstract Value get(Value key, int hash, int shift);
+		/** This node with key bound to value. Sets added[0] if key was not bound. */
+		abstract HamtNode assoc(Value key, int hash, int shift, Value value, boolean[] added);
+		/** This node without key, or null if it would be empty. */
+		abstract HamtNode dissoc(Value key, int hash, int shift);
+		abstract void forEach(BiConsumer<Value, Value> action);
+	}
+
+	static class BitmapNode extends HamtNode {
+		static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+		private int _bitmap; // The children that the node has.
+		private Object[] _array; // A key and its value for each child, or null and the node of the keys that share the bits of the child.
+		BitmapNode(int bitmap, Object[] array) {
+			_bitmap = bitmap;
+			_array = array;
+		}
+		Value get(Value key, int hash, int shift) {
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if ((_bitmap & bit) == 0) return null;
+			int i = 2 * Integer.bitCount(_bitmap & (bit - 1));
+			if (_array[i] == null) return ((HamtNode) _array[i + 1]).get(key, hash, shift + BITS);
+			return key.equals(_array[i]) ? (Value) _array[i + 1] : null;
+		}
+		HamtNode assoc(Value key, int hash, int shift, Value value, boolean[] added) {
+			int bit = 1 << ((hash >>> shift) & MASK);
+			int i = 2 * Integer.bitCount(_bitmap & (bit - 1));
+			if ((_bitmap & bit) == 0) {
+				added[0] = true;
+				Object[] array = new Object[_array.length + 2];
+				System.arraycopy(_array, 0, array, 0, i);
+				array[i] = key;
+				array[i + 1] = value;
+				System.arraycopy(_array, i, array, i + 2, _array.length - i);
+				return new BitmapNode(_bitmap | bit, array);
+			}
+			Object k = _array[i], v = _array[i + 1];
+			Object child;
+			if (k == null) {
+				child = ((HamtNode) v).assoc(key, hash, shift + BITS, value, added);
+			} else if (key.equals(k)) {
+				if (v == value) return this;
+				return with(i + 1, k, value);
+			} else { // Another key with the same bits so far.
+				added[0] = true;
+				child = node((Value) k, (Value) v, key, hash, value, shift + BITS);
+			}
+			return child == v ? this : with(i + 1, null, child);
+		}
+		HamtNode dissoc(Value key, int hash, int shift) {
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if ((_bitmap & bit) == 0) return this;
+			int i = 2 * Integer.bitCount(_bitmap & (bit - 1));
+			if (_array[i] == null) {
+				HamtNode child = ((HamtNode) _array[i + 1]).dissoc(key, hash, shift + BITS);
+				if (child == _array[i + 1]) return this;
+				if (child != null) return with(i + 1, null, child);
+			} else if (!key.equals(_array[i])) return this;
+			if (_bitmap == bit) return null;
+			Object[] array = new Object[_array.length - 2];
+			System.arraycopy(_array, 0, array, 0, i);
+			System.arraycopy(_array, i + 2, array, i, array.length - i);
+			return new BitmapNode(_bitmap ^ bit, array);
+		}
+		void forEach(BiConsumer<Value, Value> action) {
+			for (int i = 0; i < _array.length; i += 2)
+				if (_array[i] == null) ((HamtNode) _array[i + 1]).forEach(action);
+				else action.accept((Value) _array[i], (Value) _array[i + 1]);
+		}
+		/** A copy with key and value at i - 1 and i. */
+		private BitmapNode with(int i, Object key, Object value) {
+			Object[] array = _array.clone();
+			array[i - 1] = key;
+			array[i] = value;
+			return new BitmapNode(_bitmap, array);
+		}
+		/** The node of two keys at shift. Their hashes differ in some bit at shift or above, unless they are equal. */
+		private static HamtNode node(Value key1, Value value1, Value key2, int hash2, Value value2, int shift) {
+			int hash1 = hash(key1);
+			if (hash1 == hash2) return new CollisionNode(hash1, new Object[] { key1, value1, key2, value2 });
+			boolean[] added = new boolean[1];
+			return EMPTY.assoc(key1, hash1, shift, value1, added).assoc(key2, hash2, shift, value2, added);
+		}
+	}
+
+	/** The keys that have the same hash, in a list. */
+	static class CollisionNode extends HamtNode {
+		private int _hash;
+		private Object[] _array; // Keys and values.
+		CollisionNode(int hash, Object[] array) {
+			_hash = hash;
+			_array = array;
+		}
+		Value get(Value key, int hash, int shift) {
+			int i = find(key);
+			return i < 0 ? null : (Value) _array[i + 1];
+		}
+		HamtNode assoc(Value key, int hash, int shift, Value value, boolean[] added) {
+			if (hash != _hash) // Under a bitmap node that tells the two hashes apart.
+				return new BitmapNode(1 << ((_hash >>> shift) & MASK), new Object[] { null, this }).assoc(key, hash, shift, value, added);
+			int i = find(key);
+			Object[] array;
+			if (i >= 0) {
+				if (_array[i + 1] == value) return this;
+				array = _array.clone();
+			} else {
+				added[0] = true;
+				array = Arrays.copyOf(_array, _array.length + 2);
+				i = _array.length;
+				array[i] = key;
+			}
+			array[i + 1] = value;
+			return new CollisionNode(_hash, array);
+		}
+		HamtNode dissoc(Value key, int hash, int shift) {
+			int i = find(key);
+			if (i < 0) return this;
+			if (_array.length == 2) return null;
+			Object[] array = new Object[_array.length - 2];
+			System.arraycopy(_array, 0, array, 0, i);
+			System.arraycopy(_array, i + 2, array, i, array.length - i);
+			return new CollisionNode(_hash, array);
+		}
+		void forEach(BiConsumer<Value, Value> action) {
+			for (int i = 0; i < _array.length; i += 2)
+				action.accept((Value) _array[i], (Value) _array[i + 1]);
+		}
+		private int find(Value key) {
+			for (int i = 0; i < _array.length; i += 2)
+				if (key.equals(_array[i])) return i;
+			return -1;
+		}
+	}
+
+	// Relaxed radix balanced trees.
+
+	/** A node of a vector, at a height: leaves, of elements, are at height 0. */
+	static class TrieNode {
+		static final TrieNode EMPTY = new TrieNode(new Object[0], null);
+		private Object[] _slots; // Elements in a leaf, children above.
+		private int[] _sizes; // The number of elements of the children up to each one, or null if all but the last are full.
+		TrieNode(Object[] slots, int[] sizes) {
+			_slots = slots;
+			_sizes = sizes;
+		}
+	}
+
+	/** The number of elements of a full node at height. */
+	private static int full(int height) {
+		return 1 << (BITS * (height + 1));
+	}
+
+	static int size(TrieNode node, int height) {
+		if (height == 0) return node._slots.length;
+		if (node._sizes != null) return node._sizes[node._sizes.length - 1];
+		int last = node._slots.length - 1;
+		return last * full(height - 1) + size((TrieNode) node._slots[last], height - 1);
+	}
+
+	/** The child of node, at height above 0, that holds index i. */
+	private static int child(TrieNode node, int height, int i) {
+		int j = i >>> (BITS * height);
+		if (node._sizes == null) return j;
+		j = Math.min(j, node._sizes.length - 1); // No child has more than full(height - 1) elements, so the child is at j or after it.
+		while (node._sizes[j] <= i)
+			j++;
+		return j;
+	}
+
+	/** The index of the first element of child j of node. */
+	private static int offset(TrieNode node, int height, int j) {
+		if (j == 0) return 0;
+		return node._sizes != null ? node._sizes[j - 1] : j * full(height - 1);
+	}
+
+	/** The element at i, which is in range. */
+	static Value get(TrieNode node, int height, int i) {
+		for (; height > 0; height--) {
+			int j = child(node, height, i);
+			i -= offset(node, height, j);
+			node = (TrieNode) node._slots[j];
+		}
+		return (Value) node._slots[i];
+	}
+
+	/** node with the element at i, which is in range, replaced by v. */
+	static TrieNode set(TrieNode node, int height, int i, Value v) {
+		Object[] slots = node._slots.clone();
+		if (height == 0) {
+			slots[i] = v;
+		} else {
+			int j = child(node, height, i);
+			slots[j] = set((TrieNode) slots[j], height - 1, i - offset(node, height, j), v);
+		}
+		return new TrieNode(slots, node._sizes);
+	}
+
+	/** The vector of the elements of root, at height, then v. */
+	static TrieVectorVal push(TrieNode root, int height, int length, Value v) {
+		TrieNode node = push(root, height, v);
+		if (node != null) return new TrieVectorVal(node, height, length + 1);
+		return new TrieVectorVal(node(new Object[] { root, path(height, v) }, height + 1), height + 1, length + 1);
+	}
+
+	/** node with v added after its last element, or null if it has no room. */
+	private static TrieNode push(TrieNode node, int height, Value v) {
+		int last = node._slots.length - 1;
+		if (height == 0)
+			return last + 1 == WIDTH ? null : new TrieNode(append(node._slots, v), null);
+		TrieNode child = push((TrieNode) node._slots[last], height - 1, v);
+		if (child != null) {
+			Object[] slots = node._slots.clone();
+			slots[last] = child;
+			int[] sizes = node._sizes == null ? null : node._sizes.clone();
+			if (sizes != null) sizes[last]++;
+			return new TrieNode(slots, sizes);
+		}
+		if (last + 1 == WIDTH) return null;
+		Object[] slots = append(node._slots, path(height - 1, v));
+		int[] sizes = node._sizes;
+		if (sizes == null && size((TrieNode) node._slots[last], height - 1) != full(height - 1)) // The last child is no longer last.
+			sizes = sizes(node._slots, height);
+		if (sizes != null) {
+			sizes = Arrays.copyOf(sizes, sizes.length + 1);
+			sizes[last + 1] = sizes[last] + 1;
+		}
+		return new TrieNode(slots, sizes);
+	}
+
+	/** A node at height of the single element v. */
+	private static TrieNode path(int height, Value v) {
+		TrieNode result = new TrieNode(new Object[] { v }, null);
+		for (int h = 1; h <= height; h++)
+			result = new TrieNode(new Object[] { result }, null);
+		return result;
+	}
+
+	/** A node at height with children, with their sizes unless all but the last are full. */
+	private static TrieNode node(Object[] children, int height) {
+		int[] sizes = sizes(children, height);
+		for (int j = 0; j < children.length - 1; j++)
+			if (sizes[j] != (j + 1) * full(height - 1)) return new TrieNode(children, sizes);
+		return new TrieNode(children, null);
+	}
+
+	private static int[] sizes(Object[] children, int height) {
+		int[] sizes = new int[children.length];
+		for (int j = 0, total = 0; j < children.length; j++)
+			sizes[j] = total += size((TrieNode) children[j], height - 1);
+		return sizes;
+	}
+
+	/** The vector of elems, with full leaves and nodes but the last. */
+	static TrieVectorVal fromArray(Value[] elems) {
+		Object[] nodes = new Object[(elems.length + MASK) / WIDTH];
+		for (int j = 0; j < nodes.length; j++)
+			nodes[j] = new TrieNode(Arrays.copyOfRange(elems, j * WIDTH, Math.min(elems.length, (j + 1) * WIDTH), Object[].class), null);
+		int height = 0;
+		for (; nodes.length > 1; height++) {
+			Object[] parents = new Object[(nodes.length + MASK) / WIDTH];
+			for (int j = 0; j < parents.length; j++)
+				parents[j] = new TrieNode(Arrays.copyOfRange(nodes, j * WIDTH, Math.min(nodes.length, (j + 1) * WIDTH)), null);
+			nodes = parents;
+		}
+		return new TrieVectorVal(nodes.length == 0 ? TrieNode.EMPTY : (TrieNode) nodes[0], height, elems.length);
+	}
+
+	/** The vector of the elements of left then right, both not empty. */
+	static TrieVectorVal concat(TrieNode left, int left_height, TrieNode right, int right_height, int length) {
+		TrieNode[] nodes = merge(left, left_height, right, right_height);
+		int height = Math.max(left_height, right_height);
+		if (nodes.length == 1) return new TrieVectorVal(nodes[0], height, length);
+		return new TrieVectorVal(node(nodes, height + 1), height + 1, length);
+	}
+
+	/** One or two nodes at the greater of the two heights, which hold the elements of left then right. */
+	private static TrieNode[] merge(TrieNode left, int left_height, TrieNode right, int right_height) {
+		if (left_height == 0 && right_height == 0) // Leaves: the elements fill a first leaf.
+			return split(append(left._slots, right._slots), 0);
+		Object[] before = new Object[0], after = new Object[0];
+		TrieNode[] middle;
+		if (left_height > right_height) {
+			before = Arrays.copyOf(left._slots, left._slots.length - 1);
+			middle = merge(last(left), left_height - 1, right, right_height);
+		} else if (left_height < right_height) {
+			middle = merge(left, left_height, (TrieNode) right._slots[0], right_height - 1);
+			after = Arrays.copyOfRange(right._slots, 1, right._slots.length);
+		} else {
+			before = Arrays.copyOf(left._slots, left._slots.length - 1);
+			middle = merge(last(left), left_height - 1, (TrieNode) right._slots[0], right_height - 1);
+			after = Arrays.copyOfRange(right._slots, 1, right._slots.length);
+		}
+		Object[] children = new Object[before.length + middle.length + after.length];
+		System.arraycopy(before, 0, children, 0, before.length);
+		System.arraycopy(middle, 0, children, before.length, middle.length);
+		System.arraycopy(after, 0, children, before.length + middle.length, after.length);
+		return split(children, Math.max(left_height, right_height));
+	}
+
+	/** Slots, at most 2 * WIDTH, in one node at height, or two whose first is full of slots. */
+	private static TrieNode[] split(Object[] slots, int height) {
+		if (slots.length <= WIDTH)
+			return new TrieNode[] { height == 0 ? new TrieNode(slots, null) : node(slots, height) };
+		Object[] first = Arrays.copyOf(slots, WIDTH), second = Arrays.copyOfRange(slots, WIDTH, slots.length);
+		if (height == 0)
+			return new TrieNode[] { new TrieNode(first, null), new TrieNode(second, null) };
+		return new TrieNode[] { node(first, height), node(second, height) };
+	}
+
+	private static TrieNode last(TrieNode node) {
+		return (TrieNode) node._slots[node._slots.length - 1];
+	}
+
+	private static Object[] append(Object[] slots, Object... more) {
+		Object[] result = Arrays.copyOf(slots, slots.length + more.length);
+		System.arraycopy(more, 0, result, slots.length, more.length);
+		return result;
+	}
+}
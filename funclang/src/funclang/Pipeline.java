@@ -0,0 +1,106 @@
+package funclang;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import funclang.AST.*;
+
+/**
+ * A chain of calls of the map and filter procedures, e.g.
+ * (map f (filter p (map g lst))), which the Evaluator runs in one pass
+ * over lst, applying the stages to each element in turn, rather than
+ * building a list for every stage. The Optimizer finds the chains and
+ * attaches them to their outermost call, see CallExp.pipeline.
+ *
+ * Applying every stage to one element before the next changes the order
+ * of the applications, so a chain is only fused if each stage function
+ * is a lambda expression of one argument whose body makes no call, eval
+ * or read: applying it has no effect and terminates. Its operators must
+ * be the built-in map and filter, or closures of their definitions in
+ * lib/list.scm, which the Evaluator checks when it runs the chain. The
+ * expressions of the chain are still evaluated once each and from left
+ * to right. If an error occurs in the fused pass, the Evaluator calls
+ * the stages one after the other instead, on the same values, so that
+ * the error is the same as without fusion.
+ *
+ */
+public class Pipeline {
+
+	static final String MAP = "(lambda (op lst) (if (null? lst) (list) (cons (op (car lst)) (map op (cdr lst)))))";
+	static final String FILTER = "(lambda (pred lst) (if (null? lst) (list) (if (pred (car lst)) (cons (car lst) (filter pred (cdr lst))) (filter pred (cdr lst)))))";
+
+	private static final Map<LambdaExp, String> _standard = Collections.synchronizedMap(new WeakHashMap<LambdaExp, String>());
+	private static String _map = null, _filter = null; // As printed by the Formatter.
+
+	private List<CallExp> _stages; // The outermost first.
+	private boolean[] _filters; // Whether each stage calls filter rather than map.
+	private Exp _list;
+
+	private Pipeline(List<CallExp> stages, Exp list) {
+		_stages = stages;
+		_filters = new boolean[stages.size()];
+		for (int i = 0; i < _filters.length; i++)
+			_filters[i] = ((VarExp) stages.get(i).operator()).name().equals("filter");
+		_list = list;
+	}
+
+	/** The calls of the chain, the outermost first. */
+	public List<CallExp> stages() { return _stages; }
+
+	/** The list that the innermost stage consumes. */
+	public Exp list() { return _list; }
+
+	/** Whether stage i calls filter; otherwise it calls map. */
+	public boolean filters(int i) { return _filters[i]; }
+
+	/** The chain of two or more stages that e starts, or null. Names in bound are not globals. */
+	static Pipeline of(CallExp e, Collection<String> bound) {
+		List<CallExp> stages = new ArrayList<CallExp>();
+		Exp exp = e;
+		while (exp instanceof CallExp && isStage((CallExp) exp, bound)) {
+			stages.add((CallExp) exp);
+			exp = ((CallExp) exp).operands().get(1);
+		}
+		return stages.size() < 2 ? null : new Pipeline(stages, exp);
+	}
+
+	private static boolean isStage(CallExp e, Collection<String> bound) {
+		if (!(e.operator() instanceof VarExp) || e.operands().size() != 2) return false;
+		String name = ((VarExp) e.operator()).name();
+		if (!name.equals("map") && !name.equals("filter") || bound.contains(name)) return false;
+		if (!(e.operands().get(0) instanceof LambdaExp)) return false;
+		LambdaExp function = (LambdaExp) e.operands().get(0);
+		return function.formals().size() == 1 && pure(function.body());
+	}
+
+	/** Whether e makes no call, eval or read. */
+	private static boolean pure(Exp e) {
+		boolean[] impure = { false };
+		e.accept(new Optimizer.Census() {
+			public Void visit(CallExp e, Env env) { impure[0] = true; return null; }
+			public Void visit(EvalExp e, Env env) { impure[0] = true; return null; }
+			public Void visit(ReadExp e, Env env) { impure[0] = true; return null; }
+		}, null);
+		return !impure[0];
+	}
+
+	/** Whether operator is the procedure of stage i: built in, or a closure of its lib/list.scm definition. */
+	boolean isStandard(int i, Object operator) {
+		if (operator instanceof Value.Primitive)
+			return ((Value.Primitive) operator).name().equals(_filters[i] ? "filter" : "map");
+		if (!(operator instanceof Value.FunVal) || ((Value.FunVal) operator).lambda() == null) return false;
+		LambdaExp lambda = ((Value.FunVal) operator).lambda().source();
+		String printed = _standard.get(lambda);
+		if (printed == null) _standard.put(lambda, printed = new Printer.Formatter().visit(lambda, null));
+		if (_map == null) {
+			Reader reader = new Reader();
+			_filter = reader.parse(FILTER).e().accept(new Printer.Formatter(), null);
+			_map = reader.parse(MAP).e().accept(new Printer.Formatter(), null);
+		}
+		return printed.equals(_filters[i] ? _filter : _map);
+	}
+}
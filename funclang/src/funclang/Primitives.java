@@ -0,0 +1,693 @@
+package funclang;
+
+import static funclang.Evaluator.num;
+import static funclang.Evaluator.pair;
+import static funclang.Evaluator.string;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import funclang.AST.*;
+import funclang.Value.*;
+
+/**
+ * The procedures of the initial environment implemented in Java. The list
+ * procedures are cadr, caddr, length, append, map and filter, which 
+ * lib/std.scm used to define, and reverse, foldl, list_ref and range. They
+ * loop over their lists rather than recurse, so they take constant Java
+ * stack whatever the length of the list. In lazy mode, append, map, filter
+ * and range return lists whose rest is delayed, so that they work on
+ * infinite lists.
+ *
+ * Each gives the value and the error of its definition in lib/list.scm,
+ * which "ant check" compares it with: e.g. the operands are checked in
+ * the same order, and map puts the error of a failed call of its function
+ * into the list, as the interpreted map does. The calls of the functions
+ * that map, filter and foldl are passed are the calls of those definitions,
+ * parsed below, so that their errors show the same expressions.
+ *
+ * (memo f) memoises a pure function f, see Memo, and (memo_stats m) gives
+ * the hits, misses and entries of the cache of a memoised function m.
+ * Both count as effects, since they use the cache.
+ *
+ * The vector procedures are make_vector, list_to_vector, vector_to_list,
+ * vector_ref, vector_length and vector_slice. A vector of numbers only is
+ * a NumVectorVal, unboxed; the others are ArrayVectorVals. An index out of
+ * range gives a DynamicError, as a call with the wrong number of arguments
+ * does.
+ *
+ * The array procedures work on ArrayVals, numbers off the heap: make_array
+ * and file_array create them, array_ref, array_set, array_length and
+ * array_slice access them, array_set returning the array, and array_sum and array_fold reduce them without
+ * building a list. They count as effects, see Evaluator._effects.
+ *
+ * The matrix procedures work on MatrixVals, each in one call of a kernel
+ * of LinearAlgebra: make_matrix, list_to_matrix, matrix_to_list,
+ * matrix_ref, matrix_rows, matrix_cols, matrix_mul, matrix_transpose, the
+ * elementwise matrix_add, matrix_sub, matrix_emul and matrix_scale, dot,
+ * of two vectors of numbers, and matrix_solve. lib/matrix.scm defines them
+ * on lists of rows, for comparison.
+ *
+ * The persistent collections of Persistent: vector_set, vector_push and
+ * vector_concat return TrieVectorVals, sharing the nodes of their operands;
+ * hash_map, list_to_map, map_to_list, map_get, map_has, map_assoc,
+ * map_dissoc, map_size and map_keys work on MapVals, and hash_set,
+ * list_to_set, set_to_list, set_has, set_add, set_remove and set_size on
+ * SetVals. (equal a b) compares two values as keys are compared.
+ *
+ * record_type, record_constructor, record_predicate and record_accessor
+ * make the type and the procedures of a record declaration, see defrecord.
+ *
+ */
+public class Primitives {
+
+	private static final CallExp MAP_CALL = (CallExp) parse("(op (car lst))");
+	private static final CallExp FILTER_CALL = (CallExp) parse("(pred (car lst))");
+	private static final IfExp FILTER_IF = (IfExp) parse("(if (pred (car lst)) (cons (car lst) (filter pred (cdr lst))) (filter pred (cdr lst)))");
+	private static final CallExp FOLDL_CALL = (CallExp) parse("(op (car lst) acc)");
+	private static final CallExp ARRAY_FOLD_CALL = (CallExp) parse("(op (array_ref arr k) acc)");
+
+	/** The capacity of the cache of a memoised function, unless the Evaluator sets another. */
+	static final int MEMO_SIZE = 10000;
+
+	/** The procedures, each to be bound to its name. */
+	static List<Primitive> all() {
+		return Arrays.asList(
+			new Primitive("cadr", Arrays.asList("lst"), (a, evaluator) -> pair(pair(a[0]).snd()).fst()),
+			new Primitive("caddr", Arrays.asList("lst"), (a, evaluator) -> pair(pair(pair(a[0]).snd()).snd()).fst()),
+			new Primitive("length", Arrays.asList("lst"), (a, evaluator) -> length(a[0])),
+			new Primitive("append", Arrays.asList("lst1", "lst2"), (a, evaluator) -> evaluator.lazy() ? lazyAppend(a[0], a[1]) : append(a[0], a[1])),
+			new Primitive("map", Arrays.asList("op", "lst"), (a, evaluator) -> evaluator.lazy() ? lazyMap(a[0], a[1], evaluator) : map(a[0], a[1], evaluator)),
+			new Primitive("filter", Arrays.asList("pred", "lst"), (a, evaluator) -> evaluator.lazy() ? lazyFilter(a[0], a[1], evaluator) : filter(a[0], a[1], evaluator)),
+			new Primitive("reverse", Arrays.asList("lst"), (a, evaluator) -> reverse(a[0])),
+			new Primitive("foldl", Arrays.asList("op", "acc", "lst"), (a, evaluator) -> foldl(a[0], a[1], a[2], evaluator)),
+			new Primitive("list_ref", Arrays.asList("lst", "k"), (a, evaluator) -> listRef(a[0], a[1])),
+			new Primitive("range", Arrays.asList("from", "to"), (a, evaluator) -> evaluator.lazy() ? lazyRange(num(a[0]).v(), num(a[1]).v()) : range(a[0], a[1])),
+			new Primitive("memo", Arrays.asList("f"), (a, evaluator) -> new Memo(function(a[0]), evaluator._memo_size)),
+			new Primitive("memo_stats", Arrays.asList("m"), (a, evaluator) -> memo(a[0]).stats(evaluator)),
+			new Primitive("make_vector", Arrays.asList("n", "fill"), (a, evaluator) -> makeVector(a[0], a[1])),
+			new Primitive("list_to_vector", Arrays.asList("lst"), (a, evaluator) -> listToVector(a[0])),
+			new Primitive("vector_to_list", Arrays.asList("vec"), (a, evaluator) -> vectorToList(a[0])),
+			new Primitive("vector_ref", Arrays.asList("vec", "k"), (a, evaluator) -> vectorRef(a[0], a[1])),
+			new Primitive("vector_length", Arrays.asList("vec"), (a, evaluator) -> new NumVal(vector(a[0]).length())),
+			new Primitive("vector_slice", Arrays.asList("vec", "from", "to"), (a, evaluator) -> vectorSlice(a[0], a[1], a[2])),
+			new Primitive("make_array", Arrays.asList("n"), (a, evaluator) -> makeArray(a[0], null, evaluator)),
+			new Primitive("file_array", Arrays.asList("file", "n"), (a, evaluator) -> makeArray(a[1], Evaluator.string(a[0]), evaluator)),
+			new Primitive("array_ref", Arrays.asList("arr", "k"), (a, evaluator) -> arrayRef(a[0], a[1], evaluator)),
+			new Primitive("array_set", Arrays.asList("arr", "k", "x"), (a, evaluator) -> arraySet(a[0], a[1], a[2], evaluator)),
+			new Primitive("array_length", Arrays.asList("arr"), (a, evaluator) -> new NumVal(array(a[0], evaluator).length())),
+			new Primitive("array_slice", Arrays.asList("arr", "from", "to"), (a, evaluator) -> arraySlice(a[0], a[1], a[2], evaluator)),
+			new Primitive("array_sum", Arrays.asList("arr"), (a, evaluator) -> arraySum(a[0], evaluator)),
+			new Primitive("array_fold", Arrays.asList("op", "acc", "arr"), (a, evaluator) -> arrayFold(a[0], a[1], a[2], evaluator)),
+			new Primitive("make_matrix", Arrays.asList("rows", "cols", "fill"), (a, evaluator) -> makeMatrix(a[0], a[1], a[2])),
+			new Primitive("list_to_matrix", Arrays.asList("rows"), (a, evaluator) -> listToMatrix(a[0])),
+			new Primitive("matrix_to_list", Arrays.asList("m"), (a, evaluator) -> matrixToList(a[0])),
+			new Primitive("matrix_ref", Arrays.asList("m", "i", "j"), (a, evaluator) -> matrixRef(a[0], a[1], a[2])),
+			new Primitive("matrix_rows", Arrays.asList("m"), (a, evaluator) -> new NumVal(matrix(a[0]).rows())),
+			new Primitive("matrix_cols", Arrays.asList("m"), (a, evaluator) -> new NumVal(matrix(a[0]).cols())),
+			new Primitive("matrix_mul", Arrays.asList("a", "b"), (a, evaluator) -> matrixMul(a[0], a[1])),
+			new Primitive("matrix_transpose", Arrays.asList("m"), (a, evaluator) -> matrixTranspose(a[0])),
+			new Primitive("matrix_add", Arrays.asList("a", "b"), (a, evaluator) -> elementwise("matrix_add", a[0], a[1], (x, y) -> x + y)),
+			new Primitive("matrix_sub", Arrays.asList("a", "b"), (a, evaluator) -> elementwise("matrix_sub", a[0], a[1], (x, y) -> x - y)),
+			new Primitive("matrix_emul", Arrays.asList("a", "b"), (a, evaluator) -> elementwise("matrix_emul", a[0], a[1], (x, y) -> x * y)),
+			new Primitive("matrix_scale", Arrays.asList("k", "m"), (a, evaluator) -> matrixScale(a[0], a[1])),
+			new Primitive("dot", Arrays.asList("u", "v"), (a, evaluator) -> dot(a[0], a[1])),
+			new Primitive("matrix_solve", Arrays.asList("a", "b"), (a, evaluator) -> matrixSolve(a[0], a[1])),
+			new Primitive("vector_set", Arrays.asList("vec", "k", "x"), (a, evaluator) -> vectorSet(a[0], a[1], a[2])),
+			new Primitive("vector_push", Arrays.asList("vec", "x"), (a, evaluator) -> TrieVectorVal.of(vector(a[0])).push(Thunk.force(a[1]))),
+			new Primitive("vector_concat", Arrays.asList("vec1", "vec2"), (a, evaluator) -> TrieVectorVal.of(vector(a[0])).concat(TrieVectorVal.of(vector(a[1])))),
+			new Primitive("hash_map", Arrays.asList(), (a, evaluator) -> MapVal.EMPTY),
+			new Primitive("list_to_map", Arrays.asList("lst"), (a, evaluator) -> listToMap(a[0])),
+			new Primitive("map_to_list", Arrays.asList("m"), (a, evaluator) -> mapToList(a[0])),
+			new Primitive("map_get", Arrays.asList("m", "key", "default"), (a, evaluator) -> mapGet(a[0], a[1], a[2])),
+			new Primitive("map_has", Arrays.asList("m", "key"), (a, evaluator) -> BoolVal.of(hashMap(a[0]).get(Thunk.force(a[1])) != null)),
+			new Primitive("map_assoc", Arrays.asList("m", "key", "x"), (a, evaluator) -> hashMap(a[0]).assoc(Thunk.force(a[1]), Thunk.force(a[2]))),
+			new Primitive("map_dissoc", Arrays.asList("m", "key"), (a, evaluator) -> hashMap(a[0]).dissoc(Thunk.force(a[1]))),
+			new Primitive("map_size", Arrays.asList("m"), (a, evaluator) -> new NumVal(hashMap(a[0]).size())),
+			new Primitive("map_keys", Arrays.asList("m"), (a, evaluator) -> mapKeys(a[0])),
+			new Primitive("hash_set", Arrays.asList(), (a, evaluator) -> SetVal.EMPTY),
+			new Primitive("list_to_set", Arrays.asList("lst"), (a, evaluator) -> listToSet(a[0])),
+			new Primitive("set_to_list", Arrays.asList("s"), (a, evaluator) -> setToList(a[0])),
+			new Primitive("set_has", Arrays.asList("s", "x"), (a, evaluator) -> BoolVal.of(hashSet(a[0]).contains(Thunk.force(a[1])))),
+			new Primitive("set_add", Arrays.asList("s", "x"), (a, evaluator) -> hashSet(a[0]).add(Thunk.force(a[1]))),
+			new Primitive("set_remove", Arrays.asList("s", "x"), (a, evaluator) -> hashSet(a[0]).remove(Thunk.force(a[1]))),
+			new Primitive("set_size", Arrays.asList("s"), (a, evaluator) -> new NumVal(hashSet(a[0]).size())),
+			new Primitive("equal", Arrays.asList("a", "b"), (a, evaluator) -> BoolVal.of(Thunk.force(a[0]).equals(Thunk.force(a[1])))),
+			new Primitive("record_type", Arrays.asList("name", "fields"), (a, evaluator) -> makeRecordType(a[0], a[1])),
+			new Primitive("record_constructor", Arrays.asList("type"), (a, evaluator) -> recordConstructor(recordType(a[0]))),
+			new Primitive("record_predicate", Arrays.asList("type"), (a, evaluator) -> recordPredicate(recordType(a[0]))),
+			new Primitive("record_accessor", Arrays.asList("type", "k"), (a, evaluator) -> recordAccessor(recordType(a[0]), a[1])));
+	}
+
+	private static Value length(Value lst) {
+		int length = 0;
+		for (Value next = Thunk.force(lst); !(next instanceof Null); next = Thunk.force(pair(next).snd()))
+			length++;
+		return new NumVal(length);
+	}
+
+	private static Value append(Value lst1, Value lst2) {
+		if (Thunk.force(lst1) instanceof Null) return lst2;
+		if (Thunk.force(lst2) instanceof Null) return lst1;
+		List<Value> elems = new ArrayList<Value>();
+		for (Value next = Thunk.force(lst1); !(next instanceof Null); next = Thunk.force(pair(next).snd()))
+			elems.add(pair(next).fst());
+		return list(elems, lst2);
+	}
+
+	private static Value map(Value op, Value lst, Evaluator evaluator) {
+		List<Value> elems = new ArrayList<Value>();
+		for (Value next = Thunk.force(lst); !(next instanceof Null); next = Thunk.force(pair(next).snd()))
+			elems.add(call(op, MAP_CALL, evaluator, pair(next).fst()));
+		return list(elems, new Null());
+	}
+
+	private static Value filter(Value pred, Value lst, Evaluator evaluator) {
+		List<Value> elems = new ArrayList<Value>();
+		Value tail = new Null();
+		for (Value next = Thunk.force(lst); !(next instanceof Null); next = Thunk.force(pair(next).snd())) {
+			Value elem = pair(next).fst();
+			Value keep = Thunk.force(call(pred, FILTER_CALL, evaluator, elem));
+			if (!(keep instanceof BoolVal)) { // The rest of the list is the error of the if.
+				tail = Evaluator.conditionError(FILTER_IF);
+				break;
+			}
+			if (((BoolVal) keep).v()) elems.add(elem);
+		}
+		return list(elems, tail);
+	}
+
+	private static Value reverse(Value lst) {
+		Value result = new Null();
+		for (Value next = Thunk.force(lst); !(next instanceof Null); next = Thunk.force(pair(next).snd()))
+			result = new PairVal(pair(next).fst(), result);
+		return result;
+	}
+
+	private static Value foldl(Value op, Value acc, Value lst, Evaluator evaluator) {
+		for (Value next = Thunk.force(lst); !(next instanceof Null); next = Thunk.force(pair(next).snd()))
+			acc = call(op, FOLDL_CALL, evaluator, pair(next).fst(), acc);
+		return acc;
+	}
+
+	private static Value listRef(Value lst, Value k) {
+		Value next = lst;
+		for (double i = num(k).v(); i != 0; i--)
+			next = pair(next).snd();
+		return pair(next).fst();
+	}
+
+	private static Value range(Value from, Value to) {
+		List<Value> elems = new ArrayList<Value>();
+		double first = num(from).v(), last = num(to).v();
+		for (double i = first; i < last; i++)
+			elems.add(new NumVal(i));
+		return list(elems, new Null());
+	}
+
+	// In lazy mode, append, map, filter and range delay the rest of their lists, as cons does
+	// in their definitions, so that they work on infinite lists and build only what is used.
+
+	private static Value lazyAppend(Value lst1, Value lst2) {
+		if (Thunk.force(lst1) instanceof Null) return lst2;
+		if (Thunk.force(lst2) instanceof Null) return lst1;
+		PairVal first = pair(lst1);
+		return new PairVal(first.fst(), new Thunk(() -> lazyAppend(first.snd(), lst2)));
+	}
+	private static Value lazyMap(Value op, Value lst, Evaluator evaluator) {
+		if (Thunk.force(lst) instanceof Null) return new Null();
+		PairVal first = pair(lst);
+		return new PairVal(new Thunk(() -> call(op, MAP_CALL, evaluator, first.fst())), new Thunk(() -> lazyMap(op, first.snd(), evaluator)));
+	}
+	private static Value lazyFilter(Value pred, Value lst, Evaluator evaluator) {
+		for (Value next = Thunk.force(lst); !(next instanceof Null); next = Thunk.force(pair(next).snd())) { // Up to the next element that is kept.
+			Value elem = pair(next).fst(), rest = pair(next).snd();
+			Value keep = Thunk.force(call(pred, FILTER_CALL, evaluator, elem));
+			if (!(keep instanceof BoolVal))
+				return Evaluator.conditionError(FILTER_IF);
+			if (((BoolVal) keep).v())
+				return new PairVal(elem, new Thunk(() -> lazyFilter(pred, rest, evaluator)));
+		}
+		return new Null();
+	}
+	private static Value lazyRange(double from, double to) {
+		return from < to ? new PairVal(new NumVal(from), new Thunk(() -> lazyRange(from + 1, to))) : new Null();
+	}
+
+	private static Value makeVector(Value n, Value fill) {
+		double length = num(n).v();
+		fill = Thunk.force(fill);
+		if (!(length >= 0 && length == (int) length))
+			return new DynamicError("Invalid length " + num(n).tostring() + " of vector");
+		if (fill instanceof NumVal) {
+			double[] elems = new double[(int) length];
+			Arrays.fill(elems, ((NumVal) fill).v());
+			return new NumVectorVal(elems);
+		}
+		Value[] elems = new Value[(int) length];
+		Arrays.fill(elems, fill);
+		return new ArrayVectorVal(elems);
+	}
+
+	private static Value listToVector(Value lst) {
+		List<Value> elems = new ArrayList<Value>();
+		boolean numbers = true;
+		for (Value next = Thunk.force(lst); !(next instanceof Null); next = Thunk.force(pair(next).snd())) {
+			Value elem = Thunk.force(pair(next).fst());
+			numbers &= elem instanceof NumVal;
+			elems.add(elem);
+		}
+		if (!numbers)
+			return new ArrayVectorVal(elems.toArray(new Value[elems.size()]));
+		double[] result = new double[elems.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = ((NumVal) elems.get(i)).v();
+		return new NumVectorVal(result);
+	}
+
+	private static Value vectorToList(Value vec) {
+		VectorVal vector = vector(vec);
+		Value result = new Null();
+		for (int i = vector.length() - 1; i >= 0; i--)
+			result = new PairVal(vector.get(i), result);
+		return result;
+	}
+
+	private static Value vectorRef(Value vec, Value k) {
+		VectorVal vector = vector(vec);
+		double i = num(k).v();
+		if (!(i >= 0 && i < vector.length() && i == (int) i))
+			return new DynamicError("Index " + num(k).tostring() + " out of range of vector of length " + vector.length());
+		return vector.get((int) i);
+	}
+
+	private static Value vectorSlice(Value vec, Value from, Value to) {
+		VectorVal vector = vector(vec);
+		double first = num(from).v(), last = num(to).v();
+		if (!(0 <= first && first <= last && last <= vector.length() && first == (int) first && last == (int) last))
+			return new DynamicError("Slice from " + num(from).tostring() + " to " + num(to).tostring() + " out of range of vector of length " + vector.length());
+		return vector.slice((int) first, (int) last);
+	}
+
+	/** A new array of n zeros, off the heap, or the first n numbers stored in file, a string such as "data.bin". */
+	private static Value makeArray(Value n, StringVal file, Evaluator evaluator) {
+		evaluator._effects++;
+		double length = num(n).v();
+		if (!(length >= 0 && length == (long) length))
+			return new DynamicError("Invalid length " + num(n).tostring() + " of array");
+		if (file == null)
+			return ArrayVal.allocate((long) length);
+		try {
+			return ArrayVal.map(new java.io.File(unquoted(file)), (long) length);
+		} catch (java.io.IOException | UnsupportedOperationException e) {
+			return new DynamicError(e.getMessage());
+		}
+	}
+
+	/** The text of a string without the quotes of its literal. */
+	private static String unquoted(StringVal s) {
+		return s.v().length() >= 2 && s.v().startsWith("\"") && s.v().endsWith("\"") ? s.v().substring(1, s.v().length() - 1) : s.v();
+	}
+
+	private static Value arrayRef(Value arr, Value k, Evaluator evaluator) {
+		ArrayVal array = array(arr, evaluator);
+		double i = num(k).v();
+		if (!(i >= 0 && i < array.length() && i == (long) i))
+			return new DynamicError("Index " + num(k).tostring() + " out of range of array of length " + array.length());
+		return new NumVal(array.get((long) i));
+	}
+
+	private static Value arraySet(Value arr, Value k, Value x, Evaluator evaluator) {
+		ArrayVal array = array(arr, evaluator);
+		double i = num(k).v();
+		double v = num(x).v();
+		if (!(i >= 0 && i < array.length() && i == (long) i))
+			return new DynamicError("Index " + num(k).tostring() + " out of range of array of length " + array.length());
+		array.set((long) i, v);
+		return array; // So that sets can be chained, also in lazy mode, where they only run when their value is needed.
+	}
+
+	private static Value arraySlice(Value arr, Value from, Value to, Evaluator evaluator) {
+		ArrayVal array = array(arr, evaluator);
+		double first = num(from).v(), last = num(to).v();
+		if (!(0 <= first && first <= last && last <= array.length() && first == (long) first && last == (long) last))
+			return new DynamicError("Slice from " + num(from).tostring() + " to " + num(to).tostring() + " out of range of array of length " + array.length());
+		return array.slice((long) first, (long) last);
+	}
+
+	private static Value arraySum(Value arr, Evaluator evaluator) {
+		ArrayVal array = array(arr, evaluator);
+		double sum = 0;
+		for (long i = 0; i < array.length(); i++)
+			sum += array.get(i);
+		return new NumVal(sum);
+	}
+
+	/** Calls (op elem acc) on each element in turn, as foldl does on a list. */
+	private static Value arrayFold(Value op, Value acc, Value arr, Evaluator evaluator) {
+		ArrayVal array = array(arr, evaluator);
+		for (long i = 0; i < array.length(); i++)
+			acc = call(op, ARRAY_FOLD_CALL, evaluator, new NumVal(array.get(i)), acc);
+		return acc;
+	}
+
+	private static Value makeMatrix(Value rows, Value cols, Value fill) {
+		double r = num(rows).v(), c = num(cols).v();
+		double v = num(fill).v();
+		if (!(r >= 0 && c >= 0 && r == (int) r && c == (int) c && r * c <= Integer.MAX_VALUE))
+			return new DynamicError("Invalid dimensions " + num(rows).tostring() + "x" + num(cols).tostring() + " of matrix");
+		double[] elems = new double[(int) (r * c)];
+		Arrays.fill(elems, v);
+		return new MatrixVal((int) r, (int) c, elems);
+	}
+
+	/** The matrix of a list of rows, each a list of numbers of the same length. */
+	private static Value listToMatrix(Value rows) {
+		List<double[]> result = new ArrayList<double[]>();
+		for (Value next = Thunk.force(rows); !(next instanceof Null); next = Thunk.force(pair(next).snd())) {
+			List<Value> row = new ArrayList<Value>();
+			for (Value elem = Thunk.force(pair(next).fst()); !(elem instanceof Null); elem = Thunk.force(pair(elem).snd()))
+				row.add(pair(elem).fst());
+			double[] values = new double[row.size()];
+			for (int j = 0; j < values.length; j++)
+				values[j] = num(row.get(j)).v();
+			if (!result.isEmpty() && values.length != result.get(0).length)
+				return new DynamicError("Rows of lengths " + result.get(0).length + " and " + values.length + " in list_to_matrix");
+			result.add(values);
+		}
+		int cols = result.isEmpty() ? 0 : result.get(0).length;
+		double[] elems = new double[result.size() * cols];
+		for (int i = 0; i < result.size(); i++)
+			System.arraycopy(result.get(i), 0, elems, i * cols, cols);
+		return new MatrixVal(result.size(), cols, elems);
+	}
+
+	private static Value matrixToList(Value m) {
+		MatrixVal matrix = matrix(m);
+		List<Value> rows = new ArrayList<Value>();
+		for (int i = 0; i < matrix.rows(); i++) {
+			List<Value> row = new ArrayList<Value>();
+			for (int j = 0; j < matrix.cols(); j++)
+				row.add(new NumVal(matrix.get(i, j)));
+			rows.add(list(row, new Null()));
+		}
+		return list(rows, new Null());
+	}
+
+	private static Value matrixRef(Value m, Value i, Value j) {
+		MatrixVal matrix = matrix(m);
+		double row = num(i).v(), col = num(j).v();
+		if (!(row >= 0 && row < matrix.rows() && row == (int) row && col >= 0 && col < matrix.cols() && col == (int) col))
+			return new DynamicError("Index " + num(i).tostring() + " " + num(j).tostring() + " out of range of matrix of " + dimensions(matrix));
+		return new NumVal(matrix.get((int) row, (int) col));
+	}
+
+	private static Value matrixMul(Value a, Value b) {
+		MatrixVal left = matrix(a), right = matrix(b);
+		if (left.cols() != right.rows())
+			return dimensionError("matrix_mul", left, right);
+		return new MatrixVal(left.rows(), right.cols(), LinearAlgebra.multiply(left.v(), right.v(), left.rows(), left.cols(), right.cols()));
+	}
+
+	private static Value matrixTranspose(Value m) {
+		MatrixVal matrix = matrix(m);
+		return new MatrixVal(matrix.cols(), matrix.rows(), LinearAlgebra.transpose(matrix.v(), matrix.rows(), matrix.cols()));
+	}
+
+	private static Value elementwise(String name, Value a, Value b, java.util.function.DoubleBinaryOperator op) {
+		MatrixVal left = matrix(a), right = matrix(b);
+		if (left.rows() != right.rows() || left.cols() != right.cols())
+			return dimensionError(name, left, right);
+		double[] elems = new double[left.v().length];
+		for (int i = 0; i < elems.length; i++)
+			elems[i] = op.applyAsDouble(left.v()[i], right.v()[i]);
+		return new MatrixVal(left.rows(), left.cols(), elems);
+	}
+
+	private static Value matrixScale(Value k, Value m) {
+		double factor = num(k).v();
+		MatrixVal matrix = matrix(m);
+		double[] elems = new double[matrix.v().length];
+		for (int i = 0; i < elems.length; i++)
+			elems[i] = factor * matrix.v()[i];
+		return new MatrixVal(matrix.rows(), matrix.cols(), elems);
+	}
+
+	private static Value dot(Value u, Value v) {
+		NumVectorVal left = numVector(u), right = numVector(v);
+		if (left.length() != right.length())
+			return new DynamicError("Vectors of lengths " + left.length() + " and " + right.length() + " in dot");
+		return new NumVal(LinearAlgebra.dot(left.v(), right.v()));
+	}
+
+	private static Value matrixSolve(Value a, Value b) {
+		MatrixVal left = matrix(a), right = matrix(b);
+		if (left.rows() != left.cols() || left.rows() != right.rows())
+			return dimensionError("matrix_solve", left, right);
+		double[] x = LinearAlgebra.solve(left.v(), right.v(), left.rows(), right.cols());
+		if (x == null)
+			return new DynamicError("Singular matrix in matrix_solve");
+		return new MatrixVal(right.rows(), right.cols(), x);
+	}
+
+	private static DynamicError dimensionError(String name, MatrixVal a, MatrixVal b) {
+		return new DynamicError("Matrices of " + dimensions(a) + " and " + dimensions(b) + " in " + name);
+	}
+
+	private static String dimensions(MatrixVal m) {
+		return m.rows() + "x" + m.cols();
+	}
+
+	private static Value vectorSet(Value vec, Value k, Value x) {
+		VectorVal vector = vector(vec);
+		double i = num(k).v();
+		if (!(i >= 0 && i < vector.length() && i == (int) i))
+			return new DynamicError("Index " + num(k).tostring() + " out of range of vector of length " + vector.length());
+		return TrieVectorVal.of(vector).set((int) i, Thunk.force(x));
+	}
+
+	/** The map of a list of bindings, each a list of a key and its value. A later binding of a key replaces an earlier one. */
+	private static Value listToMap(Value lst) {
+		MapVal result = MapVal.EMPTY;
+		for (Value next = Thunk.force(lst); !(next instanceof Null); next = Thunk.force(pair(next).snd())) {
+			PairVal binding = pair(pair(next).fst());
+			result = result.assoc(Thunk.force(binding.fst()), Thunk.force(pair(binding.snd()).fst()));
+		}
+		return result;
+	}
+
+	private static Value mapToList(Value m) {
+		List<Value> bindings = new ArrayList<Value>();
+		hashMap(m).forEach((key, value) -> bindings.add(list(Arrays.asList(key, value), new Null())));
+		return list(bindings, new Null());
+	}
+
+	private static Value mapGet(Value m, Value key, Value otherwise) {
+		Value value = hashMap(m).get(Thunk.force(key));
+		return value != null ? value : otherwise;
+	}
+
+	private static Value mapKeys(Value m) {
+		List<Value> keys = new ArrayList<Value>();
+		hashMap(m).forEach((key, value) -> keys.add(key));
+		return list(keys, new Null());
+	}
+
+	private static Value listToSet(Value lst) {
+		SetVal result = SetVal.EMPTY;
+		for (Value next = Thunk.force(lst); !(next instanceof Null); next = Thunk.force(pair(next).snd()))
+			result = result.add(Thunk.force(pair(next).fst()));
+		return result;
+	}
+
+	private static Value setToList(Value s) {
+		List<Value> elems = new ArrayList<Value>();
+		hashSet(s).forEach(elems::add);
+		return list(elems, new Null());
+	}
+
+	/**
+	 * The definitions of (defrecord name (field ...)), which the parser
+	 * replaces with them: name is bound to the type of the records, with
+	 * the name and the fields as strings, make_name to the constructor,
+	 * is_name to the predicate and name_field to the accessor of each
+	 * field, which is given its offset here, so that it reads the slot of
+	 * a record without looking up the field.
+	 */
+	public static List<DefineDecl> defrecord(String name, List<String> fields) {
+		List<Exp> names = new ArrayList<Exp>();
+		for (String field : fields)
+			names.add(new StrExp("\"" + field + "\""));
+		List<DefineDecl> result = new ArrayList<DefineDecl>();
+		result.add(new DefineDecl(name, new CallExp(new VarExp("record_type"), Arrays.asList(new StrExp("\"" + name + "\""), new ListExp(names)))));
+		result.add(new DefineDecl("make_" + name, new CallExp(new VarExp("record_constructor"), Arrays.asList(new VarExp(name)))));
+		result.add(new DefineDecl("is_" + name, new CallExp(new VarExp("record_predicate"), Arrays.asList(new VarExp(name)))));
+		for (int i = 0; i < fields.size(); i++)
+			result.add(new DefineDecl(name + "_" + fields.get(i), new CallExp(new VarExp("record_accessor"), Arrays.asList(new VarExp(name), new NumExp(i)))));
+		return result;
+	}
+
+	private static Value makeRecordType(Value name, Value fields) {
+		List<String> names = new ArrayList<String>();
+		for (Value next = Thunk.force(fields); !(next instanceof Null); next = Thunk.force(pair(next).snd()))
+			names.add(unquoted(string(pair(next).fst())));
+		return new RecordType(unquoted(string(name)), names);
+	}
+
+	/** A constructor whose formals are the fields of type. Fields are evaluated, also under --lazy. */
+	private static Value recordConstructor(RecordType type) {
+		return new Primitive("make_" + type.name(), type.fields(), (a, evaluator) -> {
+			Value[] fields = new Value[a.length];
+			for (int i = 0; i < a.length; i++)
+				fields[i] = Thunk.force(a[i]);
+			return new RecordVal(type, fields);
+		});
+	}
+
+	private static Value recordPredicate(RecordType type) {
+		return new Primitive("is_" + type.name(), Arrays.asList("x"), (a, evaluator) -> {
+			Value x = Thunk.force(a[0]);
+			return BoolVal.of(x instanceof RecordVal && ((RecordVal) x).type() == type);
+		});
+	}
+
+	private static Value recordAccessor(RecordType type, Value k) {
+		double offset = num(k).v();
+		if (!(offset >= 0 && offset < type.fields().size() && offset == (int) offset))
+			return new DynamicError("Field " + num(k).tostring() + " out of range of record " + type.name() + " of " + type.fields().size() + " fields");
+		String name = type.name() + "_" + type.fields().get((int) offset);
+		int i = (int) offset;
+		return new Primitive(name, Arrays.asList(type.name()), (a, evaluator) -> {
+			Value r = Thunk.force(a[0]);
+			if (!(r instanceof RecordVal)) throw Evaluator.castError(r, RecordVal.class);
+			if (((RecordVal) r).type() != type) return new DynamicError("Record " + r.tostring() + " is not a " + type.name() + " in " + name);
+			return ((RecordVal) r).get(i);
+		});
+	}
+
+	/**
+	 * A function memoised by (memo f), of the formals of f. A call whose 
+	 * arguments are structurally equal to those of an earlier call gives the
+	 * result of that call without calling f again, so f must have no effects.
+	 * The cache keeps the results of the most recently used arguments, up to
+	 * its capacity, and counts hits and misses. The arguments are evaluated
+	 * before the call, also in lazy mode, since they are compared.
+	 */
+	static class Memo extends Primitive {
+		private FunVal _function;
+		private Map<List<Value>, Value> _cache;
+		private int _hits = 0, _misses = 0;
+		@SuppressWarnings("serial")
+		Memo(FunVal function, int capacity) {
+			super("memo", function.formals(), null);
+			_function = function;
+			_cache = new LinkedHashMap<List<Value>, Value>(16, 0.75f, true) { // In order of use.
+				protected boolean removeEldestEntry(Map.Entry<List<Value>, Value> eldest) {
+					return size() > capacity;
+				}
+			};
+		}
+		public Value apply(Value[] actuals, Evaluator evaluator) {
+			evaluator._effects++; // The cache is mutable state.
+			Value[] forced = new Value[actuals.length];
+			for (int i = 0; i < forced.length; i++)
+				forced[i] = Thunk.force(actuals[i]);
+			List<Value> key = Arrays.asList(forced);
+			Value result = _cache.get(key);
+			if (result != null) {
+				_hits++;
+				return result;
+			}
+			_misses++;
+			result = evaluator.invoke(_function, forced);
+			_cache.put(key, result);
+			return result;
+		}
+		/** The list of the hits, the misses and the entries of the cache. */
+		Value stats(Evaluator evaluator) {
+			evaluator._effects++;
+			return list(Arrays.asList(new NumVal(_hits), new NumVal(_misses), new NumVal(_cache.size())), new Null());
+		}
+	}
+
+	private static FunVal function(Value f) {
+		f = Thunk.force(f);
+		if (f instanceof FunVal) return (FunVal) f;
+		throw Evaluator.castError(f, FunVal.class);
+	}
+
+	private static VectorVal vector(Value v) {
+		v = Thunk.force(v);
+		if (v instanceof VectorVal) return (VectorVal) v;
+		throw Evaluator.castError(v, VectorVal.class);
+	}
+
+	private static RecordType recordType(Value v) {
+		v = Thunk.force(v);
+		if (v instanceof RecordType) return (RecordType) v;
+		throw Evaluator.castError(v, RecordType.class);
+	}
+
+	private static MapVal hashMap(Value v) {
+		v = Thunk.force(v);
+		if (v instanceof MapVal) return (MapVal) v;
+		throw Evaluator.castError(v, MapVal.class);
+	}
+
+	private static SetVal hashSet(Value v) {
+		v = Thunk.force(v);
+		if (v instanceof SetVal) return (SetVal) v;
+		throw Evaluator.castError(v, SetVal.class);
+	}
+
+	private static MatrixVal matrix(Value v) {
+		v = Thunk.force(v);
+		if (v instanceof MatrixVal) return (MatrixVal) v;
+		throw Evaluator.castError(v, MatrixVal.class);
+	}
+
+	private static NumVectorVal numVector(Value v) {
+		v = Thunk.force(v);
+		if (v instanceof NumVectorVal) return (NumVectorVal) v;
+		throw Evaluator.castError(v, NumVectorVal.class);
+	}
+
+	private static ArrayVal array(Value v, Evaluator evaluator) {
+		evaluator._effects++;
+		v = Thunk.force(v);
+		if (v instanceof ArrayVal) return (ArrayVal) v;
+		throw Evaluator.castError(v, ArrayVal.class);
+	}
+
+	private static Memo memo(Value m) {
+		m = Thunk.force(m);
+		if (m instanceof Memo) return (Memo) m;
+		throw Evaluator.castError(m, Memo.class);
+	}
+
+	/** The value of site, a call of f on actuals, with the errors that the Evaluator gives such a call. */
+	private static Value call(Value f, CallExp site, Evaluator evaluator, Value... actuals) {
+		f = Thunk.force(f);
+		if (!(f instanceof FunVal))
+			return Evaluator.operatorError(site);
+		Value error = Evaluator.checkCall((FunVal) f, site);
+		if (error != null)
+			return error;
+		return evaluator.invoke((FunVal) f, actuals);
+	}
+
+	/** The list of elems, ending with tail. */
+	private static Value list(List<Value> elems, Value tail) {
+		Value result = tail;
+		for (int i = elems.size() - 1; i >= 0; i--)
+			result = new PairVal(elems.get(i), result);
+		return result;
+	}
+
+	private static Exp parse(String exp) {
+		return new Reader().parse(exp).e();
+	}
+}
@@ -112,7 +112,10 @@ public class Printer {
 			result += e.operator().accept(this, env) + " ";
 			for(AST.Exp exp : e.operands())
 				result += exp.accept(this, env) + " ";
-			return result + ")";
+			result += ")";
+			if (e.inlined() != null) // See Optimizer.
+				result += "<inlined " + e.inlined().accept(this, env) + ">";
+			return result;
 		}
 		
 		public String visit(AST.IfExp e, Env env) {
@@ -12,6 +12,14 @@ import funclang.parser.FuncLangParser;
 
 public class Reader {
 	
+	private Resolver _resolver = new Resolver();
+	private Optimizer _optimizer = null;
+
+	/** Runs optimizer on every program read from now on, or no optimiser if it is null. */
+	public void setOptimizer(Optimizer optimizer) {
+		_optimizer = optimizer;
+	}
+	
 	Program read() throws IOException {
 		String programText = readNextProgram();
 		return parse(programText);
@@ -21,9 +29,29 @@ public class Reader {
 		FuncLangLexer l = new FuncLangLexer(new org.antlr.v4.runtime.ANTLRInputStream(programText));
 		FuncLangParser p = new FuncLangParser(new org.antlr.v4.runtime.CommonTokenStream(l));
 		Program program = p.program().ast;
+		if (_optimizer != null)
+			return _optimizer.optimize(program); // Which resolves the optimised program.
+		_resolver.resolve(program); // Lexical addressing, done once per parsed program.
 		return program;
 	}
 	
+	private java.util.function.BiConsumer<String, String> _reads = null; // Told of the files that programs read.
+
+	/** Calls reads with the name and the text, or null if it cannot be read, of every file that programs read. */
+	public void setReads(java.util.function.BiConsumer<String, String> reads) {
+		_reads = reads;
+	}
+
+	/** The text of fileName, read by a program with read or require. */
+	String load(String fileName) throws IOException {
+		String text = null;
+		try {
+			return text = readFile(fileName);
+		} finally {
+			if (_reads != null) _reads.accept(fileName, text);
+		}
+	}
+	
 	static String readFile(String fileName) throws IOException {
 		try (BufferedReader br = new BufferedReader(
 				new FileReader(fileName))) {
@@ -0,0 +1,154 @@
+package funclang;
+
+import java.util.List;
+
+import funclang.AST.*;
+
+/**
+ * Lexical addressing pass. It runs once over a parsed program and rewrites
+ * every variable reference to a (depth, slot) address, where depth is the
+ * number of frames between the reference and its binder and slot is the
+ * position of the name in that frame. 
+ * 
+ * Each let expression and each lambda introduces exactly one frame, which 
+ * mirrors the Env.FrameEnv that the Evaluator builds at run time. Names 
+ * that are not bound by any enclosing frame are marked as global.
+ *
+ * Closures are flat. A lambda does not see the frames around it, only one
+ * frame with the values of its free variables, which this pass collects
+ * in LambdaExp.free(). Their references in the body are addressed in that
+ * frame, and LambdaExp.captures() holds references to the same variables
+ * addressed where the lambda is evaluated, from which the closure is built.
+ *
+ */
+public class Resolver implements AST.Visitor<Void> {
+
+	/** Compile-time counterpart of a FrameEnv: only the names are known. */
+	static class Scope {
+		final List<String> _names;
+		final Scope _parent;
+		LambdaExp _lambda = null; // For the frame of the free variables of a closure.
+		Scope _outer = null; // Where _lambda is evaluated.
+		Scope(List<String> names, Scope parent) {
+			_names = names;
+			_parent = parent;
+		}
+	}
+
+	private Scope _scope = null;
+
+	public void resolve(Program p) {
+		_scope = null;
+		p.accept(this, null);
+	}
+
+	private void resolveAll(List<Exp> exps) {
+		for (Exp exp : exps)
+			exp.accept(this, null);
+	}
+
+	public Void visit(AddExp e, Env env) { resolveAll(e.all()); return null; }
+	public Void visit(SubExp e, Env env) { resolveAll(e.all()); return null; }
+	public Void visit(MultExp e, Env env) { resolveAll(e.all()); return null; }
+	public Void visit(DivExp e, Env env) { resolveAll(e.all()); return null; }
+	public Void visit(UnitExp e, Env env) { return null; }
+	public Void visit(NumExp e, Env env) { return null; }
+	public Void visit(StrExp e, Env env) { return null; }
+	public Void visit(BoolExp e, Env env) { return null; }
+
+	public Void visit(Program p, Env env) {
+		for (DefineDecl d : p.decls())
+			d.accept(this, null);
+		p.e().accept(this, null);
+		return null;
+	}
+
+	public Void visit(VarExp e, Env env) {
+		e.resolve(VarExp.GLOBAL, -1);
+		address(e, _scope);
+		return null;
+	}
+
+	/** Resolves e in scope, capturing it in the closures it is free in. Returns whether it is bound. */
+	private boolean address(VarExp e, Scope scope) {
+		for (int depth = 0; scope != null; scope = scope._parent, depth++) {
+			int slot = scope._names.lastIndexOf(e.name()); // Later bindings shadow earlier ones.
+			if (slot < 0 && scope._lambda != null) { // Free in the lambda: bound outside it, or global.
+				VarExp capture = new VarExp(e.name());
+				if (!address(capture, scope._outer))
+					return false;
+				slot = scope._lambda.capture(capture);
+			}
+			if (slot >= 0) {
+				e.resolve(depth, slot);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public Void visit(LetExp e, Env env) {
+		resolveAll(e.value_exps()); // Value expressions are evaluated in the enclosing frame.
+		_scope = new Scope(e.names(), _scope);
+		e.body().accept(this, null);
+		_scope = _scope._parent;
+		return null;
+	}
+
+	public Void visit(DefineDecl d, Env env) {
+		d.value_exp().accept(this, null);
+		return null;
+	}
+
+	public Void visit(LambdaExp e, Env env) {
+		Scope outer = _scope;
+		e.free().clear();
+		e.captures().clear();
+		Scope free = new Scope(e.free(), null);
+		free._lambda = e;
+		free._outer = outer;
+		_scope = new Scope(e.formals(), free);
+		e.body().accept(this, null);
+		_scope = outer;
+		return null;
+	}
+
+	public Void visit(CallExp e, Env env) {
+		e.operator().accept(this, null);
+		resolveAll(e.operands());
+		if (e.inlined() != null)
+			e.inlined().accept(this, null);
+		return null;
+	}
+
+	public Void visit(IfExp e, Env env) {
+		e.conditional().accept(this, null);
+		e.then_exp().accept(this, null);
+		e.else_exp().accept(this, null);
+		return null;
+	}
+
+	public Void visit(LessExp e, Env env) { return visitComparator(e); }
+	public Void visit(EqualExp e, Env env) { return visitComparator(e); }
+	public Void visit(GreaterExp e, Env env) { return visitComparator(e); }
+
+	private Void visitComparator(BinaryComparator e) {
+		e.first_exp().accept(this, null);
+		e.second_exp().accept(this, null);
+		return null;
+	}
+
+	public Void visit(CarExp e, Env env) { return e.arg().accept(this, null); }
+	public Void visit(CdrExp e, Env env) { return e.arg().accept(this, null); }
+	public Void visit(NullExp e, Env env) { return e.arg().accept(this, null); }
+	public Void visit(EvalExp e, Env env) { return e.code().accept(this, null); }
+	public Void visit(ReadExp e, Env env) { return e.file().accept(this, null); }
+
+	public Void visit(ConsExp e, Env env) {
+		e.fst().accept(this, null);
+		e.snd().accept(this, null);
+		return null;
+	}
+
+	public Void visit(ListExp e, Env env) { resolveAll(e.elems()); return null; }
+}
@@ -0,0 +1,461 @@
+package funclang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import funclang.AST.*;
+import funclang.Env.GlobalEnv;
+import funclang.Value.*;
+
+/**
+ * A persistent cache of the values of programs, so that a session that
+ * runs the same programs again, such as a batch job piped into the
+ * Interpreter with --cache=file, gets their values without running them.
+ *
+ * Programs are deterministic: the value of a program depends only on its
+ * text, the globals that earlier programs of the session defined, and the
+ * files that it reads. A value is therefore stored under a SHA-256 digest
+ * of the program, as printed by the Formatter, and of the history of the
+ * session: the options of the engine and every earlier program that
+ * changed the globals, with the text of the files that it read. The value
+ * is only used while the files that the program itself read have the
+ * same text. A program that changes the globals, with define or require,
+ * always runs and extends the history instead, so that later programs
+ * see its definitions. Values that contain functions are not stored, nor
+ * are the values of programs that use mutable state, such as arrays.
+ *
+ * The store is a file of CAPACITY bytes, mapped into memory: a header, then
+ * one record per value, appended in the order they were stored. Each
+ * record has the time of its last use, and when the store is full, the
+ * most recently used values that fill half of it are kept and the others
+ * evicted, in a new file that then replaces the store, so that a crash
+ * leaves either store whole. A cache holds a lock on the file LOCK, next to
+ * the store, while it is in use; a cache that finds it locked by another
+ * process, or finds the store corrupt, runs every program uncached, and in
+ * the second case empties the store.
+ *
+ */
+public class ResultCache {
+
+	static final int CAPACITY = 16 << 20; // Bytes, header included.
+	private static final int MAGIC = 0x464c5243;
+	private static final int HEADER = 16; // Magic, end of the records, clock.
+	private static final int DIGEST = 32;
+	private static final byte[] MISSING = new byte[DIGEST]; // The digest of a file that cannot be read.
+	static final String LOCK = ".lock"; // Appended to the name of the store.
+
+	private File _file;
+	private FileLock _lock; // Held until the process ends.
+	private MappedByteBuffer _store; // null when programs run uncached.
+	private int _end; // Of the last record.
+	private long _clock; // Incremented by every use.
+	private Map<String, Integer> _index = new HashMap<String, Integer>(); // Offset of the current record of each key.
+
+	private Evaluator _evaluator;
+	private GlobalEnv _globals;
+	private byte[] _history;
+	private List<String> _reads = null; // Names and texts of the files read by the running program.
+
+	/** A cache in file, for programs run by evaluator, or by engines sharing its globals, with the given options. */
+	public ResultCache(File file, String options, Evaluator evaluator) throws IOException {
+		_file = file;
+		FileChannel lock = FileChannel.open(new File(file.getPath() + LOCK).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			_lock = lock.tryLock();
+		} catch (OverlappingFileLockException e) { // Held by another cache of this process.
+			_lock = null;
+		}
+		if (_lock != null) {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				_store = channel.map(FileChannel.MapMode.READ_WRITE, 0, CAPACITY); // Stays mapped once the channel is closed.
+			}
+			boolean valid;
+			try {
+				valid = open();
+			} catch (RuntimeException e) { // A record that runs past the store.
+				valid = false;
+			}
+			if (!valid) clear();
+		} else lock.close();
+		_evaluator = evaluator;
+		_globals = (GlobalEnv) evaluator.initEnv;
+		_history = digest(options.getBytes(StandardCharsets.UTF_8));
+		evaluator._reader.setReads((name, text) -> {
+			if (_reads != null) {
+				_reads.add(name);
+				_reads.add(text);
+			}
+		});
+	}
+
+	/** The value of p, from the cache, or from engine, which runs p. */
+	public Value valueOf(Program p, Function<Program, Value> engine) {
+		if (_store == null) return engine.apply(p);
+		String text = text(p);
+		byte[] key = digest(_history, text.getBytes(StandardCharsets.UTF_8));
+		Value cached = lookup(key);
+		if (cached != null) return cached;
+		int size = _globals.size(), version = _globals.version();
+		long effects = _evaluator._effects;
+		_reads = new ArrayList<String>();
+		Value result = null;
+		try {
+			result = engine.apply(p);
+		} finally {
+			List<String> reads = _reads;
+			_reads = null;
+			if (_globals.size() != size || _globals.version() != version) { // Including the definitions made before an exception.
+				List<byte[]> parts = new ArrayList<byte[]>(Arrays.asList(_history, text.getBytes(StandardCharsets.UTF_8)));
+				for (String read : reads)
+					parts.add(read == null ? MISSING : read.getBytes(StandardCharsets.UTF_8));
+				_history = digest(parts.toArray(new byte[0][]));
+			} else if (result != null && _evaluator._effects == effects && _store != null)
+				store(key, reads, result);
+		}
+		return result;
+	}
+
+	/** Whether the value of p, run now, would come from the cache. */
+	public boolean contains(Program p) {
+		if (_store == null) return false;
+		String key = hex(digest(_history, text(p).getBytes(StandardCharsets.UTF_8)));
+		try {
+			return _index.containsKey(key) && current(_index.get(key));
+		} catch (RuntimeException e) {
+			discard();
+			return false;
+		}
+	}
+
+	private static String text(Program p) {
+		Printer.Formatter formatter = new Printer.Formatter();
+		StringBuilder text = new StringBuilder();
+		for (DefineDecl d : p.decls())
+			text.append(formatter.visit(d, null)).append('\n');
+		return text.append(formatter.visit(p, null)).toString();
+	}
+
+	// The store.
+
+	/** Indexes the records of the store, or returns false if it is not a valid store. */
+	private boolean open() {
+		if (_store.getInt(0) != MAGIC) return false;
+		_end = _store.getInt(4);
+		_clock = _store.getLong(8);
+		if (_end < HEADER || _end > CAPACITY) return false;
+		for (int at = HEADER; at < _end; at += _store.getInt(at)) {
+			int length = _store.getInt(at);
+			if (length < 4 + DIGEST + 8 + 4 || at + length > _end) return false;
+			_index.put(hex(key(at)), at); // Later records of a key replace earlier ones.
+		}
+		return true;
+	}
+
+	private void clear() {
+		_index.clear();
+		_end = HEADER;
+		_clock = 0;
+		_store.putInt(0, MAGIC);
+		header();
+	}
+
+	/** Empties a corrupt store, and runs programs uncached from now on. */
+	private void discard() {
+		clear();
+		_store = null;
+	}
+
+	private void header() {
+		_store.putInt(4, _end);
+		_store.putLong(8, _clock);
+	}
+
+	private byte[] key(int at) {
+		byte[] key = new byte[DIGEST];
+		_store.get(at + 4, key);
+		return key;
+	}
+
+	/** The value stored under key, if the files that it read are unchanged, or null, also if the store is corrupt. */
+	private Value lookup(byte[] key) {
+		Integer at = _index.get(hex(key));
+		try {
+			if (at == null || !current(at)) return null;
+			_store.putLong(at + 4 + DIGEST, ++_clock);
+			header();
+			ByteBuffer record = record(at);
+			for (int reads = count(record, 4 + DIGEST); reads > 0; reads--) {
+				string(record);
+				record.position(record.position() + DIGEST);
+			}
+			return decode(record);
+		} catch (RuntimeException e) { // Thrown by decode, or by reading past the record.
+			discard();
+			return null;
+		}
+	}
+
+	/** The contents of the record at at, after its length, key and time of use. */
+	private ByteBuffer record(int at) {
+		ByteBuffer record = _store.duplicate();
+		record.limit(at + _store.getInt(at));
+		record.position(at + 4 + DIGEST + 8);
+		return record;
+	}
+
+	/** Whether the files read by the program of the record at at still have the same text. */
+	private boolean current(int at) {
+		ByteBuffer record = record(at);
+		for (int reads = count(record, 4 + DIGEST); reads > 0; reads--) {
+			String name = string(record);
+			byte[] digest = new byte[DIGEST];
+			record.get(digest);
+			String text;
+			try {
+				text = Reader.readFile(name);
+			} catch (IOException e) {
+				text = null;
+			}
+			if (!Arrays.equals(digest, text == null ? MISSING : digest(text.getBytes(StandardCharsets.UTF_8)))) return false;
+		}
+		return true;
+	}
+
+	/** Stores value under key, for a program that read reads, names and texts in turn. */
+	private void store(byte[] key, List<String> reads, Value value) {
+		byte[] record;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0); // The length, set below.
+			out.write(key);
+			out.writeLong(++_clock);
+			out.writeInt(reads.size() / 2);
+			for (int i = 0; i < reads.size(); i += 2) {
+				write(out, reads.get(i));
+				out.write(reads.get(i + 1) == null ? MISSING : digest(reads.get(i + 1).getBytes(StandardCharsets.UTF_8)));
+			}
+			if (!encode(value, out)) return;
+			record = bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // Not thrown by a ByteArrayOutputStream.
+		}
+		ByteBuffer.wrap(record).putInt(0, record.length);
+		if (record.length > (CAPACITY - HEADER) / 2) return;
+		if (_end + record.length > CAPACITY) {
+			try {
+				evict();
+			} catch (IOException e) { // The store is unchanged, but full.
+				_store = null;
+				return;
+			}
+		}
+		_store.put(_end, record);
+		_index.put(hex(key), _end);
+		_end += record.length;
+		header();
+	}
+
+	/**
+	 * Keeps the most recently used records that fill half of the store. They
+	 * are written to a new file, which then replaces the store.
+	 */
+	private void evict() throws IOException {
+		List<Integer> records = new ArrayList<Integer>(_index.values());
+		records.sort(Comparator.comparingLong((Integer at) -> _store.getLong(at + 4 + DIGEST)).reversed());
+		List<byte[]> kept = new ArrayList<byte[]>();
+		int size = 0;
+		for (int at : records) {
+			int length = _store.getInt(at);
+			if (size + length > (CAPACITY - HEADER) / 2) break;
+			byte[] record = new byte[length];
+			_store.get(at, record);
+			kept.add(record);
+			size += length;
+		}
+		File temp = new File(_file.getPath() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			_store = channel.map(FileChannel.MapMode.READ_WRITE, 0, CAPACITY);
+		}
+		_store.putInt(0, MAGIC);
+		_index.clear();
+		_end = HEADER;
+		for (int i = kept.size() - 1; i >= 0; i--) { // In their order of use.
+			_store.put(_end, kept.get(i));
+			_index.put(hex(key(_end)), _end);
+			_end += kept.get(i).length;
+		}
+		header();
+		_store.force();
+		Files.move(temp.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE); // The mapping follows the file.
+	}
+
+	// Values, as a tag and its contents. Lists are written as their elements and the value that ends them, vectors as their length and elements, maps and sets likewise, matrices as their dimensions and elements.
+
+	private static boolean encode(Value v, DataOutputStream out) throws IOException {
+		v = Thunk.force(v);
+		if (v instanceof NumVal) {
+			out.writeByte('N');
+			out.writeDouble(((NumVal) v).v());
+		} else if (v instanceof BoolVal) {
+			out.writeByte('B');
+			out.writeBoolean(((BoolVal) v).v());
+		} else if (v instanceof StringVal) {
+			out.writeByte('S');
+			write(out, ((StringVal) v).v());
+		} else if (v instanceof DynamicError) {
+			out.writeByte('E');
+			write(out, v.tostring());
+		} else if (v instanceof Null) {
+			out.writeByte('0');
+		} else if (v instanceof UnitVal) {
+			out.writeByte('U');
+		} else if (v instanceof PairVal) {
+			List<Value> elems = new ArrayList<Value>();
+			for (; v instanceof PairVal; v = Thunk.force(((PairVal) v).snd()))
+				elems.add(((PairVal) v).fst());
+			out.writeByte('L');
+			out.writeInt(elems.size());
+			for (Value elem : elems)
+				if (!encode(elem, out)) return false;
+			return encode(v, out);
+		} else if (v instanceof NumVectorVal) {
+			out.writeByte('D');
+			out.writeInt(((NumVectorVal) v).length());
+			for (double elem : ((NumVectorVal) v).v())
+				out.writeDouble(elem);
+		} else if (v instanceof VectorVal) { // Decoded as an ArrayVectorVal, which is equal to it.
+			out.writeByte('A');
+			out.writeInt(((VectorVal) v).length());
+			for (int i = 0; i < ((VectorVal) v).length(); i++)
+				if (!encode(((VectorVal) v).get(i), out)) return false;
+		} else if (v instanceof MapVal || v instanceof SetVal) {
+			List<Value> elems = new ArrayList<Value>();
+			if (v instanceof MapVal) ((MapVal) v).forEach((key, value) -> { elems.add(key); elems.add(value); });
+			else ((SetVal) v).forEach(elems::add);
+			out.writeByte(v instanceof MapVal ? 'H' : 'T');
+			out.writeInt(elems.size());
+			for (Value elem : elems)
+				if (!encode(elem, out)) return false;
+		} else if (v instanceof MatrixVal) {
+			out.writeByte('M');
+			out.writeInt(((MatrixVal) v).rows());
+			out.writeInt(((MatrixVal) v).cols());
+			for (double elem : ((MatrixVal) v).v())
+				out.writeDouble(elem);
+		} else return false; // A function, an array, or a record, whose type is only equal to itself.
+		return true;
+	}
+
+	private static Value decode(ByteBuffer in) {
+		switch (in.get()) {
+		case 'N': return new NumVal(in.getDouble());
+		case 'B': return BoolVal.of(in.get() != 0);
+		case 'S': return new StringVal(string(in));
+		case 'E': return new DynamicError(string(in));
+		case '0': return new Null();
+		case 'U': return UnitVal.v;
+		case 'L': {
+			Value[] elems = new Value[count(in, 1)];
+			for (int i = 0; i < elems.length; i++)
+				elems[i] = decode(in);
+			Value result = decode(in);
+			for (int i = elems.length - 1; i >= 0; i--)
+				result = new PairVal(elems[i], result);
+			return result;
+		}
+		case 'D': {
+			double[] elems = new double[count(in, 8)];
+			for (int i = 0; i < elems.length; i++)
+				elems[i] = in.getDouble();
+			return new NumVectorVal(elems);
+		}
+		case 'A': {
+			Value[] elems = new Value[count(in, 1)];
+			for (int i = 0; i < elems.length; i++)
+				elems[i] = decode(in);
+			return new ArrayVectorVal(elems);
+		}
+		case 'H': {
+			MapVal result = MapVal.EMPTY;
+			for (int i = count(in, 1); i > 0; i -= 2)
+				result = result.assoc(decode(in), decode(in));
+			return result;
+		}
+		case 'T': {
+			SetVal result = SetVal.EMPTY;
+			for (int i = count(in, 1); i > 0; i--)
+				result = result.add(decode(in));
+			return result;
+		}
+		case 'M': {
+			int rows = count(in, 0), cols = count(in, 0);
+			if ((long) rows * cols > in.remaining() / 8) throw new IllegalStateException("Invalid matrix in the result cache at " + in.position());
+			double[] elems = new double[rows * cols];
+			for (int i = 0; i < elems.length; i++)
+				elems[i] = in.getDouble();
+			return new MatrixVal(rows, cols, elems);
+		}
+		default: throw new IllegalStateException("Invalid value in the result cache at " + (in.position() - 1));
+		}
+	}
+
+	private static void write(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/** A count of the items that follow in in, each of at least size bytes, so that a corrupt count cannot exhaust the heap. */
+	private static int count(ByteBuffer in, int size) {
+		int count = in.getInt();
+		if (count < 0 || size > 0 && count > in.remaining() / size) throw new IllegalStateException("Invalid count in the result cache at " + (in.position() - 4));
+		return count;
+	}
+
+	private static String string(ByteBuffer in) {
+		byte[] bytes = new byte[count(in, 1)];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static byte[] digest(byte[]... parts) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (byte[] part : parts) {
+				digest.update(ByteBuffer.allocate(4).putInt(part.length).array()); // So that parts cannot run into each other.
+				digest.update(part);
+			}
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // Every JVM has SHA-256.
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder result = new StringBuilder();
+		for (byte b : bytes)
+			result.append(String.format("%02x", b));
+		return result.toString();
+	}
+}
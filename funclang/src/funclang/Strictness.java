@@ -0,0 +1,174 @@
+package funclang;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import funclang.AST.*;
+import funclang.Env.GlobalEnv;
+
+/**
+ * Strictness analysis for the lazy mode of the Evaluator. The lazy mode
+ * only evaluates an expression when its value is used, so a function is
+ * strict in a formal if its body, whenever it is evaluated, certainly uses
+ * the argument: evaluating the argument before the call then changes
+ * nothing but saves the thunk. The same holds for the bindings of a let.
+ *
+ * Each expression is mapped to the variables that evaluating it certainly
+ * uses: all operands of arithmetic, comparisons and list accessors, the
+ * condition of an if and what both of its branches use, the operator of
+ * a call and the arguments that the callee is strict in. Constructors and
+ * lambdas use nothing. A callee is known if it is a lambda expression or
+ * the lambda of a closure bound to a global; recursive functions are
+ * analysed to a least fixed point, starting from strict in everything.
+ *
+ * A condition that is not a boolean is taken to be an error, like an
+ * argument that fails: with the analysis, the error of another argument
+ * may be reported first. Results depend on the lambdas that globals are
+ * bound to, so they are dropped whenever a global is redefined.
+ *
+ */
+public class Strictness implements Visitor<Set<String>> {
+
+	private GlobalEnv _globals;
+	private int _version = -1; // Of _globals, when _results were computed.
+	private Map<ASTNode, boolean[]> _results = new IdentityHashMap<ASTNode, boolean[]>(); // Of lambdas and lets.
+	private Map<LambdaExp, boolean[]> _assumed = new IdentityHashMap<LambdaExp, boolean[]>(); // For lambdas being analysed.
+
+	public Strictness(GlobalEnv globals) {
+		_globals = globals;
+	}
+
+	/** Whether each formal of e is certainly used by its body. */
+	public boolean[] formals(LambdaExp e) {
+		boolean[] result = result(e);
+		if (result != null) return result;
+		result = _assumed.get(e);
+		if (result != null) return result; // A recursive call: the current approximation.
+		result = new boolean[e.formals().size()];
+		Arrays.fill(result, true);
+		while (true) {
+			_assumed.put(e, result);
+			boolean[] next = strict(e.formals(), e.body().accept(this, null));
+			if (Arrays.equals(next, result)) break;
+			result = next;
+		}
+		_assumed.remove(e);
+		if (_assumed.isEmpty()) _results.put(e, result); // Otherwise it depends on approximations.
+		return result;
+	}
+
+	/** Whether each binding of e is certainly used by its body. */
+	public boolean[] names(LetExp e) {
+		boolean[] result = result(e);
+		if (result != null) return result;
+		result = strict(e.names(), e.body().accept(this, null));
+		if (_assumed.isEmpty()) _results.put(e, result);
+		return result;
+	}
+
+	private boolean[] result(ASTNode e) {
+		if (_globals.version() != _version) {
+			_results.clear();
+			_version = _globals.version();
+		}
+		return _results.get(e);
+	}
+
+	/** Whether each of names, bound in one frame, is in used. Later names shadow earlier ones. */
+	private static boolean[] strict(List<String> names, Set<String> used) {
+		boolean[] result = new boolean[names.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = used.contains(names.get(i)) && names.lastIndexOf(names.get(i)) == i;
+		return result;
+	}
+
+	private Set<String> all(List<Exp> exps) {
+		Set<String> result = new HashSet<String>();
+		for (Exp exp : exps)
+			result.addAll(exp.accept(this, null));
+		return result;
+	}
+
+	private Set<String> all(Exp... exps) {
+		return all(Arrays.asList(exps));
+	}
+
+	public Set<String> visit(AddExp e, Env env) { return all(e.all()); }
+	public Set<String> visit(SubExp e, Env env) { return all(e.all()); }
+	public Set<String> visit(MultExp e, Env env) { return all(e.all()); }
+	public Set<String> visit(DivExp e, Env env) { return all(e.all()); }
+	public Set<String> visit(LessExp e, Env env) { return all(e.first_exp(), e.second_exp()); }
+	public Set<String> visit(EqualExp e, Env env) { return all(e.first_exp(), e.second_exp()); }
+	public Set<String> visit(GreaterExp e, Env env) { return all(e.first_exp(), e.second_exp()); }
+	public Set<String> visit(CarExp e, Env env) { return all(e.arg()); }
+	public Set<String> visit(CdrExp e, Env env) { return all(e.arg()); }
+	public Set<String> visit(NullExp e, Env env) { return all(e.arg()); }
+	public Set<String> visit(EvalExp e, Env env) { return all(e.code()); }
+	public Set<String> visit(ReadExp e, Env env) { return all(e.file()); }
+
+	public Set<String> visit(UnitExp e, Env env) { return all(); }
+	public Set<String> visit(NumExp e, Env env) { return all(); }
+	public Set<String> visit(StrExp e, Env env) { return all(); }
+	public Set<String> visit(BoolExp e, Env env) { return all(); }
+	public Set<String> visit(LambdaExp e, Env env) { return all(); }
+	public Set<String> visit(ConsExp e, Env env) { return all(); } // Its fields are delayed.
+	public Set<String> visit(ListExp e, Env env) { return all(); }
+	public Set<String> visit(Program p, Env env) { return all(); }
+	public Set<String> visit(DefineDecl d, Env env) { return all(); }
+
+	public Set<String> visit(VarExp e, Env env) {
+		Set<String> result = all();
+		result.add(e.name());
+		return result;
+	}
+
+	public Set<String> visit(IfExp e, Env env) {
+		Set<String> result = e.conditional().accept(this, null);
+		Set<String> both = e.then_exp().accept(this, null);
+		both.retainAll(e.else_exp().accept(this, null));
+		result.addAll(both);
+		return result;
+	}
+
+	public Set<String> visit(LetExp e, Env env) {
+		Set<String> body = e.body().accept(this, null);
+		boolean[] strict = strict(e.names(), body);
+		Set<String> result = new HashSet<String>(body);
+		result.removeAll(e.names());
+		for (int i = 0; i < strict.length; i++)
+			if (strict[i]) result.addAll(e.value_exps().get(i).accept(this, null));
+		return result;
+	}
+
+	public Set<String> visit(CallExp e, Env env) {
+		Set<String> result = e.operator().accept(this, null);
+		LambdaExp callee = callee(e.operator());
+		if (callee == null || callee.formals().size() != e.operands().size())
+			return result;
+		boolean[] strict = formals(callee);
+		for (int i = 0; i < strict.length; i++)
+			if (strict[i]) result.addAll(e.operands().get(i).accept(this, null));
+		if (callee == e.operator()) { // Its body is evaluated here, and may use variables of this scope.
+			Set<String> body = callee.body().accept(this, null);
+			body.removeAll(callee.formals());
+			result.addAll(body);
+		}
+		return result;
+	}
+
+	/** The lambda that operator evaluates to, if it is known. */
+	private LambdaExp callee(Exp operator) {
+		if (operator instanceof LambdaExp) return (LambdaExp) operator;
+		if (!(operator instanceof VarExp) || ((VarExp) operator).depth() != VarExp.GLOBAL) return null;
+		try {
+			Value value = _globals.get(((VarExp) operator).name());
+			return value instanceof Value.FunVal ? ((Value.FunVal) value).lambda() : null;
+		} catch (Env.LookupException ex) {
+			return null;
+		}
+	}
+}
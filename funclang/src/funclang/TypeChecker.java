@@ -0,0 +1,570 @@
+package funclang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import funclang.AST.*;
+import funclang.Env.GlobalEnv;
+
+/**
+ * Hindley-Milner type inference for the Evaluator. Before a program runs,
+ * its definitions and its expression are typed with let-polymorphism: the
+ * types are num, bool, string, unit, lists of one element type, and
+ * functions of a fixed arity. A definition or expression that types runs
+ * without the checks that typing makes redundant: operands of arithmetic
+ * and comparisons are numbers, conditions booleans, and operators functions
+ * of the right arity. Code that does not type, because it is ill-typed or
+ * uses eval, read or a global of unknown type, runs with all checks, as
+ * before. Typing cannot rule out car or cdr of an empty list, so those
+ * keep their checks.
+ *
+ * Typed code relies on the types of the globals it uses, and on the types
+ * of the arguments of the lambdas it defines, which untyped code may call
+ * with anything. A lambda therefore only runs typed if its caller is typed,
+ * or if the classes of the arguments show that they have the types of its
+ * formals, which is only possible if those are not lists or functions. When
+ * a global is redefined with another type, every lambda typed before falls
+ * back to the checks.
+ *
+ * In strict mode, a program that does not type because of a type error is
+ * reported and does not run.
+ *
+ */
+public class TypeChecker implements Visitor<TypeChecker.Type> {
+
+	/** A type error, found before the program runs. */
+	public static class TypeError extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		TypeError(String message) { super(message); }
+	}
+
+	/** Thrown for code that is not typed although it may be well-typed. */
+	private static class Untyped extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		Untyped() { super(null, null, false, false); }
+	}
+
+	static abstract class Type {}
+
+	/** A type variable, free or bound to a type by unification. */
+	static class Var extends Type {
+		Type _instance = null;
+		int _level; // Of the let or define that introduced it; see generalize.
+		Var(int level) { _level = level; }
+	}
+
+	/** A type constructor applied to types. A function type has the types of its formals and its result. */
+	static class Con extends Type {
+		String _name;
+		Type[] _args;
+		Con(String name, Type... args) {
+			_name = name;
+			_args = args;
+		}
+	}
+
+	static final Con NUM = new Con("num"), BOOL = new Con("bool"), STRING = new Con("string"), UNIT = new Con("unit");
+	static final String LIST = "list", FUNCTION = "->";
+
+	/** A type whose variables in _vars stand for any type, as the type of a global or let-bound name. */
+	static class Scheme {
+		List<Var> _vars;
+		Type _type;
+		Scheme(List<Var> vars, Type type) {
+			_vars = vars;
+			_type = type;
+		}
+	}
+
+	/**
+	 * How a typed lambda may be entered: under which inference it was typed,
+	 * and the classes of the values of its formals, or null for a formal that
+	 * its body uses as any type. Calls from untyped code run the body typed
+	 * only if the formals are checkable and the arguments have these classes.
+	 */
+	static class Entry {
+		Object _stamp;
+		Class<?>[] _formals;
+		boolean _checkable = true;
+	}
+
+	/** The lambdas that inference typed in a program, with the types of their formals. */
+	private static class Typing {
+		Map<LambdaExp, Type[]> _lambdas = new LinkedHashMap<LambdaExp, Type[]>();
+	}
+
+	private static class Scope {
+		String _name;
+		Scheme _scheme;
+		Scope _next;
+		Scope(String name, Scheme scheme, Scope next) {
+			_name = name;
+			_scheme = scheme;
+			_next = next;
+		}
+	}
+
+	private Map<String, Scheme> _schemes = new HashMap<String, Scheme>(); // Of the globals defined by typed code.
+	private Object _stamp = new Object(); // Of the current typings, replaced when a global changes type.
+	private boolean _strict = false;
+	private Set<String> _defining = new HashSet<String>(); // Globals of the programs whose definitions run.
+	private Map<Program, Typing> _running = new IdentityHashMap<Program, Typing>();
+
+	// State of the inference.
+	private int _level = 0;
+	private Scope _scope = null;
+	private Map<String, Type> _group = Collections.emptyMap(); // Definitions being typed, bound monomorphically.
+	private List<String> _pending = Collections.emptyList(); // Later definitions of the program, not typed yet.
+	private Map<String, Scheme> _program = Collections.emptyMap(); // Earlier definitions of the program, null if untyped.
+	private Map<LambdaExp, Type[]> _lambdas = null; // Typed so far in the current definition or expression.
+
+	public TypeChecker(GlobalEnv globals) {
+		globals.watch(this::redefined);
+	}
+
+	/** In strict mode, programs with type errors do not run. */
+	public void setStrict(boolean strict) {
+		_strict = strict;
+	}
+
+	/** The stamp of typed lambdas and of trusted code, which is current until a global changes type. */
+	public Object stamp() { return _stamp; }
+
+	/**
+	 * Types p before it runs and records the types of its definitions. Returns
+	 * whether its expression is typed. In strict mode, a type error is thrown
+	 * instead. Then commit must be called once its definitions have run, or
+	 * abort if they fail.
+	 */
+	public boolean begin(Program p) {
+		clear(p);
+		Typing typing = new Typing();
+		List<String> errors = new ArrayList<String>();
+		Map<String, Scheme> schemes = decls(p.decls(), typing, errors);
+		boolean typed = false;
+		try {
+			_program = schemes;
+			_lambdas = new LinkedHashMap<LambdaExp, Type[]>();
+			infer(p.e());
+			typing._lambdas.putAll(_lambdas);
+			typed = true;
+		} catch (TypeError ex) {
+			errors.add(ex.getMessage());
+		} catch (Untyped ex) {
+		} finally {
+			reset();
+		}
+		if (_strict && !errors.isEmpty())
+			throw new TypeError(errors.get(0));
+		for (Map.Entry<String, Scheme> entry : schemes.entrySet()) {
+			Scheme old = _schemes.get(entry.getKey());
+			if (old != null && (entry.getValue() == null || !show(old).equals(show(entry.getValue()))))
+				_stamp = new Object(); // Typed code may rely on the old type.
+			if (entry.getValue() == null) _schemes.remove(entry.getKey());
+			else _schemes.put(entry.getKey(), entry.getValue());
+		}
+		_defining.addAll(schemes.keySet());
+		_running.put(p, typing);
+		return typed;
+	}
+
+	/** The definitions of p, begun with begin, have run: its typed lambdas are entered typed from now on. */
+	public void commit(Program p) {
+		Typing typing = _running.remove(p);
+		for (DefineDecl d : p.decls())
+			_defining.remove(d.name());
+		for (Map.Entry<LambdaExp, Type[]> lambda : typing._lambdas.entrySet())
+			lambda.getKey().setTyping(entry(lambda.getValue()));
+	}
+
+	/** The definitions of p, begun with begin, failed: the types of its globals are unknown. */
+	public void abort(Program p) {
+		_running.remove(p);
+		for (DefineDecl d : p.decls()) {
+			_defining.remove(d.name());
+			_schemes.remove(d.name());
+		}
+	}
+
+	/**
+	 * The stamp under which a closure of f runs on actuals, called from typed
+	 * code if trusted: the current stamp if its lambda is typed, or null.
+	 */
+	public Object entry(Value.FunVal f, Value[] actuals, boolean trusted) {
+		LambdaExp lambda = f.lambda();
+		Entry entry = lambda == null ? null : lambda.typing();
+		if (entry == null || entry._stamp != _stamp) return null;
+		if (!lambda.captures().isEmpty() && f.trust() != _stamp) return null; // Its free variables may have any type.
+		if (trusted) return _stamp;
+		if (!entry._checkable) return null;
+		for (int i = 0; i < actuals.length; i++)
+			if (entry._formals[i] != null && !entry._formals[i].isInstance(actuals[i])) return null;
+		return _stamp;
+	}
+
+	/** Another global has been redefined by untyped code, such as another engine: its type is unknown. */
+	private void redefined(String name) {
+		if (_defining.contains(name) || _schemes.remove(name) == null) return;
+		_stamp = new Object();
+	}
+
+	/** Clears the typings of the lambdas of p, which an earlier run of p may have set. */
+	private void clear(Program p) {
+		Optimizer.Census clear = new Optimizer.Census() {
+			public Void visit(LambdaExp e, Env env) {
+				e.setTyping(null);
+				return super.visit(e, env);
+			}
+		};
+		for (DefineDecl d : p.decls())
+			d.accept(clear, null);
+		p.accept(clear, null);
+	}
+
+	private void reset() {
+		_level = 0;
+		_scope = null;
+		_group = Collections.emptyMap();
+		_pending = Collections.emptyList();
+		_program = Collections.emptyMap();
+		_lambdas = null;
+	}
+
+	/**
+	 * The schemes of decls, null for those that are not typed. If all of them
+	 * are lambdas, they are typed together, so that they can call each other.
+	 * Otherwise, or if that fails, they are typed one by one, and only lambdas
+	 * can call themselves: a definition of another expression runs before the
+	 * global it defines exists, and before the definitions that follow it.
+	 */
+	private Map<String, Scheme> decls(List<DefineDecl> decls, Typing typing, List<String> errors) {
+		Map<String, Scheme> result = new LinkedHashMap<String, Scheme>();
+		Set<String> names = new HashSet<String>();
+		boolean group = true;
+		for (DefineDecl d : decls)
+			group &= d.value_exp() instanceof LambdaExp && names.add(d.name());
+		if (group && !decls.isEmpty()) {
+			try {
+				_level = 1;
+				_group = new HashMap<String, Type>();
+				for (DefineDecl d : decls)
+					_group.put(d.name(), fresh());
+				_lambdas = new LinkedHashMap<LambdaExp, Type[]>();
+				for (DefineDecl d : decls)
+					unify(_group.get(d.name()), infer(d.value_exp()), d.value_exp());
+				_level = 0;
+				for (DefineDecl d : decls)
+					result.put(d.name(), generalize(_group.get(d.name())));
+				typing._lambdas.putAll(_lambdas);
+				return result;
+			} catch (TypeError | Untyped ex) {
+				result.clear(); // Typed one by one below, which reports the error.
+			} finally {
+				reset();
+			}
+		}
+		for (int i = 0; i < decls.size(); i++) {
+			DefineDecl d = decls.get(i);
+			List<String> pending = new ArrayList<String>();
+			for (DefineDecl later : decls.subList(i + 1, decls.size()))
+				pending.add(later.name());
+			try {
+				_pending = pending;
+				_program = result;
+				_lambdas = new LinkedHashMap<LambdaExp, Type[]>();
+				_level = 1;
+				if (d.value_exp() instanceof LambdaExp)
+					_group = Collections.singletonMap(d.name(), fresh());
+				Type type = infer(d.value_exp());
+				if (d.value_exp() instanceof LambdaExp)
+					unify(_group.get(d.name()), type, d.value_exp());
+				_level = 0;
+				result.put(d.name(), generalize(type));
+				typing._lambdas.putAll(_lambdas);
+			} catch (TypeError ex) {
+				errors.add(ex.getMessage());
+				result.put(d.name(), null);
+			} catch (Untyped ex) {
+				result.put(d.name(), null);
+			} finally {
+				reset();
+			}
+		}
+		return result;
+	}
+
+	private Entry entry(Type[] formals) {
+		Entry entry = new Entry();
+		entry._stamp = _stamp;
+		entry._formals = new Class<?>[formals.length];
+		for (int i = 0; i < formals.length; i++) {
+			Type type = resolve(formals[i]);
+			if (type instanceof Var) continue;
+			String name = ((Con) type)._name;
+			if (name.equals("num")) entry._formals[i] = Value.NumVal.class;
+			else if (name.equals("bool")) entry._formals[i] = Value.BoolVal.class;
+			else if (name.equals("string")) entry._formals[i] = Value.StringVal.class;
+			else if (name.equals("unit")) entry._formals[i] = Value.UnitVal.class;
+			else entry._checkable = false;
+		}
+		return entry;
+	}
+
+	// Types and unification.
+
+	private Var fresh() {
+		return new Var(_level);
+	}
+
+	private static Type resolve(Type t) {
+		while (t instanceof Var && ((Var) t)._instance != null) {
+			Var v = (Var) t;
+			if (v._instance instanceof Var && ((Var) v._instance)._instance != null)
+				v._instance = ((Var) v._instance)._instance; // Path halving.
+			t = v._instance;
+		}
+		return t;
+	}
+
+	/** Makes actual equal to expected, or throws the type error of where. */
+	private void unify(Type expected, Type actual, Exp where) {
+		if (!unify(expected, actual))
+			throw new TypeError("Type error: expected " + show(expected) + " but found " + show(actual) + " in " + print(where));
+	}
+
+	private boolean unify(Type a, Type b) {
+		a = resolve(a);
+		b = resolve(b);
+		if (a == b) return true;
+		if (a instanceof Var) return bind((Var) a, b);
+		if (b instanceof Var) return bind((Var) b, a);
+		Con c = (Con) a, d = (Con) b;
+		if (!c._name.equals(d._name) || c._args.length != d._args.length) return false;
+		for (int i = 0; i < c._args.length; i++)
+			if (!unify(c._args[i], d._args[i])) return false;
+		return true;
+	}
+
+	private boolean bind(Var v, Type t) {
+		if (occurs(v, v._level, t)) return false;
+		v._instance = t;
+		return true;
+	}
+
+	/** Whether v occurs in t. Lowers the variables of t to level, since t is now as visible as v. */
+	private static boolean occurs(Var v, int level, Type t) {
+		t = resolve(t);
+		if (t == v) return true;
+		if (t instanceof Var) {
+			((Var) t)._level = Math.min(((Var) t)._level, level);
+			return false;
+		}
+		for (Type arg : ((Con) t)._args)
+			if (occurs(v, level, arg)) return true;
+		return false;
+	}
+
+	/** The scheme of t, whose variables not visible at the current level stand for any type. */
+	private Scheme generalize(Type t) {
+		List<Var> vars = new ArrayList<Var>();
+		variables(t, vars);
+		List<Var> result = new ArrayList<Var>();
+		for (Var v : vars)
+			if (v._level > _level && !result.contains(v)) result.add(v);
+		return new Scheme(result, t);
+	}
+
+	private static void variables(Type t, List<Var> vars) {
+		t = resolve(t);
+		if (t instanceof Var) vars.add((Var) t);
+		else for (Type arg : ((Con) t)._args) variables(arg, vars);
+	}
+
+	private Type instantiate(Scheme s) {
+		if (s._vars.isEmpty()) return s._type;
+		Map<Var, Type> fresh = new HashMap<Var, Type>();
+		for (Var v : s._vars)
+			fresh.put(v, fresh());
+		return copy(s._type, fresh);
+	}
+
+	private static Type copy(Type t, Map<Var, Type> fresh) {
+		t = resolve(t);
+		if (t instanceof Var) return fresh.containsKey(t) ? fresh.get(t) : t;
+		Con c = (Con) t;
+		if (c._args.length == 0) return c;
+		Type[] args = new Type[c._args.length];
+		for (int i = 0; i < args.length; i++)
+			args[i] = copy(c._args[i], fresh);
+		return new Con(c._name, args);
+	}
+
+	/** t as written in error messages, e.g. (num (list 'a) -> 'a). */
+	static String show(Type t) {
+		return show(t, new HashMap<Var, String>());
+	}
+
+	private static String show(Scheme s) {
+		return show(s._type);
+	}
+
+	private static String show(Type t, Map<Var, String> names) {
+		t = resolve(t);
+		if (t instanceof Var) {
+			if (!names.containsKey(t)) names.put((Var) t, "'" + (char) ('a' + names.size() % 26) + (names.size() < 26 ? "" : "" + names.size() / 26));
+			return names.get(t);
+		}
+		Con c = (Con) t;
+		if (c._args.length == 0) return c._name;
+		StringBuilder result = new StringBuilder("(");
+		if (c._name.equals(LIST)) result.append(LIST).append(" ");
+		for (int i = 0; i < c._args.length; i++) {
+			if (c._name.equals(FUNCTION) && i == c._args.length - 1) result.append(i > 0 ? " -> " : "-> ");
+			else if (i > 0) result.append(" ");
+			result.append(show(c._args[i], names));
+		}
+		return result.append(")").toString();
+	}
+
+	private static String print(Exp e) {
+		if (e instanceof CallExp) e = ((CallExp) e).source();
+		else if (e instanceof IfExp) e = ((IfExp) e).source();
+		else if (e instanceof LambdaExp) e = ((LambdaExp) e).source();
+		return e.accept(new Printer.Formatter(), null);
+	}
+
+	// Inference.
+
+	private Type infer(Exp e) {
+		return e.accept(this, null);
+	}
+
+	private Type numbers(Exp e, List<Exp> operands, Type result) {
+		for (Exp operand : operands)
+			unify(NUM, infer(operand), e);
+		return result;
+	}
+
+	public Type visit(AddExp e, Env env) { return numbers(e, e.all(), NUM); }
+	public Type visit(SubExp e, Env env) { return numbers(e, e.all(), NUM); }
+	public Type visit(MultExp e, Env env) { return numbers(e, e.all(), NUM); }
+	public Type visit(DivExp e, Env env) { return numbers(e, e.all(), NUM); }
+	public Type visit(LessExp e, Env env) { return numbers(e, Arrays.asList(e.first_exp(), e.second_exp()), BOOL); }
+	public Type visit(EqualExp e, Env env) { return numbers(e, Arrays.asList(e.first_exp(), e.second_exp()), BOOL); }
+	public Type visit(GreaterExp e, Env env) { return numbers(e, Arrays.asList(e.first_exp(), e.second_exp()), BOOL); }
+
+	public Type visit(UnitExp e, Env env) { return UNIT; }
+	public Type visit(NumExp e, Env env) { return NUM; }
+	public Type visit(StrExp e, Env env) { return STRING; }
+	public Type visit(BoolExp e, Env env) { return BOOL; }
+
+	public Type visit(EvalExp e, Env env) { throw new Untyped(); } // Its value can have any type.
+	public Type visit(ReadExp e, Env env) { throw new Untyped(); } // Its value is a string or an error.
+	public Type visit(Program p, Env env) { throw new Untyped(); } // Typed by begin.
+	public Type visit(DefineDecl d, Env env) { throw new Untyped(); }
+
+	public Type visit(VarExp e, Env env) {
+		String name = e.name();
+		for (Scope scope = _scope; scope != null; scope = scope._next)
+			if (scope._name.equals(name)) return instantiate(scope._scheme);
+		if (_group.containsKey(name)) return _group.get(name);
+		if (_pending.contains(name)) throw new Untyped(); // Defined later: not yet known, and not as its type.
+		if (_program.containsKey(name)) {
+			if (_program.get(name) == null) throw new Untyped();
+			return instantiate(_program.get(name));
+		}
+		if (!_schemes.containsKey(name)) throw new Untyped(); // Defined by untyped code, or not at all.
+		return instantiate(_schemes.get(name));
+	}
+
+	public Type visit(LetExp e, Env env) {
+		List<Type> types = new ArrayList<Type>();
+		_level++;
+		try {
+			for (Exp value_exp : e.value_exps())
+				types.add(infer(value_exp));
+		} finally {
+			_level--;
+		}
+		Scope scope = _scope;
+		for (int i = 0; i < types.size(); i++)
+			_scope = new Scope(e.names().get(i), generalize(types.get(i)), _scope);
+		try {
+			return infer(e.body());
+		} finally {
+			_scope = scope;
+		}
+	}
+
+	public Type visit(LambdaExp e, Env env) {
+		Scope scope = _scope;
+		Type[] types = new Type[e.formals().size() + 1];
+		for (int i = 0; i < types.length - 1; i++) {
+			types[i] = fresh();
+			_scope = new Scope(e.formals().get(i), new Scheme(Collections.<Var>emptyList(), types[i]), _scope);
+		}
+		try {
+			types[types.length - 1] = infer(e.body());
+		} finally {
+			_scope = scope;
+		}
+		_lambdas.put(e, Arrays.copyOf(types, types.length - 1));
+		return new Con(FUNCTION, types);
+	}
+
+	public Type visit(CallExp e, Env env) {
+		Type operator = infer(e.operator());
+		Type[] types = new Type[e.operands().size() + 1];
+		for (int i = 0; i < types.length - 1; i++)
+			types[i] = infer(e.operands().get(i));
+		types[types.length - 1] = fresh();
+		unify(operator, new Con(FUNCTION, types), e);
+		return types[types.length - 1];
+	}
+
+	public Type visit(IfExp e, Env env) {
+		unify(BOOL, infer(e.conditional()), e);
+		Type result = infer(e.then_exp());
+		unify(result, infer(e.else_exp()), e);
+		return result;
+	}
+
+	public Type visit(CarExp e, Env env) {
+		Type elem = fresh();
+		unify(new Con(LIST, elem), infer(e.arg()), e);
+		return elem;
+	}
+
+	public Type visit(CdrExp e, Env env) {
+		Type list = new Con(LIST, fresh());
+		unify(list, infer(e.arg()), e);
+		return list;
+	}
+
+	public Type visit(NullExp e, Env env) {
+		unify(new Con(LIST, fresh()), infer(e.arg()), e);
+		return BOOL;
+	}
+
+	public Type visit(ConsExp e, Env env) {
+		Type elem = infer(e.fst());
+		Type list = new Con(LIST, elem);
+		unify(list, infer(e.snd()), e);
+		return list;
+	}
+
+	public Type visit(ListExp e, Env env) {
+		Type elem = fresh();
+		for (Exp exp : e.elems())
+			unify(elem, infer(exp), e);
+		return new Con(LIST, elem);
+	}
+}
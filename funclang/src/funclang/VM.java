@@ -0,0 +1,695 @@
+package funclang;
+import static funclang.AST.*;
+import static funclang.Value.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static funclang.Evaluator.num;
+import static funclang.Evaluator.pair;
+import static funclang.Evaluator.string;
+
+import funclang.Env.*;
+
+/**
+ * A register-based bytecode virtual machine for funclang.
+ *
+ * A program is first lowered from AST.Program to a Proto: a flat int[] of
+ * instructions together with a constant pool. Every function has its own
+ * Proto and a register file in which its parameters and let bindings live
+ * at fixed positions, so the dispatch loop reads operands by index instead
+ * of walking the AST and its lists. Closures capture the values of their
+ * free variables in an array when they are created.
+ *
+ * Calls between VM functions use a stack of frames on the heap, and calls
+ * in tail position reuse the frame of the caller. The VM shares the global
+ * environment of an Evaluator. Its closures are FunVals, so procedures
+ * defined by the Evaluator can call them, and it calls the procedures that
+ * the Evaluator defined through Evaluator.invoke. Built-in procedures such
+ * as require are lowered like any lambda, so the definitions they load are
+ * VM closures too.
+ *
+ */
+public class VM {
+
+	// Opcodes. The operands of each instruction follow the opcode in the code array.
+	static final int CONST = 0; // dst k: regs[dst] = constant k
+	static final int MOVE = 1; // dst src
+	static final int UPVAL = 2; // dst i: captured value i of the running closure
+	static final int GLOBAL = 3; // dst k: global cached by constant k
+	static final int DEFINE = 4; // k src: define global named by constant k
+	static final int UNIT = 5; // dst
+	static final int ADD = 6; // dst a b
+	static final int SUB = 7; // dst a b
+	static final int MUL = 8; // dst a b
+	static final int DIV = 9; // dst a b
+	static final int LT = 10; // dst a b
+	static final int EQ = 11; // dst a b
+	static final int GT = 12; // dst a b
+	static final int CAR = 13; // dst a
+	static final int CDR = 14; // dst a
+	static final int ISNULL = 15; // dst a
+	static final int CONS = 16; // dst a b
+	static final int LIST = 17; // dst base n: list of regs[base .. base+n-1]
+	static final int JMP = 18; // target
+	static final int BRANCH = 19; // c else dst err k: go to else if regs[c] is #f; if it is not a boolean, regs[dst] = error and go to err
+	static final int FUNCTION = 20; // r dst err k: if regs[r] is not a procedure, regs[dst] = error and go to err
+	static final int CALL = 21; // dst base n k: regs[dst] = regs[base](regs[base+1] .. regs[base+n])
+	static final int TAILCALL = 22; // base n k
+	static final int RET = 23; // r
+	static final int CLOSURE = 24; // dst p base n: closure of constant p capturing regs[base .. base+n-1]
+	static final int EVAL = 25; // dst a
+	static final int READ = 26; // dst a
+	// Superinstructions for common pairs.
+	static final int ADDK = 27; // dst a k: regs[a] + constant k
+	static final int SUBK = 28; // dst a k: regs[a] - constant k
+	static final int BRLT = 29; // a b else: go to else unless regs[a] < regs[b]
+	static final int BREQ = 30; // a b else
+	static final int BRGT = 31; // a b else
+	static final int NUMBER = 32; // a: fails unless regs[a] is a number
+
+	static final String[] NAMES = { "CONST", "MOVE", "UPVAL", "GLOBAL", "DEFINE", "UNIT", "ADD", "SUB", "MUL", "DIV",
+			"LT", "EQ", "GT", "CAR", "CDR", "ISNULL", "CONS", "LIST", "JMP", "BRANCH", "FUNCTION", "CALL", "TAILCALL",
+			"RET", "CLOSURE", "EVAL", "READ", "ADDK", "SUBK", "BRLT", "BREQ", "BRGT", "NUMBER" };
+	static final int[] OPERANDS = { 2, 2, 2, 2, 2, 1, 3, 3, 3, 3, 3, 3, 3, 2, 2, 2, 3, 3, 1, 5, 4, 4, 3, 1, 4, 2, 2, 3, 3, 3, 3, 3, 1 };
+
+	/** Lowered code of one function, or of a whole program. */
+	static class Proto {
+		String _name;
+		LambdaExp _source; // null for a program.
+		int _params;
+		int _registers;
+		int[] _code;
+		Object[] _consts;
+		List<String> _captures;
+	}
+
+	/**
+	 * A VM function value: its code and the values of its free variables.
+	 * It has no Env, so the other engines call it through apply.
+	 */
+	static class Closure extends FunVal {
+		VM _vm;
+		Proto _proto;
+		Value[] _captured;
+		Closure(VM vm, Proto proto, Value[] captured) {
+			super(null, proto._source);
+			_vm = vm;
+			_proto = proto;
+			_captured = captured;
+		}
+		Value apply(Value[] actuals) {
+			return _vm.apply(this, actuals);
+		}
+	}
+
+	Printer.Formatter ts = new Printer.Formatter();
+
+	private Evaluator _evaluator;
+	private GlobalEnv _global_env;
+	private java.util.Map<FunVal, Closure> _builtins = new java.util.IdentityHashMap<FunVal, Closure>();
+
+	public VM(Evaluator evaluator) {
+		_evaluator = evaluator;
+		_global_env = (GlobalEnv) evaluator.initEnv;
+	}
+
+	Value valueOf(Program p) {
+		return execute(lower(p));
+	}
+
+	// Lowering from the AST.
+
+	public Proto lower(Program p) {
+		Lowering main = new Lowering(null, "program", null, new ArrayList<String>());
+		int r = main.temp();
+		for (DefineDecl d : p.decls()) {
+			main.into(d.value_exp(), r);
+			main.emit(DEFINE, main.constant(d.name()), r);
+		}
+		main.compile(p.e(), r, true);
+		return main.proto();
+	}
+
+	/**
+	 * Lowers the body of one function. Each visit places the value of an
+	 * expression in the register given as the second argument.
+	 */
+	class Lowering implements Visitor<Void> {
+		private Lowering _parent;
+		private String _name;
+		private LambdaExp _source;
+		private int[] _code = new int[64];
+		private int _size = 0;
+		private List<Object> _consts = new ArrayList<Object>();
+		private List<String> _captures = new ArrayList<String>();
+		private List<String> _names = new ArrayList<String>(); // Names bound to registers 0 .. n-1, innermost last.
+		private int _top; // First free register.
+		private int _registers;
+		private int _dst; // Register that receives the value of the expression being visited.
+
+		Lowering(Lowering parent, String name, LambdaExp source, List<String> params) {
+			_parent = parent;
+			_name = name;
+			_source = source;
+			_names.addAll(params);
+			_top = _registers = params.size();
+		}
+
+		Proto proto() {
+			Proto p = new Proto();
+			p._name = _name;
+			p._source = _source;
+			p._params = _source == null ? 0 : _source.formals().size();
+			p._registers = _registers;
+			p._code = java.util.Arrays.copyOf(_code, _size);
+			p._consts = _consts.toArray();
+			p._captures = _captures;
+			return p;
+		}
+
+		void emit(int... words) {
+			if (_size + words.length > _code.length)
+				_code = java.util.Arrays.copyOf(_code, 2 * _code.length + words.length);
+			for (int w : words)
+				_code[_size++] = w;
+		}
+
+		int constant(Object value) {
+			_consts.add(value);
+			return _consts.size() - 1;
+		}
+
+		int temp() {
+			int r = _top++;
+			if (_top > _registers) _registers = _top;
+			return r;
+		}
+
+		/** Register that holds name in this function, or -1. */
+		int register(String name) {
+			return _names.subList(0, Math.min(_top, _names.size())).lastIndexOf(name);
+		}
+
+		/** Index of name among the captured values of this function, or -1 if name is global. */
+		int capture(String name) {
+			int index = _captures.indexOf(name);
+			if (index >= 0) return index;
+			if (_parent == null || (_parent.register(name) < 0 && _parent.capture(name) < 0))
+				return -1;
+			_captures.add(name);
+			return _captures.size() - 1;
+		}
+
+		/** Places the value of a variable in dst. */
+		void load(String name, int dst) {
+			int r = register(name);
+			if (r >= 0) {
+				if (r != dst) emit(MOVE, dst, r);
+			} else {
+				int index = capture(name);
+				if (index >= 0) emit(UPVAL, dst, index);
+				else emit(GLOBAL, dst, constant(new Env.GlobalCache(name)));
+			}
+		}
+
+		/** Register holding the value of e: the variable itself if it is local, otherwise a new temporary. */
+		int operand(Exp e) {
+			if (e instanceof VarExp) {
+				int r = register(((VarExp) e).name());
+				if (r >= 0) return r;
+			}
+			int r = temp();
+			into(e, r);
+			return r;
+		}
+
+		void into(Exp e, int dst) {
+			int saved = _dst;
+			_dst = dst;
+			e.accept(this, null);
+			_dst = saved;
+		}
+
+		void compile(Exp e, int dst, boolean tail) {
+			if (tail && e instanceof CallExp) {
+				call((CallExp) e, dst, true);
+			} else if (tail && e instanceof IfExp) {
+				branch((IfExp) e, dst, true);
+			} else if (tail && e instanceof LetExp) {
+				let((LetExp) e, dst, true);
+			} else {
+				into(e, dst);
+				if (tail) emit(RET, dst);
+			}
+		}
+
+		private void binary(int opcode, Exp first, Exp second, int dst) {
+			int top = _top;
+			int a = operand(first);
+			if (opcode != CONS) number(first, a, second);
+			int b = operand(second);
+			emit(opcode, dst, a, b);
+			_top = top;
+		}
+
+		private Void arith(int opcode, List<Exp> operands, int dst) {
+			int top = _top;
+			int acc = operand(operands.get(0));
+			if (operands.size() > 1) number(operands.get(0), acc, operands.get(1));
+			for (int i = 1; i < operands.size(); i++) {
+				Exp operand = operands.get(i);
+				if (operand instanceof NumExp && (opcode == ADD || opcode == SUB))
+					emit(opcode == ADD ? ADDK : SUBK, dst, acc, constant(((NumExp) operand).value()));
+				else emit(opcode, dst, acc, operand(operand));
+				acc = dst;
+			}
+			if (operands.size() == 1) { // (+ e) still checks that e is a number.
+				int identity = temp();
+				emit(CONST, identity, constant(new NumVal(opcode == ADD || opcode == SUB ? 0 : 1)));
+				emit(opcode, dst, acc, identity);
+			}
+			_top = top;
+			return null;
+		}
+
+		/**
+		 * Checks that first, in register a, is a number before second is evaluated, so that an error in
+		 * both reports first, as in Evaluator. The op itself checks second as soon as it has it.
+		 */
+		private void number(Exp first, int a, Exp second) {
+			if (first instanceof NumExp || first instanceof CompoundArithExp || second instanceof NumExp) return; // Cannot fail, or nothing in between.
+			emit(NUMBER, a);
+		}
+
+		private void branch(IfExp e, int dst, boolean tail) {
+			Exp conditional = e.conditional();
+			if (conditional instanceof LessExp || conditional instanceof EqualExp || conditional instanceof GreaterExp) {
+				compare(e, dst, tail);
+				return;
+			}
+			int top = _top;
+			int c = operand(e.conditional());
+			_top = top;
+			int at = _size;
+			emit(BRANCH, c, 0, dst, 0, constant(e));
+			compile(e.then_exp(), dst, tail);
+			int jump = _size;
+			if (!tail) emit(JMP, 0);
+			_code[at + 2] = _size; // else
+			compile(e.else_exp(), dst, tail);
+			if (tail) {
+				_code[at + 4] = _size; // A condition that is not a boolean returns the error.
+				emit(RET, dst);
+			} else {
+				_code[jump + 1] = _size;
+				_code[at + 4] = _size;
+			}
+		}
+
+		/** An if whose condition is a comparison branches on it directly, as the condition is always a boolean. */
+		private void compare(IfExp e, int dst, boolean tail) {
+			Exp conditional = e.conditional();
+			int top = _top;
+			Exp first, second;
+			int opcode;
+			if (conditional instanceof LessExp) {
+				first = ((LessExp) conditional).first_exp(); second = ((LessExp) conditional).second_exp(); opcode = BRLT;
+			} else if (conditional instanceof EqualExp) {
+				first = ((EqualExp) conditional).first_exp(); second = ((EqualExp) conditional).second_exp(); opcode = BREQ;
+			} else {
+				first = ((GreaterExp) conditional).first_exp(); second = ((GreaterExp) conditional).second_exp(); opcode = BRGT;
+			}
+			int a = operand(first);
+			number(first, a, second);
+			emit(opcode, a, operand(second), 0);
+			_top = top;
+			int at = _size - 4;
+			compile(e.then_exp(), dst, tail);
+			int jump = _size;
+			if (!tail) emit(JMP, 0);
+			_code[at + 3] = _size; // else
+			compile(e.else_exp(), dst, tail);
+			if (!tail) _code[jump + 1] = _size;
+		}
+
+		private void let(LetExp e, int dst, boolean tail) {
+			int top = _top;
+			List<Exp> value_exps = e.value_exps();
+			int first = _top;
+			for (int i = 0; i < value_exps.size(); i++) // Registers of the bindings.
+				temp();
+			for (int i = 0; i < value_exps.size(); i++) // Evaluated before the names are in scope.
+				into(value_exps.get(i), first + i);
+			while (_names.size() < first) _names.add(null); // Temporaries have no name.
+			_names.subList(first, _names.size()).clear();
+			_names.addAll(e.names());
+			compile(e.body(), dst, tail);
+			_names.subList(first, _names.size()).clear();
+			_top = top;
+		}
+
+		private void call(CallExp e, int dst, boolean tail) {
+			int top = _top;
+			List<Exp> operands = e.operands();
+			int base = _top;
+			for (int i = 0; i <= operands.size(); i++) // Consecutive registers for the operator and operands.
+				temp();
+			into(e.operator(), base);
+			int check = _size;
+			emit(FUNCTION, base, dst, 0, constant(e));
+			for (int i = 0; i < operands.size(); i++)
+				into(operands.get(i), base + 1 + i);
+			if (tail) {
+				emit(TAILCALL, base, operands.size(), constant(e));
+				_code[check + 3] = _size;
+				emit(RET, dst);
+			} else {
+				emit(CALL, dst, base, operands.size(), constant(e));
+				_code[check + 3] = _size;
+			}
+			_top = top;
+		}
+
+		public Void visit(AddExp e, Env env) { return arith(ADD, e.all(), _dst); }
+		public Void visit(SubExp e, Env env) { return arith(SUB, e.all(), _dst); }
+		public Void visit(MultExp e, Env env) { return arith(MUL, e.all(), _dst); }
+		public Void visit(DivExp e, Env env) { return arith(DIV, e.all(), _dst); }
+
+		public Void visit(UnitExp e, Env env) { emit(UNIT, _dst); return null; }
+		public Void visit(NumExp e, Env env) { emit(CONST, _dst, constant(e.value())); return null; }
+		public Void visit(StrExp e, Env env) { emit(CONST, _dst, constant(e.value())); return null; }
+		public Void visit(BoolExp e, Env env) { emit(CONST, _dst, constant(e.value())); return null; }
+		public Void visit(VarExp e, Env env) { load(e.name(), _dst); return null; }
+		public Void visit(LetExp e, Env env) { let(e, _dst, false); return null; }
+		public Void visit(CallExp e, Env env) { call(e, _dst, false); return null; }
+		public Void visit(IfExp e, Env env) { branch(e, _dst, false); return null; }
+
+		public Void visit(LambdaExp e, Env env) {
+			Lowering body = new Lowering(this, "lambda", e, e.formals());
+			body.compile(e.body(), body.temp(), true);
+			Proto proto = body.proto();
+			int top = _top;
+			int base = _top;
+			for (String name : proto._captures) // Captured values are copied when the closure is created.
+				load(name, temp());
+			emit(CLOSURE, _dst, constant(proto), base, proto._captures.size());
+			_top = top;
+			return null;
+		}
+
+		public Void visit(LessExp e, Env env) { binary(LT, e.first_exp(), e.second_exp(), _dst); return null; }
+		public Void visit(EqualExp e, Env env) { binary(EQ, e.first_exp(), e.second_exp(), _dst); return null; }
+		public Void visit(GreaterExp e, Env env) { binary(GT, e.first_exp(), e.second_exp(), _dst); return null; }
+
+		private Void unary(int opcode, Exp arg, int dst) {
+			int top = _top;
+			emit(opcode, dst, operand(arg));
+			_top = top;
+			return null;
+		}
+
+		public Void visit(CarExp e, Env env) { return unary(CAR, e.arg(), _dst); }
+		public Void visit(CdrExp e, Env env) { return unary(CDR, e.arg(), _dst); }
+		public Void visit(NullExp e, Env env) { return unary(ISNULL, e.arg(), _dst); }
+		public Void visit(EvalExp e, Env env) { return unary(EVAL, e.code(), _dst); }
+		public Void visit(ReadExp e, Env env) { return unary(READ, e.file(), _dst); }
+
+		public Void visit(ConsExp e, Env env) { binary(CONS, e.fst(), e.snd(), _dst); return null; }
+
+		public Void visit(ListExp e, Env env) {
+			int top = _top;
+			int base = _top;
+			for (int i = 0; i < e.elems().size(); i++)
+				temp();
+			for (int i = 0; i < e.elems().size(); i++) //Order of evaluation: left to right
+				into(e.elems().get(i), base + i);
+			emit(LIST, _dst, base, e.elems().size());
+			_top = top;
+			return null;
+		}
+
+		public Void visit(DefineDecl d, Env env) { throw new IllegalStateException("define is only allowed in a program"); }
+		public Void visit(Program p, Env env) { throw new IllegalStateException("nested program"); }
+	}
+
+	// Execution.
+
+	/** Activation of a VM function, or of a program. */
+	static class Frame {
+		Proto _proto;
+		Value[] _captured;
+		Value[] _regs;
+		int _pc;
+		int _ret; // Register of the caller that receives the result.
+		Frame _caller;
+		Frame(Proto proto, Value[] captured, Frame caller, int ret) {
+			_proto = proto;
+			_captured = captured;
+			_regs = new Value[proto._registers];
+			_caller = caller;
+			_ret = ret;
+		}
+	}
+
+	Value execute(Proto program) {
+		try {
+			return run(new Frame(program, null, null, 0));
+		} catch (ClassCastException e) { // Dynamic type error, as in Evaluator.visit(Program).
+			return new DynamicError(e.getMessage());
+		}
+	}
+
+	private Value run(Frame f) {
+		Proto proto = f._proto;
+		int[] code = proto._code;
+		Object[] consts = proto._consts;
+		Value[] regs = f._regs;
+		int pc = 0;
+		while (true) {
+			switch (code[pc]) {
+			case CONST: regs[code[pc + 1]] = (Value) consts[code[pc + 2]]; pc += 3; break;
+			case MOVE: regs[code[pc + 1]] = regs[code[pc + 2]]; pc += 3; break;
+			case UPVAL: regs[code[pc + 1]] = f._captured[code[pc + 2]]; pc += 3; break;
+			case GLOBAL: regs[code[pc + 1]] = ((Env.GlobalCache) consts[code[pc + 2]]).get(_global_env); pc += 3; break;
+			case DEFINE: _global_env.extend((String) consts[code[pc + 1]], regs[code[pc + 2]]); pc += 3; break;
+			case UNIT: regs[code[pc + 1]] = new UnitVal(); pc += 2; break;
+			case ADD: regs[code[pc + 1]] = new NumVal(0 + num(regs[code[pc + 2]]).v() + num(regs[code[pc + 3]]).v()); pc += 4; break;
+			case SUB: regs[code[pc + 1]] = new NumVal(num(regs[code[pc + 2]]).v() - num(regs[code[pc + 3]]).v()); pc += 4; break;
+			case MUL: regs[code[pc + 1]] = new NumVal(num(regs[code[pc + 2]]).v() * num(regs[code[pc + 3]]).v()); pc += 4; break;
+			case DIV: regs[code[pc + 1]] = new NumVal(num(regs[code[pc + 2]]).v() / num(regs[code[pc + 3]]).v()); pc += 4; break;
+			case LT: regs[code[pc + 1]] = new BoolVal(num(regs[code[pc + 2]]).v() < num(regs[code[pc + 3]]).v()); pc += 4; break;
+			case EQ: regs[code[pc + 1]] = new BoolVal(num(regs[code[pc + 2]]).v() == num(regs[code[pc + 3]]).v()); pc += 4; break;
+			case GT: regs[code[pc + 1]] = new BoolVal(num(regs[code[pc + 2]]).v() > num(regs[code[pc + 3]]).v()); pc += 4; break;
+			case CAR: regs[code[pc + 1]] = pair(regs[code[pc + 2]]).fst(); pc += 3; break;
+			case CDR: regs[code[pc + 1]] = pair(regs[code[pc + 2]]).snd(); pc += 3; break;
+			case ISNULL: regs[code[pc + 1]] = new BoolVal(regs[code[pc + 2]] instanceof Null); pc += 3; break;
+			case CONS: regs[code[pc + 1]] = new PairVal(regs[code[pc + 2]], regs[code[pc + 3]]); pc += 4; break;
+			case LIST: {
+				int base = code[pc + 2];
+				Value result = new Null();
+				for (int i = code[pc + 3] - 1; i >= 0; i--)
+					result = new PairVal(regs[base + i], result);
+				regs[code[pc + 1]] = result;
+				pc += 4;
+				break;
+			}
+			case ADDK: regs[code[pc + 1]] = new NumVal(0 + num(regs[code[pc + 2]]).v() + ((NumVal) consts[code[pc + 3]]).v()); pc += 4; break;
+			case SUBK: regs[code[pc + 1]] = new NumVal(num(regs[code[pc + 2]]).v() - ((NumVal) consts[code[pc + 3]]).v()); pc += 4; break;
+			case BRLT: pc = num(regs[code[pc + 1]]).v() < num(regs[code[pc + 2]]).v() ? pc + 4 : code[pc + 3]; break;
+			case BREQ: pc = num(regs[code[pc + 1]]).v() == num(regs[code[pc + 2]]).v() ? pc + 4 : code[pc + 3]; break;
+			case BRGT: pc = num(regs[code[pc + 1]]).v() > num(regs[code[pc + 2]]).v() ? pc + 4 : code[pc + 3]; break;
+			case NUMBER: num(regs[code[pc + 1]]); pc += 2; break;
+			case JMP: pc = code[pc + 1]; break;
+			case BRANCH: {
+				Value c = regs[code[pc + 1]];
+				if (!(c instanceof BoolVal)) {
+					regs[code[pc + 3]] = Evaluator.conditionError((IfExp) consts[code[pc + 5]]);
+					pc = code[pc + 4];
+				} else pc = ((BoolVal) c).v() ? pc + 6 : code[pc + 2];
+				break;
+			}
+			case FUNCTION: {
+				Value operator = regs[code[pc + 1]];
+				if (!(operator instanceof FunVal)) {
+					regs[code[pc + 2]] = Evaluator.operatorError((CallExp) consts[code[pc + 4]]);
+					pc = code[pc + 3];
+				} else pc += 5;
+				break;
+			}
+			case CALL: {
+				int base = code[pc + 2];
+				int n = code[pc + 3];
+				Value operator = regs[base];
+				if (operator instanceof Closure && ((Closure) operator)._proto._params == n) {
+					Closure callee = (Closure) operator;
+					Frame g = new Frame(callee._proto, callee._captured, f, code[pc + 1]);
+					System.arraycopy(regs, base + 1, g._regs, 0, n);
+					f._pc = pc + 5;
+					f = g;
+					proto = callee._proto;
+					code = proto._code;
+					consts = proto._consts;
+					regs = g._regs;
+					pc = 0;
+				} else {
+					regs[code[pc + 1]] = call(operator, regs, base, n, (CallExp) consts[code[pc + 4]]);
+					pc += 5;
+				}
+				break;
+			}
+			case TAILCALL: {
+				int base = code[pc + 1];
+				int n = code[pc + 2];
+				Value operator = regs[base];
+				if (operator instanceof Closure && ((Closure) operator)._proto._params == n) {
+					Closure callee = (Closure) operator;
+					Frame g = new Frame(callee._proto, callee._captured, f._caller, f._ret); // Replaces the frame of the caller.
+					System.arraycopy(regs, base + 1, g._regs, 0, n);
+					f = g;
+					proto = callee._proto;
+					code = proto._code;
+					consts = proto._consts;
+					regs = g._regs;
+					pc = 0;
+					break;
+				}
+				Value result = call(operator, regs, base, n, (CallExp) consts[code[pc + 3]]);
+				int ret = f._ret;
+				f = f._caller;
+				if (f == null) return result;
+				f._regs[ret] = result;
+				proto = f._proto;
+				code = proto._code;
+				consts = proto._consts;
+				regs = f._regs;
+				pc = f._pc;
+				break;
+			}
+			case RET: {
+				Value result = regs[code[pc + 1]];
+				int ret = f._ret;
+				f = f._caller;
+				if (f == null) return result;
+				f._regs[ret] = result;
+				proto = f._proto;
+				code = proto._code;
+				consts = proto._consts;
+				regs = f._regs;
+				pc = f._pc;
+				break;
+			}
+			case CLOSURE: {
+				int n = code[pc + 4];
+				Value[] captured = java.util.Arrays.copyOfRange(regs, code[pc + 3], code[pc + 3] + n);
+				regs[code[pc + 1]] = new Closure(this, (Proto) consts[code[pc + 2]], captured);
+				pc += 5;
+				break;
+			}
+			case EVAL: {
+				StringVal programText = string(regs[code[pc + 2]]);
+				regs[code[pc + 1]] = valueOf(_evaluator._reader.parse(programText.v()));
+				pc += 3;
+				break;
+			}
+			case READ: {
+				StringVal fileName = string(regs[code[pc + 2]]);
+				try {
+					String text = _evaluator._reader.load("" + System.getProperty("user.dir") + File.separator + fileName.v());
+					regs[code[pc + 1]] = new StringVal(text);
+				} catch (IOException ex) {
+					regs[code[pc + 1]] = new DynamicError(ex.getMessage());
+				}
+				pc += 3;
+				break;
+			}
+			default:
+				throw new IllegalStateException("Unknown opcode " + code[pc] + " at " + pc);
+			}
+		}
+	}
+
+	/** Calls that do not enter a frame of the running loop: argument mismatches and procedures from outside the VM. */
+	private Value call(Value operator, Value[] regs, int base, int n, CallExp site) {
+		FunVal fun = (FunVal) operator;
+		Value[] actuals = java.util.Arrays.copyOfRange(regs, base + 1, base + 1 + n);
+		Value error = Evaluator.checkCall(fun, site);
+		if (error != null)
+			return error;
+		if (fun instanceof Primitive)
+			return ((Primitive) fun).apply(actuals, _evaluator);
+		if (fun.lambda() == null) // A built-in procedure: its body refers only to its formals and to globals.
+			return apply(builtin(fun), actuals);
+		return _evaluator.invoke(fun, actuals); // Defined by the Evaluator.
+	}
+
+	private Closure builtin(FunVal fun) {
+		Closure closure = _builtins.get(fun);
+		if (closure == null) {
+			LambdaExp lambda = new LambdaExp(fun.formals(), fun.body());
+			Lowering body = new Lowering(null, "builtin", lambda, lambda.formals());
+			body.compile(lambda.body(), body.temp(), true);
+			_builtins.put(fun, closure = new Closure(this, body.proto(), new Value[0]));
+		}
+		return closure;
+	}
+
+	/** Runs closure on actuals, which match its formals, for a caller outside the running loop. */
+	Value apply(Closure closure, Value[] actuals) {
+		Frame f = new Frame(closure._proto, closure._captured, null, 0);
+		System.arraycopy(actuals, 0, f._regs, 0, actuals.length);
+		return run(f);
+	}
+
+	// Disassembly.
+
+	public String disassemble(Program p) {
+		return disassemble(lower(p));
+	}
+
+	public String disassemble(Proto p) {
+		StringBuilder result = new StringBuilder();
+		disassemble(p, result);
+		return result.toString();
+	}
+
+	private void disassemble(Proto p, StringBuilder out) {
+		out.append(p._name);
+		if (p._source != null) out.append(" ").append(ts.visit(p._source, null));
+		out.append("\n  params ").append(p._params).append(", registers ").append(p._registers)
+			.append(", captures ").append(p._captures).append("\n");
+		List<Proto> nested = new ArrayList<Proto>();
+		int[] code = p._code;
+		for (int pc = 0; pc < code.length; pc += 1 + OPERANDS[code[pc]]) {
+			out.append(String.format("  %4d  %-9s", pc, NAMES[code[pc]]));
+			for (int i = 1; i <= OPERANDS[code[pc]]; i++)
+				out.append(" ").append(code[pc + i]);
+			Object constant = constantOperand(p, pc);
+			if (constant instanceof Proto) nested.add((Proto) constant);
+			if (constant != null) out.append("    ; ").append(describe(constant));
+			out.append("\n");
+		}
+		for (Proto q : nested) {
+			out.append("\n");
+			disassemble(q, out);
+		}
+	}
+
+	private Object constantOperand(Proto p, int pc) {
+		int[] code = p._code;
+		switch (code[pc]) {
+		case CONST: case GLOBAL: case CLOSURE: return p._consts[code[pc + 2]];
+		case ADDK: case SUBK: return p._consts[code[pc + 3]];
+		case DEFINE: return p._consts[code[pc + 1]];
+		default: return null;
+		}
+	}
+
+	private String describe(Object constant) {
+		if (constant instanceof Proto) return "<" + ((Proto) constant)._name + ">";
+		if (constant instanceof Value) return ((Value) constant).tostring();
+		return "" + constant;
+	}
+}
@@ -3,6 +3,7 @@ package funclang;
 import java.util.List;
 
 import funclang.AST.Exp;
+import funclang.AST.LambdaExp;
 
 public interface Value {
 	public String tostring();
@@ -10,23 +11,72 @@ public interface Value {
 		private Env _env;
 		private List<String> _formals;
 		private Exp _body;
+		private LambdaExp _lambda = null; // null for built-in procedures.
+		private Object _trust = null; // Stamp of the typed code that created this closure, see TypeChecker.entry.
+		private int _arity;
 		public FunVal(Env env, List<String> formals, Exp body) {
 			_env = env;
 			_formals = formals;
 			_body = body;
+			_arity = formals.size();
 		}
+		public FunVal(Env env, LambdaExp lambda) {
+			this(env, lambda.formals(), lambda.body());
+			_lambda = lambda;
+		}
+		public LambdaExp lambda() { return _lambda; }
 		public Env env() { return _env; }
 		public List<String> formals() { return _formals; }
 		public Exp body() { return _body; }
+		public int arity() { return _arity; }
+		/** 
+		 * Entry points of a call: the environment in which the body runs on
+		 * the given actuals, which match the formals. The fixed arities put 
+		 * the actuals straight into the frame, with no collection to copy.
+		 */
+		public Env frame() { return frame(NONE); }
+		public Env frame(Value a) { return frame(new Value[] { a }); }
+		public Env frame(Value a, Value b) { return frame(new Value[] { a, b }); }
+		public Env frame(Value a, Value b, Value c) { return frame(new Value[] { a, b, c }); }
+		public Env frame(Value a, Value b, Value c, Value d) { return frame(new Value[] { a, b, c, d }); }
+		public Env frame(Value[] actuals) { return new Env.FrameEnv(_env, _formals, actuals); } // One frame for all arguments.
+		private static final Value[] NONE = new Value[0];
+		public Object trust() { return _trust; }
+		public void setTrust(Object trust) { _trust = trust; }
 	    public String tostring() { 
 			String result = "(lambda ( ";
-			for(String formal : _formals) 
+			for(String formal : _lambda != null ? _lambda.source().formals() : _formals) // As written.
 				result += formal + " ";
 			result += ") ";
-			result += _body.accept(new Printer.Formatter(), _env);
+			Exp body = _lambda != null ? _lambda.source().body() : _body;
+			result += body.accept(new Printer.Formatter(), _env);
 			return result + ")";
 	    }
 	}
+	/**
+	 * A procedure implemented in Java, such as the list procedures of
+	 * Primitives. Engines call it like a closure, after the same checks of
+	 * the operator and the arity; it has no Env and no body, and it calls
+	 * the functions that it is passed through the Evaluator.
+	 */
+	static class Primitive extends FunVal {
+		public interface Body {
+			Value apply(Value[] actuals, Evaluator evaluator);
+		}
+		private String _name;
+		private Body _procedure;
+		public Primitive(String name, List<String> formals, Body procedure) {
+			super(null, formals, null);
+			_name = name;
+			_procedure = procedure;
+		}
+		public String name() { return _name; }
+		/** Runs the procedure on actuals, which match its formals. They may be thunks in lazy mode. */
+		public Value apply(Value[] actuals, Evaluator evaluator) {
+			return _procedure.apply(actuals, evaluator);
+		}
+		public String tostring() { return "(primitive " + _name + ")"; }
+	}
 	static class NumVal implements Value {
 	    private double _val;
 	    public NumVal(double v) { _val = v; } 
@@ -36,18 +86,27 @@ public interface Value {
 	    	if(tmp == _val) return "" + tmp;
 	    	return "" + _val; 
 	    }
+	    public boolean equals(Object o) { return o instanceof NumVal && Double.compare(((NumVal) o)._val, _val) == 0; } // As keys: unlike =, 0 is not -0 and NaN is NaN.
+	    public int hashCode() { return Double.hashCode(_val); }
 	}
 	static class BoolVal implements Value {
+		public static final BoolVal TRUE = new BoolVal(true);
+		public static final BoolVal FALSE = new BoolVal(false);
 		private boolean _val;
 	    public BoolVal(boolean v) { _val = v; } 
+	    public static BoolVal of(boolean v) { return v ? TRUE : FALSE; }
 	    public boolean v() { return _val; }
 	    public String tostring() { if(_val) return "#t"; return "#f"; }
+	    public boolean equals(Object o) { return o instanceof BoolVal && ((BoolVal) o)._val == _val; }
+	    public int hashCode() { return Boolean.hashCode(_val); }
 	}
 	static class StringVal implements Value {
 		private java.lang.String _val;
 	    public StringVal(String v) { _val = v; } 
 	    public String v() { return _val; }
 	    public java.lang.String tostring() { return "" + _val; }
+	    public boolean equals(Object o) { return o instanceof StringVal && ((StringVal) o)._val.equals(_val); }
+	    public int hashCode() { return _val.hashCode(); }
 	}
 	static class PairVal implements Value {
 		protected Value _fst;
@@ -59,30 +118,340 @@ public interface Value {
 	    	if(isList()) return listToString();
 	    	return "(" + _fst.tostring() + " " + _snd.tostring() + ")"; 
 	    }
-	    private boolean isList() {
-	    	if(_snd instanceof Value.Null) return true;
-	    	if(_snd instanceof Value.PairVal &&
-	    		((Value.PairVal) _snd).isList()) return true;
-	    	return false;
+	    /** Structural equality of the elements, iterative along the list, like hashCode. */
+	    public boolean equals(Object o) {
+	    	if (!(o instanceof PairVal)) return false;
+	    	Value a = this, b = (PairVal) o;
+	    	while (a instanceof PairVal && b instanceof PairVal) {
+	    		if (a == b) return true;
+	    		if (!Thunk.force(((PairVal) a)._fst).equals(Thunk.force(((PairVal) b)._fst))) return false;
+	    		a = Thunk.force(((PairVal) a)._snd);
+	    		b = Thunk.force(((PairVal) b)._snd);
+	    	}
+	    	return a.equals(b);
+	    }
+	    public int hashCode() {
+	    	int result = 1;
+	    	Value next = this;
+	    	for (; next instanceof PairVal; next = Thunk.force(((PairVal) next)._snd))
+	    		result = 31 * result + Thunk.force(((PairVal) next)._fst).hashCode();
+	    	return 31 * result + next.hashCode();
+	    }
+	    private boolean isList() { // Iterative, so that very long lists can be printed.
+	    	Value next = Thunk.force(_snd);
+	    	while(next instanceof Value.PairVal)
+	    		next = Thunk.force(((PairVal) next)._snd);
+	    	return next instanceof Value.Null;
 	    }
 	    private java.lang.String listToString() {
-	    	String result = "(";
-	    	result += _fst.tostring();
-	    	Value next = _snd; 
+	    	StringBuilder result = new StringBuilder("(");
+	    	result.append(_fst.tostring());
+	    	Value next = Thunk.force(_snd); 
 	    	while(!(next instanceof Value.Null)) {
-	    		result += " " + ((PairVal) next)._fst.tostring();
-	    		next = ((PairVal) next)._snd;
+	    		result.append(" ").append(((PairVal) next)._fst.tostring());
+	    		next = Thunk.force(((PairVal) next)._snd);
 	    	}
-	    	return result + ")";
+	    	return result.append(")").toString();
+	    }
+	}
+	/**
+	 * A vector: an immutable sequence of values, indexed in constant time.
+	 * NumVectorVal keeps numbers unboxed in a double[], and ArrayVectorVal
+	 * holds values of any kind. Vectors with equal elements are equal,
+	 * whichever kind they are.
+	 */
+	static abstract class VectorVal implements Value {
+		public abstract int length();
+		public abstract Value get(int i);
+		/** The elements from from up to but excluding to, which are in range, in a vector of the same kind. */
+		public abstract VectorVal slice(int from, int to);
+	    public String tostring() {
+	    	StringBuilder result = new StringBuilder("#(");
+	    	for (int i = 0; i < length(); i++)
+	    		result.append(i == 0 ? "" : " ").append(get(i).tostring());
+	    	return result.append(")").toString();
+	    }
+	    public boolean equals(Object o) {
+	    	if (!(o instanceof VectorVal) || ((VectorVal) o).length() != length()) return false;
+	    	for (int i = 0; i < length(); i++)
+	    		if (!get(i).equals(((VectorVal) o).get(i))) return false;
+	    	return true;
+	    }
+	    public int hashCode() {
+	    	int result = 1;
+	    	for (int i = 0; i < length(); i++)
+	    		result = 31 * result + get(i).hashCode();
+	    	return result;
+	    }
+	}
+	static class NumVectorVal extends VectorVal {
+		private double[] _elems;
+	    public NumVectorVal(double[] elems) { _elems = elems; } // Not copied: the caller gives up elems.
+	    public double[] v() { return _elems; }
+		public int length() { return _elems.length; }
+		public Value get(int i) { return new NumVal(_elems[i]); }
+		public double at(int i) { return _elems[i]; }
+		public VectorVal slice(int from, int to) { return new NumVectorVal(java.util.Arrays.copyOfRange(_elems, from, to)); }
+	}
+	static class ArrayVectorVal extends VectorVal {
+		private Value[] _elems;
+	    public ArrayVectorVal(Value[] elems) { _elems = elems; } // Not copied: the caller gives up elems.
+		public int length() { return _elems.length; }
+		public Value get(int i) { return _elems[i]; }
+		public VectorVal slice(int from, int to) { return new ArrayVectorVal(java.util.Arrays.copyOfRange(_elems, from, to)); }
+	}
+	/**
+	 * A vector in a relaxed radix balanced tree, see Persistent, which can be
+	 * updated, extended and concatenated in O(log32 n), sharing its nodes
+	 * with the vectors it was made of.
+	 */
+	static class TrieVectorVal extends VectorVal {
+		public static final TrieVectorVal EMPTY = new TrieVectorVal(Persistent.TrieNode.EMPTY, 0, 0);
+		private Persistent.TrieNode _root;
+		private int _height;
+		private int _length;
+		public TrieVectorVal(Persistent.TrieNode root, int height, int length) { _root = root; _height = height; _length = length; }
+		/** The elements of vector in a tree, shared if it is one already. */
+		public static TrieVectorVal of(VectorVal vector) {
+			if (vector instanceof TrieVectorVal) return (TrieVectorVal) vector;
+			Value[] elems = new Value[vector.length()];
+			for (int i = 0; i < elems.length; i++)
+				elems[i] = vector.get(i);
+			return Persistent.fromArray(elems);
+		}
+		public int length() { return _length; }
+		public Value get(int i) { return Persistent.get(_root, _height, i); }
+		public VectorVal slice(int from, int to) {
+			Value[] elems = new Value[to - from];
+			for (int i = 0; i < elems.length; i++)
+				elems[i] = get(from + i);
+			return Persistent.fromArray(elems);
+		}
+		/** This vector with the element at i, which is in range, replaced by v. */
+		public TrieVectorVal set(int i, Value v) { return new TrieVectorVal(Persistent.set(_root, _height, i, v), _height, _length); }
+		public TrieVectorVal push(Value v) { return Persistent.push(_root, _height, _length, v); }
+		public TrieVectorVal concat(TrieVectorVal other) {
+			if (_length == 0) return other;
+			if (other._length == 0) return this;
+			return Persistent.concat(_root, _height, other._root, other._height, _length + other._length);
+		}
+	}
+	/**
+	 * An immutable map, in a hash array mapped trie, see Persistent. Keys are
+	 * compared by equals, so that structurally equal values are the same key,
+	 * and maps with the same bindings are equal.
+	 */
+	static class MapVal implements Value {
+		public static final MapVal EMPTY = new MapVal(Persistent.BitmapNode.EMPTY, 0);
+		private Persistent.HamtNode _root;
+		private int _size;
+		private MapVal(Persistent.HamtNode root, int size) { _root = root; _size = size; }
+		public int size() { return _size; }
+		/** The value of key, or null. */
+		public Value get(Value key) { return _root.get(key, Persistent.hash(key), 0); }
+		public MapVal assoc(Value key, Value value) {
+			boolean[] added = new boolean[1];
+			Persistent.HamtNode root = _root.assoc(key, Persistent.hash(key), 0, value, added);
+			return root == _root ? this : new MapVal(root, added[0] ? _size + 1 : _size);
+		}
+		public MapVal dissoc(Value key) {
+			Persistent.HamtNode root = _root.dissoc(key, Persistent.hash(key), 0);
+			return root == _root ? this : root == null ? EMPTY : new MapVal(root, _size - 1);
+		}
+		/** Calls action on each key and its value, in the order of their hashes. */
+		public void forEach(java.util.function.BiConsumer<Value, Value> action) { _root.forEach(action); }
+	    public String tostring() {
+	    	StringBuilder result = new StringBuilder("(hash_map");
+	    	forEach((key, value) -> result.append(" (").append(key.tostring()).append(" ").append(value.tostring()).append(")"));
+	    	return result.append(")").toString();
+	    }
+	    public boolean equals(Object o) {
+	    	if (!(o instanceof MapVal) || ((MapVal) o)._size != _size) return false;
+	    	boolean[] equal = { true };
+	    	forEach((key, value) -> equal[0] &= value.equals(((MapVal) o).get(key)));
+	    	return equal[0];
+	    }
+	    public int hashCode() {
+	    	int[] result = { 0 };
+	    	forEach((key, value) -> result[0] += key.hashCode() ^ value.hashCode()); // In any order.
+	    	return result[0];
 	    }
 	}
+	/** An immutable set: a MapVal that binds each element to itself. */
+	static class SetVal implements Value {
+		public static final SetVal EMPTY = new SetVal(MapVal.EMPTY);
+		private MapVal _map;
+		private SetVal(MapVal map) { _map = map; }
+		public int size() { return _map.size(); }
+		public boolean contains(Value elem) { return _map.get(elem) != null; }
+		public SetVal add(Value elem) { MapVal map = _map.assoc(elem, elem); return map == _map ? this : new SetVal(map); }
+		public SetVal remove(Value elem) { MapVal map = _map.dissoc(elem); return map == _map ? this : new SetVal(map); }
+		public void forEach(java.util.function.Consumer<Value> action) { _map.forEach((elem, self) -> action.accept(elem)); }
+	    public String tostring() {
+	    	StringBuilder result = new StringBuilder("(hash_set");
+	    	forEach(elem -> result.append(" ").append(elem.tostring()));
+	    	return result.append(")").toString();
+	    }
+	    public boolean equals(Object o) { return o instanceof SetVal && ((SetVal) o)._map.equals(_map); }
+	    public int hashCode() { return _map.hashCode(); }
+	}
+	/** An immutable matrix of numbers, stored row by row, see LinearAlgebra. */
+	static class MatrixVal implements Value {
+		private int _rows;
+		private int _cols;
+		private double[] _elems;
+	    public MatrixVal(int rows, int cols, double[] elems) { _rows = rows; _cols = cols; _elems = elems; } // Not copied: the caller gives up elems.
+	    public int rows() { return _rows; }
+	    public int cols() { return _cols; }
+	    public double[] v() { return _elems; }
+	    public double get(int i, int j) { return _elems[i * _cols + j]; }
+	    public String tostring() {
+	    	StringBuilder result = new StringBuilder("(matrix");
+	    	for (int i = 0; i < _rows; i++) {
+	    		result.append(" (");
+	    		for (int j = 0; j < _cols; j++)
+	    			result.append(j == 0 ? "" : " ").append(new NumVal(get(i, j)).tostring());
+	    		result.append(")");
+	    	}
+	    	return result.append(")").toString();
+	    }
+	    public boolean equals(Object o) {
+	    	if (!(o instanceof MatrixVal) || ((MatrixVal) o)._rows != _rows || ((MatrixVal) o)._cols != _cols) return false;
+	    	for (int i = 0; i < _elems.length; i++)
+	    		if (Double.compare(_elems[i], ((MatrixVal) o)._elems[i]) != 0) return false; // As NumVal.
+	    	return true;
+	    }
+	    public int hashCode() {
+	    	int result = 31 * _rows + _cols;
+	    	for (double elem : _elems)
+	    		result = 31 * result + Double.hashCode(elem);
+	    	return result;
+	    }
+	}
+	/** The type of the records declared by a defrecord, see Primitives.defrecord. Types are only equal to themselves. */
+	static class RecordType implements Value {
+		private String _name;
+		private List<String> _fields;
+	    public RecordType(String name, List<String> fields) { _name = name; _fields = fields; }
+	    public String name() { return _name; }
+	    public List<String> fields() { return _fields; }
+	    public String tostring() { return "(record " + _name + (_fields.isEmpty() ? "" : " " + String.join(" ", _fields)) + ")"; }
+	}
+	/**
+	 * A record: one slot per field of its type, in the order of the
+	 * declaration, so that an accessor reads the slot at the offset of its
+	 * field. Records of the same type are equal when their fields are.
+	 */
+	static class RecordVal implements Value {
+		private RecordType _type;
+		private Value[] _fields;
+	    public RecordVal(RecordType type, Value[] fields) { _type = type; _fields = fields; } // Not copied: the caller gives up fields.
+	    public RecordType type() { return _type; }
+	    public Value get(int offset) { return _fields[offset]; }
+	    public String tostring() {
+	    	StringBuilder result = new StringBuilder("#").append(_type.name()).append("(");
+	    	for (int i = 0; i < _fields.length; i++)
+	    		result.append(i == 0 ? "" : " ").append(_fields[i].tostring());
+	    	return result.append(")").toString();
+	    }
+	    public boolean equals(Object o) { return o instanceof RecordVal && ((RecordVal) o)._type == _type && java.util.Arrays.equals(((RecordVal) o)._fields, _fields); }
+	    public int hashCode() { return 31 * System.identityHashCode(_type) + java.util.Arrays.hashCode(_fields); }
+	}
+	/**
+	 * A mutable array of numbers outside the Java heap, in direct buffers or
+	 * in a file mapped into memory, so that it may be larger than the heap
+	 * and have more than 2^31 elements, and the collector never scans or
+	 * copies its elements. It is split into buffers of CHUNK elements, since
+	 * a buffer has an int index. A slice is a view of the same elements.
+	 * Arrays are only equal to themselves.
+	 */
+	static class ArrayVal implements Value {
+		static final int CHUNK = 1 << 27; // Elements per buffer, 1 GB.
+		private java.nio.ByteBuffer[] _chunks;
+		private long _offset;
+		private long _length;
+		private ArrayVal(java.nio.ByteBuffer[] chunks, long offset, long length) {
+			_chunks = chunks;
+			_offset = offset;
+			_length = length;
+		}
+		/** An array of length zeros, off the heap. */
+		public static ArrayVal allocate(long length) {
+			java.nio.ByteBuffer[] chunks = new java.nio.ByteBuffer[(int) ((length + CHUNK - 1) / CHUNK)];
+			for (int i = 0; i < chunks.length; i++)
+				chunks[i] = java.nio.ByteBuffer.allocateDirect(8 * (int) Math.min(CHUNK, length - (long) i * CHUNK)).order(java.nio.ByteOrder.nativeOrder());
+			return new ArrayVal(chunks, 0, length);
+		}
+		/** An array of length elements stored in file, as little-endian doubles, which is extended with zeros if it is shorter. */
+		public static ArrayVal map(java.io.File file, long length) throws java.io.IOException {
+			java.nio.ByteBuffer[] chunks = new java.nio.ByteBuffer[(int) ((length + CHUNK - 1) / CHUNK)];
+			try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(file.toPath(),
+					java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.READ, java.nio.file.StandardOpenOption.WRITE)) {
+				for (int i = 0; i < chunks.length; i++) // The mappings stay valid once the channel is closed.
+					chunks[i] = channel.map(java.nio.channels.FileChannel.MapMode.READ_WRITE, 8L * i * CHUNK, 8 * Math.min(CHUNK, length - (long) i * CHUNK)).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+			}
+			return new ArrayVal(chunks, 0, length);
+		}
+		public long length() { return _length; }
+		/** The element at index i, which is in range. */
+		public double get(long i) {
+			long j = _offset + i;
+			return _chunks[(int) (j / CHUNK)].getDouble(8 * (int) (j % CHUNK));
+		}
+		public void set(long i, double v) {
+			long j = _offset + i;
+			_chunks[(int) (j / CHUNK)].putDouble(8 * (int) (j % CHUNK), v);
+		}
+		/** The elements from from up to but excluding to, which are in range, shared with this array. */
+		public ArrayVal slice(long from, long to) { return new ArrayVal(_chunks, _offset + from, to - from); }
+	    public String tostring() { return "(array " + _length + ")"; }
+	}
 	static class Null implements Value {
 		public Null() {}
 	    public String tostring() { return "()"; }
+	    public boolean equals(Object o) { return o instanceof Null; }
+	    public int hashCode() { return 0; }
 	}
 	static class UnitVal implements Value {
 		public static final UnitVal v = new UnitVal();
 	    public String tostring() { return ""; }
+	    public boolean equals(Object o) { return o instanceof UnitVal; }
+	    public int hashCode() { return 1; }
+	}
+	/**
+	 * An expression whose evaluation is delayed until its value is needed, 
+	 * by the lazy mode of the Evaluator. It is evaluated at most once: the
+	 * value is kept, and the expression and environment are dropped.
+	 */
+	static class Thunk implements Value {
+		private Exp _exp;
+		private Env _env;
+		private Evaluator _evaluator;
+		private java.util.function.Supplier<Value> _delayed = null; // Instead of _exp, for the lists of Primitives.
+		private Value _value = null;
+		public Thunk(Exp exp, Env env, Evaluator evaluator) {
+			_exp = exp;
+			_env = env;
+			_evaluator = evaluator;
+		}
+		public Thunk(java.util.function.Supplier<Value> delayed) {
+			_delayed = delayed;
+		}
+		public Value value() {
+			if (_value == null) {
+				_value = force(_delayed != null ? _delayed.get() : _evaluator.eval(_exp, _env));
+				_exp = null;
+				_env = null;
+				_evaluator = null;
+				_delayed = null;
+			}
+			return _value;
+		}
+		/** The value of v, forced if it is a thunk. */
+		public static Value force(Value v) {
+			return v instanceof Thunk ? ((Thunk) v).value() : v;
+		}
+	    public String tostring() { return value().tostring(); }
 	}
 	static class DynamicError implements Value { 
 		private String message = "Unknown dynamic error.";
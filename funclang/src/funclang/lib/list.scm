@@ -0,0 +1,86 @@
+/* The list procedures that are built into the interpreter, as interpreted definitions */
+
+/* The built-in versions, in Primitives.java, give the same values and errors as these
+   definitions, but they loop rather than recurse, so they run in constant stack.
+   Requiring this file replaces them with the definitions below. */
+
+(define cadr
+	(lambda (lst)
+		(car (cdr lst))
+	)
+)
+
+(define caddr
+	(lambda (lst)
+		(car (cdr (cdr lst)))
+	)
+)
+
+(define length
+	(lambda (lst)
+		(if (null? lst) 0
+			(+ 1 (length (cdr lst)))
+		)
+	)
+)
+
+(define append
+	(lambda (lst1 lst2)
+		(if (null? lst1) lst2
+			(if (null? lst2) lst1
+				(cons (car lst1) (append (cdr lst1) lst2))
+			)
+		)
+	)
+)
+
+(define map
+	(lambda (op lst)
+		(if (null? lst) (list)
+			(cons (op (car lst)) (map op (cdr lst)))
+		)
+	)
+)
+
+(define filter
+	(lambda (pred lst)
+		(if (null? lst) (list)
+			(if (pred (car lst))
+				(cons (car lst) (filter pred (cdr lst)))
+				(filter pred (cdr lst))
+			)
+		)
+	)
+)
+
+(define reverse
+	(lambda (lst)
+		(let ((onto (lambda (onto lst acc) (if (null? lst) acc (onto onto (cdr lst) (cons (car lst) acc))))))
+			(onto onto lst (list))
+		)
+	)
+)
+
+(define foldl
+	(lambda (op acc lst)
+		(if (null? lst) acc
+			(foldl op (op (car lst) acc) (cdr lst))
+		)
+	)
+)
+
+(define list_ref
+	(lambda (lst k)
+		(if (= k 0) (car lst)
+			(list_ref (cdr lst) (- k 1))
+		)
+	)
+)
+
+(define range
+	(lambda (from to)
+		(if (< from to) (cons from (range (+ from 1) to))
+			(list)
+		)
+	)
+)
@@ -0,0 +1,101 @@
+/* The matrix procedures that are built into the interpreter, on lists of rows */
+
+/* A matrix is a list of rows, each a list of numbers, so that list_to_matrix and
+   matrix_to_list return their operand. The built-in versions, in Primitives.java,
+   compute the same values in one call each; "ant benchmark" times both. Requiring
+   this file replaces them, except matrix_solve, with the definitions below, which do
+   not check dimensions. */
+
+(define list_to_matrix
+	(lambda (rows) rows)
+)
+
+(define matrix_to_list
+	(lambda (m) m)
+)
+
+(define make_matrix
+	(lambda (rows cols fill)
+		(map (lambda (i) (map (lambda (j) fill) (range 0 cols))) (range 0 rows))
+	)
+)
+
+(define matrix_ref
+	(lambda (m i j)
+		(list_ref (list_ref m i) j)
+	)
+)
+
+(define matrix_rows
+	(lambda (m) (length m))
+)
+
+(define matrix_cols
+	(lambda (m)
+		(if (null? m) 0 (length (car m)))
+	)
+)
+
+(define matrix_transpose
+	(lambda (m)
+		(if (null? m) (list)
+			(if (null? (car m)) (list)
+				(cons (map (lambda (row) (car row)) m) (matrix_transpose (map (lambda (row) (cdr row)) m)))
+			)
+		)
+	)
+)
+
+(define row_dot
+	(lambda (u v)
+		(if (null? u) 0
+			(+ (* (car u) (car v)) (row_dot (cdr u) (cdr v)))
+		)
+	)
+)
+
+(define matrix_mul
+	(lambda (a b)
+		(let ((cols (matrix_transpose b)))
+			(map (lambda (row) (map (lambda (col) (row_dot row col)) cols)) a)
+		)
+	)
+)
+
+(define zip_with
+	(lambda (op u v)
+		(if (null? u) (list)
+			(cons (op (car u) (car v)) (zip_with op (cdr u) (cdr v)))
+		)
+	)
+)
+
+(define matrix_add
+	(lambda (a b)
+		(zip_with (lambda (u v) (zip_with (lambda (x y) (+ x y)) u v)) a b)
+	)
+)
+
+(define matrix_sub
+	(lambda (a b)
+		(zip_with (lambda (u v) (zip_with (lambda (x y) (- x y)) u v)) a b)
+	)
+)
+
+(define matrix_emul
+	(lambda (a b)
+		(zip_with (lambda (u v) (zip_with (lambda (x y) (* x y)) u v)) a b)
+	)
+)
+
+(define matrix_scale
+	(lambda (k m)
+		(map (lambda (row) (map (lambda (x) (* k x)) row)) m)
+	)
+)
+
+(define dot
+	(lambda (u v)
+		(row_dot (vector_to_list u) (vector_to_list v))
+	)
+)